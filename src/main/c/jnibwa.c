@@ -13,18 +13,52 @@
 #include <unistd.h>
 #include <zlib.h>
 #include <errno.h>
+#include <stddef.h>
+#include <pthread.h>
 
 #include "jnibwa.h"
 #include "bwa/kstring.h"
 #include "bwa/bntseq.h"
 #include "bwa/bwt.h"
+#include "bwa/ksw.h"
 #include "bwa/utils.h"
 #include "bwa/rle.h"
 #include "bwa/rope.h"
 
 
-static inline void kput32( int32_t val, kstring_t* str ) {
-	kputsn((char*)&val, sizeof(int32_t), str);
+// a region of memory shared by all the threads formatting alignments for a batch of sequences
+// each sequence's results are placed in a span reserved (by bumping nUsed) when its first alignment is formatted
+// sequences that don't fit are formatted into individual spill buffers, and gathered into the region at the end
+typedef struct {
+	int32_t* pMem;   // the region: the header, the offsets table, then the results for each sequence
+	size_t nInts;    // capacity of the region, in int32_t's
+	int isCallers;   // true if the region belongs to the caller (so we mustn't realloc or free it)
+	size_t nUsed;    // int32_t's reserved so far (may exceed nInts once we've run out of space)
+	int32_t* pOffsets; // offset (in int32_t's) of each sequence's results within the region
+	int32_t** ppNext;  // where the next alignment for each sequence will be written
+	int32_t** ppSpill; // spill buffer for each sequence, or 0 if it fit in the region
+} jnibwa_results_t;
+
+// the sequences handed to bwa are embedded in this structure so that the formatter can find its way back to the
+// results region:  the id of each sequence is its index in the array.
+typedef struct {
+	int fromContext; // true if this is a jnibwa_context_t's scratch space (so we mustn't free it)
+	jnibwa_results_t results;
+	bseq1_t seqs[];
+} jnibwa_batch_t;
+
+// the header is nSeqs, nHeaderInts, nResultInts, a flag saying whether there are pair-end stats, the
+// pair-end stats for each of the 4 orientations (whether inferred from the batch, or supplied by the caller), and
+// then counts of the sequences that took each of the short cuts (indexed by the JNIBWA_COUNT_* values)
+#define PESTAT_INTS 8 // avg and std (2 int32_t's each, 8-byte aligned), low, high, failed, and padding
+#define PESTATS_OFFSET 4
+#define COUNTS_OFFSET (PESTATS_OFFSET + 4*PESTAT_INTS)
+#define RESULTS_HEADER_INTS (COUNTS_OFFSET + JNIBWA_N_COUNTS)
+#define NO_RESULTS_OFFSET 0 // in the offsets table, for a sequence with no results (the header's always at 0)
+#define EST_INTS_PER_SEQ 32 // for space planning:  a mapped, paired read with a few cigar ops and a short MD tag
+
+static inline jnibwa_batch_t* seqBatch( bseq1_t* pSeq1 ) {
+	return (jnibwa_batch_t*)((char*)(pSeq1 - pSeq1->id) - offsetof(jnibwa_batch_t, seqs));
 }
 
 static inline int cigarRefLen( int nCigar, uint32_t const* pCigar )
@@ -40,49 +74,79 @@ static inline int cigarRefLen( int nCigar, uint32_t const* pCigar )
 	return len;
 }
 
+// an upper bound on the number of int32_t's required to format a list of alignments
+static size_t alnsLen( int n, mem_aln_t const* list ) {
+	mem_aln_t const* pEnd = list + n;
+	size_t nInts = 1; // for the count of alignments
+	for ( ; list != pEnd; ++list ) {
+		nInts += 12; // flag_mapQ, refId, pos, NM, AS, XS, nCigOps, nMDchars, nXAchars, mate rid, mate pos, tlen
+		nInts += list->n_cigar;
+		if ( list->n_cigar ) nInts += (strlen((char*)(list->cigar + list->n_cigar)) + 3) >> 2;
+		if ( list->XA ) nInts += (strlen(list->XA) + 3) >> 2;
+	}
+	return nInts;
+}
+
+static int32_t* reserveResults( jnibwa_results_t* pResults, int id, size_t nInts ) {
+	size_t offset = __sync_fetch_and_add(&pResults->nUsed, nInts);
+	if ( offset + nInts <= pResults->nInts ) {
+		pResults->pOffsets[id] = offset;
+		return pResults->pMem + offset;
+	}
+	int32_t* pSpill = malloc(nInts*sizeof(int32_t));
+	pResults->ppSpill[id] = pSpill;
+	return pSpill;
+}
+
+static inline int32_t* putTag( char const* tag, int32_t len, int32_t* pOut ) {
+	*pOut++ = len;
+	if ( len ) {
+		int32_t nInts = (len + 3) >> 2;
+		pOut[nInts - 1] = 0; // zero the padding
+		memcpy(pOut, tag, len);
+		pOut += nInts;
+	}
+	return pOut;
+}
+
 static void fmt_BAMish(mem_opt_t const* opt, bntseq_t const* bns, kstring_t *str, bseq1_t *s, int n, mem_aln_t const* list, int which, mem_aln_t const* p, mem_aln_t const* m) {
+	jnibwa_results_t* pResults = &seqBatch(s)->results;
+	int32_t* pOut;
 	if ( !which ) {
-		size_t nInts = 12; // for space planning, assume mapped, unpaired reads with 3 cigar ops and an 8 character MD
-		if ( p->flag & 0x1 ) nInts += 3; // if paired, add in enough space for mate info
-		ks_resize(str, (n*nInts+1)*sizeof(int32_t));
-		kput32(n, str);
+		pOut = reserveResults(pResults, s->id, alnsLen(n, list));
+		*pOut++ = n;
+	} else {
+		pOut = pResults->ppNext[s->id];
 	}
 	int32_t flag_mapQ = p->flag;
 	if ( p->flag & 0x10000 ) flag_mapQ |= 0x100;
 	flag_mapQ = (flag_mapQ << 16) | (p->mapq & 0xff);
-	kput32(flag_mapQ, str);
+	*pOut++ = flag_mapQ;
 	if ( !(p->flag & 0x4) ) {
-		kput32(p->rid, str);
-		kput32(p->pos, str);
-		kput32(p->NM, str);
-		kput32(p->score, str);
-		kput32(p->sub, str);
+		*pOut++ = p->rid;
+		*pOut++ = p->pos;
+		*pOut++ = p->NM;
+		*pOut++ = p->score;
+		*pOut++ = p->sub;
 		int32_t nCig = p->n_cigar;
-		kput32(nCig, str);
+		*pOut++ = nCig;
 		uint32_t* pCig = p->cigar;
 		while ( nCig-- ) {
 			uint32_t lenOp = *pCig++;
 			// op is encoded as MIDSH in a mem_aln_t, but as MIDNSH in a BAM
 			if ( (lenOp & 0xf) > 2 ) ++lenOp;
-			kput32(lenOp, str);
-		}
-		int32_t nMD = p->n_cigar ? strlen((char*)pCig) : 0;
-		kput32(nMD, str);
-		if ( nMD )
-			kputsn((char*)pCig, (nMD+3)&~3, str);
-		int32_t nXA = p->XA ? strlen(p->XA) : 0;
-		kput32(nXA, str);
-		if ( nXA ) {
-			kputsn(p->XA, (nXA+3)&~3, str);
+			*pOut++ = lenOp;
 		}
+		pOut = putTag((char*)pCig, p->n_cigar ? strlen((char*)pCig) : 0, pOut);
+		pOut = putTag(p->XA, p->XA ? strlen(p->XA) : 0, pOut);
 	}
 	if ( (p->flag & 0x9) == 1 ) {
-		kput32(m->rid, str);
-		kput32(m->pos, str);
-		if ( (p->flag & 0x4) || p->rid != m->rid ) kput32(0, str);
+		*pOut++ = m->rid;
+		*pOut++ = m->pos;
+		if ( (p->flag & 0x4) || p->rid != m->rid ) *pOut++ = 0;
 		// the next two lines represent my interpretation of the SAM spec
-		// else if ( p->pos < m->pos ) kput32(m->pos+cigarRefLen(m->n_cigar, m->cigar)-p->pos, str);
-		// else kput32(m->pos-p->pos-cigarRefLen(p->n_cigar, p->cigar), str);
+		// else if ( p->pos < m->pos ) *pOut++ = m->pos+cigarRefLen(m->n_cigar, m->cigar)-p->pos;
+		// else *pOut++ = m->pos-p->pos-cigarRefLen(p->n_cigar, p->cigar);
 		// but BWA does something else which is very odd in the case of outies,
 		// but is faithfully reproduced below
 		else {
@@ -91,36 +155,84 @@ static void fmt_BAMish(mem_opt_t const* opt, bntseq_t const* bns, kstring_t *str
 			if ( p->is_rev ) p0 += cigarRefLen(p->n_cigar, p->cigar) - 1;
 			long m0 = m->pos;
 			if ( m->is_rev ) m0 += cigarRefLen(m->n_cigar, m->cigar) - 1;
-			kput32(m0 - p0 + (p0 > m0 ? -1 : p0 < m0 ? 1 : 0), str);
+			*pOut++ = m0 - p0 + (p0 > m0 ? -1 : p0 < m0 ? 1 : 0);
 		}
 	}
+	pResults->ppNext[s->id] = pOut;
 }
 
-static size_t bufLen( int32_t* pBuf ) {
-	size_t totLen = 1;
-	size_t nAligns = *pBuf++;
-	while ( nAligns-- ) {
-		int32_t flag = *pBuf++ >> 16;
-		totLen += 1; // for flags
-		if ( !(flag & 0x4) ) {
-			totLen += 8; // refId, pos, NM, AS, XS, nCigOps, nMDchars, nXAchars
-			pBuf += 5;
-			int32_t nCig = *pBuf++;
-			totLen += nCig;
-			pBuf += nCig;
-			int32_t nMD = (*pBuf++ + 3) >> 2;
-			totLen += nMD;
-			pBuf += nMD;
-			int32_t nXA = (*pBuf++ + 3) >> 2;
-			totLen += nXA;
-			pBuf += nXA;
+// set up the results region:  use the caller's memory, if supplied and big enough for the header,
+// otherwise allocate a region that we hope is big enough
+static void createResults( jnibwa_batch_t* pBatch, uint32_t nSeqs, size_t nBases, void* pOut, size_t outCapacity ) {
+	jnibwa_results_t* pResults = &pBatch->results;
+	size_t nHeaderInts = RESULTS_HEADER_INTS;
+	pResults->nUsed = nHeaderInts + nSeqs;
+	if ( pOut && outCapacity/sizeof(int32_t) >= pResults->nUsed ) {
+		pResults->nInts = outCapacity/sizeof(int32_t);
+		pResults->pMem = pOut;
+		pResults->isCallers = 1;
+	} else {
+		pResults->nInts = pResults->nUsed + nSeqs*EST_INTS_PER_SEQ + nBases/8;
+		pResults->pMem = malloc(pResults->nInts*sizeof(int32_t));
+	}
+	pResults->pMem[0] = nSeqs;
+	pResults->pMem[1] = nHeaderInts;
+	memset(pResults->pMem + COUNTS_OFFSET, 0, JNIBWA_N_COUNTS*sizeof(int32_t));
+	pResults->pOffsets = pResults->pMem + nHeaderInts;
+	// a sequence that never gets formatted keeps the sentinel, rather than whatever was left in a recycled buffer
+	memset(pResults->pOffsets, 0, nSeqs*sizeof(int32_t)); // i.e., NO_RESULTS_OFFSET
+}
+
+// gather any spilled results into the region, and trim it to size
+// returns the region, which the caller now owns (if it didn't already), and frees everything else
+// if the caller's region was too small, we return a newly allocated region
+// if we can't get the memory to gather the spilled results, we free everything (except the caller's region), and
+// return 0
+static int32_t* finishBatch( jnibwa_batch_t* pBatch, uint32_t nSeqs, size_t* pBufSize ) {
+	jnibwa_results_t* pResults = &pBatch->results;
+	size_t nInts = pResults->nUsed < pResults->nInts ? pResults->nUsed : pResults->nInts;
+	size_t nSpilledInts = 0;
+	uint32_t idx;
+	for ( idx = 0; idx != nSeqs; ++idx ) {
+		if ( pResults->ppSpill[idx] ) nSpilledInts += pResults->ppNext[idx] - pResults->ppSpill[idx];
+	}
+	int32_t* pMem = pResults->pMem;
+	if ( !pResults->isCallers ) {
+		pMem = realloc(pMem, (nInts + nSpilledInts)*sizeof(int32_t));
+		if ( !pMem ) {
+			// the old region is untouched:  that's fine if we were shrinking it, but it's too small if we were growing it
+			if ( nSpilledInts ) free(pResults->pMem);
+			else pMem = pResults->pMem;
 		}
-		if ( (flag & 0x9) == 1 ) {
-			totLen += 3; // mate rid, mate pos, tlen
-			pBuf += 3;
+	} else if ( nSpilledInts ) {
+		pMem = malloc((nInts + nSpilledInts)*sizeof(int32_t));
+		if ( pMem ) memcpy(pMem, pResults->pMem, nInts*sizeof(int32_t));
+	}
+	if ( nSpilledInts ) {
+		int32_t* pOffsets = pMem ? pMem + pMem[1] : 0;
+		for ( idx = 0; idx != nSeqs; ++idx ) {
+			int32_t* pSpill = pResults->ppSpill[idx];
+			if ( pSpill ) {
+				if ( pMem ) {
+					size_t len = pResults->ppNext[idx] - pSpill;
+					memcpy(pMem + nInts, pSpill, len*sizeof(int32_t));
+					pOffsets[idx] = nInts;
+					nInts += len;
+				}
+				free(pSpill);
+			}
 		}
 	}
-	return totLen;
+	bseq1_t* pSeq1 = pBatch->seqs;
+	bseq1_t* pSeq1End = pSeq1 + nSeqs;
+	for ( ; pSeq1 != pSeq1End; ++pSeq1 ) {
+		free(pSeq1->sam); // bwa may have handed us an empty buffer
+	}
+	if ( !pBatch->fromContext ) free(pBatch);
+	if ( !pMem ) return 0;
+	pMem[2] = nInts;
+	*pBufSize = nInts*sizeof(int32_t);
+	return pMem;
 }
 
 int jnibwa_createIndexFile( char const* refName, char const* imgName ) {
@@ -194,42 +306,1802 @@ void* jnibwa_getRefContigNames( bwaidx_t* pIdx, size_t* pBufSize ) {
 	return bufMem;
 }
 
-void* jnibwa_createAlignments( bwaidx_t* pIdx, mem_opt_t* pOpts, mem_pestat_t* pPestat, char* pSeq, size_t* pBufSize) {
-	char c = 0;
-	char* emptyString = &c;
+// returns the number of contigs, and, if pOut isn't null, writes the length of each one there
+int jnibwa_getRefContigLengths( bwaidx_t* pIdx, int32_t* pOut ) {
+	int idx;
+	if ( pOut ) {
+		for ( idx = 0; idx != pIdx->bns->n_seqs; ++idx ) pOut[idx] = pIdx->bns->anns[idx].len;
+	}
+	return pIdx->bns->n_seqs;
+}
+
+// the same bookkeeping that bwa keeps for each of its threads as it finds seeds
+// (this is bwa's smem_aux_t, which is private to bwamem.c:  it's been stable for years, but keep an eye on it)
+typedef struct {
+	bwtintv_v mem, mem1, *tmpv[2];
+} jnibwa_aux_t;
+
+static jnibwa_aux_t* createAux() {
+	jnibwa_aux_t* pAux = calloc(1, sizeof(jnibwa_aux_t));
+	pAux->tmpv[0] = calloc(1, sizeof(bwtintv_v));
+	pAux->tmpv[1] = calloc(1, sizeof(bwtintv_v));
+	return pAux;
+}
+
+static void destroyAux( jnibwa_aux_t* pAux ) {
+	free(pAux->tmpv[0]->a); free(pAux->tmpv[0]);
+	free(pAux->tmpv[1]->a); free(pAux->tmpv[1]);
+	free(pAux->mem.a); free(pAux->mem1.a);
+	free(pAux);
+}
+
+static size_t auxSize( jnibwa_aux_t const* pAux ) {
+	return sizeof(jnibwa_aux_t) + 2*sizeof(bwtintv_v) +
+		(pAux->mem.m + pAux->mem1.m + pAux->tmpv[0]->m + pAux->tmpv[1]->m)*sizeof(bwtintv_t);
+}
+
+// scratch space that an aligner keeps from one batch to the next, so that steady-state alignment doesn't keep
+// allocating and freeing the same buffers:  the batch's array of sequences, the array of regions for each sequence,
+// and each thread's seeding bookkeeping
+// (bwa allocates the chains, and each sequence's regions, for itself, so those aren't ours to keep)
+// a batch uses the context if it's free, and otherwise allocates its own scratch space, as it would without one
+// when a batch is done with the context, it's trimmed back to nothing if it's retaining more than maxBytes
+struct jnibwa_context {
+	pthread_mutex_t lock; // held by the batch that's using the context
+	size_t maxBytes;
+	jnibwa_batch_t* pBatch;
+	size_t batchBytes;
+	mem_alnreg_v* pRegs;
+	size_t nRegs;
+	jnibwa_aux_t** ppAux;
+	int nAux;
+};
+
+jnibwa_context_t* jnibwa_createContext( size_t maxBytes ) {
+	jnibwa_context_t* pCtx = calloc(1, sizeof(jnibwa_context_t));
+	if ( !pCtx ) return 0;
+	pthread_mutex_init(&pCtx->lock, 0);
+	pCtx->maxBytes = maxBytes;
+	return pCtx;
+}
+
+static size_t contextSize( jnibwa_context_t const* pCtx ) {
+	size_t nBytes = pCtx->batchBytes + pCtx->nRegs*sizeof(mem_alnreg_v) + pCtx->nAux*sizeof(jnibwa_aux_t*);
+	int idx;
+	for ( idx = 0; idx != pCtx->nAux; ++idx ) nBytes += auxSize(pCtx->ppAux[idx]);
+	return nBytes;
+}
+
+static void trimContext( jnibwa_context_t* pCtx ) {
+	int idx;
+	for ( idx = 0; idx != pCtx->nAux; ++idx ) destroyAux(pCtx->ppAux[idx]);
+	free(pCtx->ppAux); pCtx->ppAux = 0; pCtx->nAux = 0;
+	free(pCtx->pRegs); pCtx->pRegs = 0; pCtx->nRegs = 0;
+	free(pCtx->pBatch); pCtx->pBatch = 0; pCtx->batchBytes = 0;
+}
+
+// returns the context, if it's free, otherwise 0
+static jnibwa_context_t* acquireContext( jnibwa_context_t* pCtx ) {
+	return pCtx && !pthread_mutex_trylock(&pCtx->lock) ? pCtx : 0;
+}
+
+static void releaseContext( jnibwa_context_t* pCtx ) {
+	if ( !pCtx ) return;
+	if ( contextSize(pCtx) > pCtx->maxBytes ) trimContext(pCtx);
+	pthread_mutex_unlock(&pCtx->lock);
+}
+
+void jnibwa_setContextLimit( jnibwa_context_t* pCtx, size_t maxBytes ) {
+	pthread_mutex_lock(&pCtx->lock);
+	pCtx->maxBytes = maxBytes;
+	if ( contextSize(pCtx) > maxBytes ) trimContext(pCtx);
+	pthread_mutex_unlock(&pCtx->lock);
+}
+
+size_t jnibwa_getContextSize( jnibwa_context_t* pCtx ) {
+	pthread_mutex_lock(&pCtx->lock);
+	size_t nBytes = contextSize(pCtx);
+	pthread_mutex_unlock(&pCtx->lock);
+	return nBytes;
+}
+
+void jnibwa_trimContext( jnibwa_context_t* pCtx ) {
+	pthread_mutex_lock(&pCtx->lock);
+	trimContext(pCtx);
+	pthread_mutex_unlock(&pCtx->lock);
+}
+
+// waits for any batch that's using the context to finish with it
+void jnibwa_destroyContext( jnibwa_context_t* pCtx ) {
+	pthread_mutex_lock(&pCtx->lock);
+	trimContext(pCtx);
+	pthread_mutex_unlock(&pCtx->lock);
+	pthread_mutex_destroy(&pCtx->lock);
+	free(pCtx);
+}
+
+// allocate a batch of nSeqs sequences (from the context's scratch space, if we have a context)
+static jnibwa_batch_t* createBatch( jnibwa_context_t* pCtx, uint32_t nSeqs ) {
+	size_t nBytes = sizeof(jnibwa_batch_t) + nSeqs*(sizeof(bseq1_t) + 2*sizeof(int32_t*));
+	jnibwa_batch_t* pBatch;
+	if ( !pCtx ) {
+		pBatch = calloc(1, nBytes);
+	} else {
+		if ( pCtx->batchBytes < nBytes ) {
+			free(pCtx->pBatch);
+			pCtx->pBatch = malloc(nBytes);
+			pCtx->batchBytes = nBytes;
+		}
+		pBatch = pCtx->pBatch;
+		memset(pBatch, 0, nBytes);
+		pBatch->fromContext = 1;
+	}
+	pBatch->results.ppNext = (int32_t**)(pBatch->seqs + nSeqs);
+	pBatch->results.ppSpill = pBatch->results.ppNext + nSeqs;
+	return pBatch;
+}
+
+// a zeroed array of regions for nSeqs sequences (from the context, if we have one)
+static mem_alnreg_v* createRegs( jnibwa_context_t* pCtx, uint32_t nSeqs ) {
+	if ( !pCtx ) return calloc(nSeqs ? nSeqs : 1, sizeof(mem_alnreg_v));
+	if ( pCtx->nRegs < nSeqs ) {
+		free(pCtx->pRegs);
+		pCtx->pRegs = malloc(nSeqs*sizeof(mem_alnreg_v));
+		pCtx->nRegs = nSeqs;
+	}
+	memset(pCtx->pRegs, 0, nSeqs*sizeof(mem_alnreg_v));
+	return pCtx->pRegs;
+}
+
+static void destroyRegs( jnibwa_context_t* pCtx, mem_alnreg_v* pRegs ) {
+	if ( !pCtx ) free(pRegs);
+}
+
+// bookkeeping for each of nThreads threads (from the context, if we have one)
+static jnibwa_aux_t** createAuxes( jnibwa_context_t* pCtx, int nThreads ) {
+	jnibwa_aux_t** ppAux;
+	int idx;
+	if ( !pCtx ) {
+		ppAux = malloc(nThreads*sizeof(jnibwa_aux_t*));
+		for ( idx = 0; idx != nThreads; ++idx ) ppAux[idx] = createAux();
+		return ppAux;
+	}
+	if ( pCtx->nAux < nThreads ) {
+		pCtx->ppAux = realloc(pCtx->ppAux, nThreads*sizeof(jnibwa_aux_t*));
+		for ( ; pCtx->nAux != nThreads; ++pCtx->nAux ) pCtx->ppAux[pCtx->nAux] = createAux();
+	}
+	return pCtx->ppAux;
+}
+
+static void destroyAuxes( jnibwa_context_t* pCtx, jnibwa_aux_t** ppAux, int nThreads ) {
+	int idx;
+	if ( pCtx ) return;
+	for ( idx = 0; idx != nThreads; ++idx ) destroyAux(ppAux[idx]);
+	free(ppAux);
+}
+
+// bwa's seeds and chains (mem_seed_t, mem_chain_t, and mem_chain_v, which are private to bwamem.c, like smem_aux_t)
+typedef struct {
+	int64_t rbeg;
+	int32_t qbeg, len;
+	int score;
+} jnibwa_seed_t;
+
+typedef struct {
+	int n, m, first, rid;
+	uint32_t w:29, kept:2, is_alt:1;
+	float frac_rep;
+	int64_t pos;
+	jnibwa_seed_t* seeds;
+} jnibwa_chain_t;
+
+typedef struct {
+	size_t n, m;
+	jnibwa_chain_t* a;
+} jnibwa_chain_v;
+
+// these are public in bwa, but they're not declared in its headers
+extern mem_alnreg_v mem_align1_core( const mem_opt_t* opt, const bwt_t* bwt, const bntseq_t* bns, const uint8_t* pac,
+										int l_seq, char* seq, void* buf );
+extern int mem_mark_primary_se( const mem_opt_t* opt, int n, mem_alnreg_t* a, int64_t id );
+extern void mem_reorder_primary5( int T, mem_alnreg_v* a );
+extern jnibwa_chain_v mem_chain( const mem_opt_t* opt, const bwt_t* bwt, const bntseq_t* bns, int len,
+									const uint8_t* seq, void* buf );
+extern int mem_chain_flt( const mem_opt_t* opt, int n_chn, jnibwa_chain_t* a );
+extern void mem_flt_chained_seeds( const mem_opt_t* opt, const bntseq_t* bns, const uint8_t* pac, int l_query,
+									const uint8_t* query, int n_chn, jnibwa_chain_t* a );
+extern void mem_chain2aln( const mem_opt_t* opt, const bntseq_t* bns, const uint8_t* pac, int l_query,
+							const uint8_t* query, const jnibwa_chain_t* c, mem_alnreg_v* av );
+extern int mem_sort_dedup_patch( const mem_opt_t* opt, const bntseq_t* bns, const uint8_t* pac, uint8_t* query,
+									int n, mem_alnreg_t* a );
+extern int mem_sam_pe( const mem_opt_t* opt, const bntseq_t* bns, const uint8_t* pac, const mem_pestat_t pes[4],
+						uint64_t id, bseq1_t s[2], mem_alnreg_v a[2] );
+extern void kt_for( int n_threads, void (*func)(void*,int,int), void* data, int n );
+
+// a persistent pool of threads that help with parallel loops, so that we don't create and join a new set of threads
+// for every batch, as bwa's kt_for does
+// a loop is run by its caller (as thread 0) with help from as many pool threads as are free, up to maxThreads-1
+// helpers join a loop in the order that loops are started, and each participant grabs the next index to do
+typedef struct jnibwa_loop {
+	struct jnibwa_loop* pNext;
+	void (*func)(void*,int,int);
+	void* pData;
+	int n;
+	int maxThreads;
+	int nJoined;   // participants so far, including the caller
+	int nFinished; // helpers that are done
+	int next;      // next index to do
+} jnibwa_loop_t;
+
+typedef struct {
+	pthread_mutex_t lock;
+	pthread_cond_t loopStarted;
+	pthread_cond_t helperFinished;
+	jnibwa_loop_t* pLoops; // loops that could use more help
+	int nUsers;            // callers currently running loops with our help
+	int shutdown;
+	int nThreads;
+	pthread_t threads[];
+} jnibwa_pool_t;
+
+static pthread_mutex_t gPoolLock = PTHREAD_MUTEX_INITIALIZER;
+static jnibwa_pool_t* gpPool;
+
+static void runLoop( jnibwa_loop_t* pLoop, int tid ) {
+	int idx;
+	while ( (idx = __sync_fetch_and_add(&pLoop->next, 1)) < pLoop->n ) {
+		pLoop->func(pLoop->pData, idx, tid);
+	}
+}
+
+static void unlinkLoop( jnibwa_pool_t* pPool, jnibwa_loop_t* pLoop ) {
+	jnibwa_loop_t** ppLoop = &pPool->pLoops;
+	while ( *ppLoop && *ppLoop != pLoop ) ppLoop = &(*ppLoop)->pNext;
+	if ( *ppLoop ) *ppLoop = pLoop->pNext;
+}
+
+static void* poolWorker( void* pArg ) {
+	jnibwa_pool_t* pPool = pArg;
+	pthread_mutex_lock(&pPool->lock);
+	while ( 1 ) {
+		while ( !pPool->shutdown && !pPool->pLoops ) pthread_cond_wait(&pPool->loopStarted, &pPool->lock);
+		if ( pPool->shutdown ) break;
+		jnibwa_loop_t* pLoop = pPool->pLoops;
+		int tid = pLoop->nJoined++;
+		if ( pLoop->nJoined == pLoop->maxThreads ) unlinkLoop(pPool, pLoop);
+		pthread_mutex_unlock(&pPool->lock);
+		runLoop(pLoop, tid);
+		pthread_mutex_lock(&pPool->lock);
+		pLoop->nFinished += 1;
+		pthread_cond_broadcast(&pPool->helperFinished);
+	}
+	pthread_mutex_unlock(&pPool->lock);
+	return 0;
+}
+
+// run func(pData, idx, tid) for each idx in [0,n) using up to nThreads threads
+// tid is in [0,nThreads), and no two threads share a tid at the same time
+// we use the pool, if there is one, otherwise we fall back on bwa's kt_for
+static void parallelFor( int nThreads, void (*func)(void*,int,int), void* pData, int n ) {
+	if ( nThreads <= 1 || n <= 1 ) {
+		int idx;
+		for ( idx = 0; idx < n; ++idx ) func(pData, idx, 0);
+		return;
+	}
+	pthread_mutex_lock(&gPoolLock);
+	jnibwa_pool_t* pPool = gpPool;
+	if ( pPool ) {
+		pthread_mutex_lock(&pPool->lock);
+		pPool->nUsers += 1;
+		pthread_mutex_unlock(&pPool->lock);
+	}
+	pthread_mutex_unlock(&gPoolLock);
+	if ( !pPool ) {
+		kt_for(nThreads, func, pData, n);
+		return;
+	}
+	jnibwa_loop_t loop;
+	memset(&loop, 0, sizeof(loop));
+	loop.func = func;
+	loop.pData = pData;
+	loop.n = n;
+	loop.maxThreads = nThreads;
+	loop.nJoined = 1;
+	pthread_mutex_lock(&pPool->lock);
+	jnibwa_loop_t** ppLoop = &pPool->pLoops;
+	while ( *ppLoop ) ppLoop = &(*ppLoop)->pNext;
+	*ppLoop = &loop;
+	pthread_cond_broadcast(&pPool->loopStarted);
+	pthread_mutex_unlock(&pPool->lock);
+
+	runLoop(&loop, 0);
+
+	pthread_mutex_lock(&pPool->lock);
+	unlinkLoop(pPool, &loop);
+	while ( loop.nFinished != loop.nJoined - 1 ) pthread_cond_wait(&pPool->helperFinished, &pPool->lock);
+	pPool->nUsers -= 1;
+	pthread_cond_broadcast(&pPool->helperFinished);
+	pthread_mutex_unlock(&pPool->lock);
+}
+
+int jnibwa_startPool( int nThreads ) {
+	if ( nThreads < 1 ) return 0;
+	pthread_mutex_lock(&gPoolLock);
+	if ( gpPool ) {
+		pthread_mutex_unlock(&gPoolLock);
+		return 0;
+	}
+	jnibwa_pool_t* pPool = calloc(1, sizeof(jnibwa_pool_t) + nThreads*sizeof(pthread_t));
+	if ( pPool ) {
+		pthread_mutex_init(&pPool->lock, 0);
+		pthread_cond_init(&pPool->loopStarted, 0);
+		pthread_cond_init(&pPool->helperFinished, 0);
+		for ( ; pPool->nThreads != nThreads; ++pPool->nThreads ) {
+			if ( pthread_create(&pPool->threads[pPool->nThreads], 0, poolWorker, pPool) ) break;
+		}
+		if ( pPool->nThreads ) {
+			gpPool = pPool;
+		} else {
+			free(pPool);
+			pPool = 0;
+		}
+	}
+	pthread_mutex_unlock(&gPoolLock);
+	return pPool ? pPool->nThreads : 0;
+}
+
+int jnibwa_getPoolSize() {
+	pthread_mutex_lock(&gPoolLock);
+	int nThreads = gpPool ? gpPool->nThreads : 0;
+	pthread_mutex_unlock(&gPoolLock);
+	return nThreads;
+}
+
+// new loops won't use the pool once we've started shutting it down
+// the threads finish whatever they're helping with, and we wait for loops in progress to complete
+void jnibwa_stopPool() {
+	pthread_mutex_lock(&gPoolLock);
+	jnibwa_pool_t* pPool = gpPool;
+	gpPool = 0;
+	pthread_mutex_unlock(&gPoolLock);
+	if ( !pPool ) return;
+	pthread_mutex_lock(&pPool->lock);
+	pPool->shutdown = 1;
+	pthread_cond_broadcast(&pPool->loopStarted);
+	pthread_mutex_unlock(&pPool->lock);
+	int idx;
+	for ( idx = 0; idx != pPool->nThreads; ++idx ) pthread_join(pPool->threads[idx], 0);
+	pthread_mutex_lock(&pPool->lock);
+	while ( pPool->nUsers ) pthread_cond_wait(&pPool->helperFinished, &pPool->lock);
+	pthread_mutex_unlock(&pPool->lock);
+	pthread_cond_destroy(&pPool->helperFinished);
+	pthread_cond_destroy(&pPool->loopStarted);
+	pthread_mutex_destroy(&pPool->lock);
+	free(pPool);
+}
+
+typedef struct {
+	mem_opt_t const* pOpts;
+	jnibwa_xopt_t const* pXOpts; // may be null
+	bwaidx_t const* pIdx;
+	bseq1_t* pSeqs;
+	mem_alnreg_v* pRegs;
+	mem_pestat_t const* pPestat;
+	jnibwa_aux_t** ppAux; // one for each thread
+	int* pOrder;          // the order in which to do the jobs, or 0 to do them in input order
+	int32_t* pCounts;     // where to count the short cuts taken (JNIBWA_N_COUNTS of them), or 0 not to count
+	int32_t const volatile* pCancel; // the batch is abandoned when this goes non-zero (may be null)
+} jnibwa_worker_t;
+
+static inline int isCancelled( jnibwa_worker_t const* pW ) {
+	return pW->pCancel && *pW->pCancel;
+}
+
+// recode a sequence in place, as mem_align1_core would
+static void recodeSeq( int l_seq, char* seq ) {
+	int idx;
+	for ( idx = 0; idx != l_seq; ++idx ) {
+		seq[idx] = seq[idx] < 4 ? seq[idx] : nst_nt4_table[(int)seq[idx]];
+	}
+}
+
+// the exact-match fast path:  if the whole sequence occurs exactly once in the reference (on either strand), and
+// doesn't straddle contigs, then its only region is the whole thing, and there's no need to seed, chain, or extend
+// the region is made up just as bwa would have made it, so the rest of the pipeline is none the wiser
+// returns 0 if the fast path doesn't apply
+static int findExactRegion( mem_opt_t const* pOpts, bwaidx_t const* pIdx, int l_seq, char* seq, mem_alnreg_v* pRegs ) {
+	if ( l_seq <= 0 ) return 0;
+	recodeSeq(l_seq, seq);
+	bwtint_t saBeg, saEnd;
+	if ( bwt_match_exact(pIdx->bwt, l_seq, (ubyte_t const*)seq, &saBeg, &saEnd) != 1 ) return 0;
+	int64_t rb = bwt_sa(pIdx->bwt, saBeg);
+	int rid = bns_intv2rid(pIdx->bns, rb, rb + l_seq);
+	if ( rid < 0 ) return 0;
+	mem_alnreg_t* pReg = calloc(1, sizeof(mem_alnreg_t));
+	pReg->rb = rb;
+	pReg->re = rb + l_seq;
+	pReg->qb = 0;
+	pReg->qe = l_seq;
+	pReg->rid = rid;
+	pReg->score = pReg->truesc = l_seq*pOpts->a;
+	pReg->w = pOpts->w;
+	pReg->seedcov = l_seq;
+	pReg->secondary = pReg->secondary_all = -1;
+	pReg->seedlen0 = l_seq;
+	pReg->is_alt = !!pIdx->bns->anns[rid].is_alt;
+	pRegs->n = pRegs->m = 1;
+	pRegs->a = pReg;
+	return 1;
+}
+
+// the pre-filter:  could bwa find a seed for this sequence?  we look for probes of min_seed_len bases, spaced so
+// that any exact match long enough to score T all by itself contains one of them
+// a sequence that fails might still have had a few shorter seeds, but (unless it's very divergent from the
+// reference) it wouldn't have made an alignment worth reporting from them
+// the sequence is recoded in place
+static int mayHaveSeed( mem_opt_t const* pOpts, bwaidx_t const* pIdx, int l_seq, char* seq ) {
+	int probeLen = pOpts->min_seed_len;
+	if ( probeLen <= 0 ) return 1;
+	if ( l_seq < probeLen ) return 0; // bwa couldn't seed it either
+	recodeSeq(l_seq, seq);
+	int minMatchLen = pOpts->a > 0 ? (pOpts->T + pOpts->a - 1)/pOpts->a : probeLen;
+	int stride = minMatchLen - probeLen + 1;
+	if ( stride < 1 ) stride = 1;
+	int start;
+	for ( start = l_seq - probeLen; ; start -= stride ) {
+		if ( start < 0 ) start = 0;
+		bwtint_t saBeg, saEnd;
+		if ( bwt_match_exact(pIdx->bwt, probeLen, (ubyte_t const*)seq + start, &saBeg, &saEnd) ) return 1;
+		if ( !start ) return 0;
+	}
+}
+
+// a cheap measure of the work of aligning a sequence:  the total number of times that its non-overlapping,
+// seed-length probes occur in the reference (low-complexity and repetitive sequences have lots of them, and those
+// become lots of chains to extend)
+// the sequence must already have been recoded
+static int64_t countProbeOccs( mem_opt_t const* pOpts, bwaidx_t const* pIdx, int l_seq, char const* seq ) {
+	int probeLen = pOpts->min_seed_len;
+	int64_t nOccs = 0;
+	int start;
+	if ( probeLen <= 0 ) return 0;
+	for ( start = 0; start + probeLen <= l_seq; start += probeLen ) {
+		bwtint_t saBeg, saEnd;
+		nOccs += bwt_match_exact(pIdx->bwt, probeLen, (ubyte_t const*)seq + start, &saBeg, &saEnd);
+	}
+	return nOccs;
+}
+
+// options for aligning a sequence that's over budget:  no re-seeding, fewer hits per seed, and fewer chains extended
+#define CHEAP_MAX_OCC 20
+#define CHEAP_MAX_CHAIN_EXTEND 4
+static void cheapenOpts( mem_opt_t* pOpts ) {
+	if ( pOpts->max_occ > CHEAP_MAX_OCC ) pOpts->max_occ = CHEAP_MAX_OCC;
+	if ( pOpts->max_chain_extend > CHEAP_MAX_CHAIN_EXTEND ) pOpts->max_chain_extend = CHEAP_MAX_CHAIN_EXTEND;
+	pOpts->split_width = 0; // every SMEM has more than this many hits, so none is re-seeded
+	pOpts->max_mem_intv = 0; // and there's no 3rd round of seeding
+}
+
+static inline void countShortCut( int32_t* pCounts, int which ) {
+	if ( pCounts ) __sync_fetch_and_add(pCounts + which, 1);
+}
+
+// does [rb,re), in bwa's coordinates (where the reverse strand follows the forward strand), on contig rid, overlap
+// any of the targets?
+static int isOnTarget( jnibwa_targets_t const* pTargets, bntseq_t const* bns, int rid, int64_t rb, int64_t re ) {
+	if ( rid < 0 ) return 0;
+	if ( rb >= bns->l_pac ) { // flip it onto the forward strand
+		int64_t fb = (bns->l_pac << 1) - re;
+		re = (bns->l_pac << 1) - rb;
+		rb = fb;
+	}
+	rb -= bns->anns[rid].offset;
+	re -= bns->anns[rid].offset;
+	// find the last interval that starts before re:  the targets don't overlap, so it's the only one that might
+	// reach back past rb
+	jnibwa_interval_t const* pBeg = pTargets->intervals;
+	jnibwa_interval_t const* pEnd = pBeg + pTargets->nIntervals;
+	while ( pBeg != pEnd ) {
+		jnibwa_interval_t const* pMid = pBeg + (pEnd - pBeg)/2;
+		if ( pMid->rid < rid || (pMid->rid == rid && pMid->beg < re) ) pBeg = pMid + 1;
+		else pEnd = pMid;
+	}
+	if ( pBeg == pTargets->intervals ) return 0;
+	jnibwa_interval_t const* pInterval = pBeg - 1;
+	return pInterval->rid == rid && pInterval->end > rb;
+}
+
+static int isChainOnTarget( jnibwa_targets_t const* pTargets, bntseq_t const* bns, jnibwa_chain_t const* pChain ) {
+	int idx;
+	for ( idx = 0; idx != pChain->n; ++idx ) {
+		jnibwa_seed_t const* pSeed = pChain->seeds + idx;
+		if ( isOnTarget(pTargets, bns, pChain->rid, pSeed->rbeg, pSeed->rbeg + pSeed->len) ) return 1;
+	}
+	return 0;
+}
+
+// the first half of what bwa's mem_align1_core does:  find the SMEMs, chain them, and filter the chains (which
+// also weighs them, and sorts them, heaviest first)
+// if there are targets, the chains that don't touch any of them are dropped before filtering
+// the sequence is recoded in place
+static jnibwa_chain_v findChains( mem_opt_t const* pOpts, jnibwa_targets_t const* pTargets, bwaidx_t const* pIdx,
+									int l_seq, char* seq, jnibwa_aux_t* pAux, int32_t* pCounts ) {
+	bntseq_t const* bns = pIdx->bns;
+	recodeSeq(l_seq, seq);
+	jnibwa_chain_v chn = mem_chain(pOpts, pIdx->bwt, bns, l_seq, (uint8_t*)seq, pAux);
+	size_t idx, nKept = chn.n;
+	if ( pTargets ) {
+		nKept = 0;
+		for ( idx = 0; idx != chn.n; ++idx ) {
+			if ( isChainOnTarget(pTargets, bns, chn.a + idx) ) chn.a[nKept++] = chn.a[idx];
+			else free(chn.a[idx].seeds);
+		}
+		if ( chn.n && !nKept ) countShortCut(pCounts, JNIBWA_COUNT_OFF_TARGET);
+	}
+	chn.n = mem_chain_flt(pOpts, nKept, chn.a);
+	return chn;
+}
+
+// what bwa's mem_align1_core does, except that if there are targets, the chains that don't touch any of them are
+// dropped before they're extended
+// the sequence is recoded in place
+static mem_alnreg_v alignCore( mem_opt_t const* pOpts, jnibwa_targets_t const* pTargets, bwaidx_t const* pIdx,
+								int l_seq, char* seq, jnibwa_aux_t* pAux, int32_t* pCounts ) {
+	if ( !pTargets ) return mem_align1_core(pOpts, pIdx->bwt, pIdx->bns, pIdx->pac, l_seq, seq, pAux);
+	bntseq_t const* bns = pIdx->bns;
+	uint8_t* query = (uint8_t*)seq;
+	jnibwa_chain_v chn = findChains(pOpts, pTargets, pIdx, l_seq, seq, pAux, pCounts);
+	size_t idx;
+	mem_flt_chained_seeds(pOpts, bns, pIdx->pac, l_seq, query, chn.n, chn.a);
+	mem_alnreg_v regs;
+	regs.n = regs.m = 0;
+	regs.a = 0;
+	for ( idx = 0; idx != chn.n; ++idx ) {
+		mem_chain2aln(pOpts, bns, pIdx->pac, l_seq, query, chn.a + idx, &regs);
+		free(chn.a[idx].seeds);
+	}
+	free(chn.a);
+	regs.n = mem_sort_dedup_patch(pOpts, bns, pIdx->pac, query, regs.n, regs.a);
+	for ( idx = 0; idx != regs.n; ++idx ) {
+		mem_alnreg_t* pReg = regs.a + idx;
+		if ( pReg->rid >= 0 && bns->anns[pReg->rid].is_alt ) pReg->is_alt = 1;
+	}
+	return regs;
+}
+
+// find the alignment regions for one sequence
+// pXOpts and pCounts may be null
+static mem_alnreg_v alignRegions( mem_opt_t const* pOpts, jnibwa_xopt_t const* pXOpts, bwaidx_t const* pIdx,
+									int l_seq, char* seq, jnibwa_aux_t* pAux, int32_t* pCounts ) {
+	mem_alnreg_v regs;
+	int xflag = pXOpts ? pXOpts->flag : 0;
+	jnibwa_targets_t const* pTargets = pXOpts ? pXOpts->pTargets : 0;
+	if ( (xflag & JNIBWA_F_EXACT_MATCH) && findExactRegion(pOpts, pIdx, l_seq, seq, &regs) ) {
+		if ( pTargets && !isOnTarget(pTargets, pIdx->bns, regs.a->rid, regs.a->rb, regs.a->re) ) {
+			countShortCut(pCounts, JNIBWA_COUNT_OFF_TARGET);
+			free(regs.a);
+			regs.n = regs.m = 0;
+			regs.a = 0;
+			return regs;
+		}
+		countShortCut(pCounts, JNIBWA_COUNT_EXACT_MATCH);
+		return regs;
+	}
+	if ( (xflag & JNIBWA_F_PREFILTER) && !mayHaveSeed(pOpts, pIdx, l_seq, seq) ) {
+		countShortCut(pCounts, JNIBWA_COUNT_PREFILTERED);
+		regs.n = regs.m = 0;
+		regs.a = 0;
+		return regs; // no regions, so it'll be reported as unmapped
+	}
+	if ( pXOpts && pXOpts->maxProbeOccs > 0 ) {
+		recodeSeq(l_seq, seq);
+		if ( countProbeOccs(pOpts, pIdx, l_seq, seq) > pXOpts->maxProbeOccs ) {
+			countShortCut(pCounts, JNIBWA_COUNT_OVER_BUDGET);
+			if ( xflag & JNIBWA_F_OVER_BUDGET_UNMAPPED ) {
+				regs.n = regs.m = 0;
+				regs.a = 0;
+				return regs;
+			}
+			mem_opt_t cheapOpts = *pOpts;
+			cheapenOpts(&cheapOpts);
+			return alignCore(&cheapOpts, pTargets, pIdx, l_seq, seq, pAux, pCounts);
+		}
+	}
+	return alignCore(pOpts, pTargets, pIdx, l_seq, seq, pAux, pCounts);
+}
+
+// stage 1:  find the alignment regions for a sequence (or, when aligning pairs, for the idx'th pair)
+static void findRegions( void* pData, int idx, int tid ) {
+	jnibwa_worker_t* pW = pData;
+	bwaidx_t const* pIdx = pW->pIdx;
+	int nSeqs = (pW->pOpts->flag & MEM_F_PE) ? 2 : 1;
+	if ( pW->pOrder ) idx = pW->pOrder[idx];
+	bseq1_t* pSeq1 = pW->pSeqs + idx*nSeqs;
+	mem_alnreg_v* pRegs = pW->pRegs + idx*nSeqs;
+	if ( isCancelled(pW) ) { // don't bother:  the sequences will be reported as unmapped
+		memset(pRegs, 0, nSeqs*sizeof(mem_alnreg_v));
+		return;
+	}
+	while ( nSeqs-- ) {
+		*pRegs++ = alignRegions(pW->pOpts, pW->pXOpts, pIdx, pSeq1->l_seq, pSeq1->seq, pW->ppAux[tid], pW->pCounts);
+		pSeq1 += 1;
+	}
+}
+
+// stage 2:  choose the primary alignments (pairing the mates, if appropriate), and format the results
+static void formatRegions( void* pData, int idx, int tid ) {
+	jnibwa_worker_t* pW = pData;
+	mem_opt_t const* pOpts = pW->pOpts;
+	bwaidx_t const* pIdx = pW->pIdx;
+	if ( pW->pOrder ) idx = pW->pOrder[idx];
+	if ( isCancelled(pW) ) { // throw away the regions, and report the sequences as unmapped (which is quick)
+		int nSeqs = (pOpts->flag & MEM_F_PE) ? 2 : 1;
+		mem_alnreg_v* pRegs = pW->pRegs + idx*nSeqs;
+		int seq;
+		for ( seq = 0; seq != nSeqs; ++seq ) {
+			free(pRegs[seq].a);
+			memset(pRegs + seq, 0, sizeof(mem_alnreg_v));
+			countShortCut(pW->pCounts, JNIBWA_COUNT_CANCELLED);
+		}
+	}
+	if ( !(pOpts->flag & MEM_F_PE) ) {
+		mem_alnreg_v* pRegs = pW->pRegs + idx;
+		mem_mark_primary_se(pOpts, pRegs->n, pRegs->a, idx);
+		if ( pOpts->flag & MEM_F_PRIMARY5 ) mem_reorder_primary5(pOpts->T, pRegs);
+		mem_reg2sam(pOpts, pIdx->bns, pIdx->pac, pW->pSeqs + idx, pRegs, 0, 0);
+		free(pRegs->a); pRegs->a = 0;
+	} else {
+		mem_alnreg_v* pRegs = pW->pRegs + 2*idx;
+		mem_sam_pe(pOpts, pIdx->bns, pIdx->pac, pW->pPestat, idx, pW->pSeqs + 2*idx, pRegs);
+		free(pRegs[0].a); pRegs[0].a = 0;
+		free(pRegs[1].a); pRegs[1].a = 0;
+	}
+}
+
+// a cheap guess at the relative cost of aligning a sequence:  its length, doubled for each of a few evenly spaced
+// probes of seed length that occur more than once in the reference (repeats spawn lots of chains to extend)
+#define N_COST_PROBES 4
+static uint64_t guessCost( bwaidx_t const* pIdx, mem_opt_t const* pOpts, bseq1_t const* pSeq1 ) {
+	int probeLen = pOpts->min_seed_len;
+	uint64_t cost = pSeq1->l_seq;
+	if ( probeLen <= 0 || probeLen > pSeq1->l_seq ) return cost;
+	ubyte_t* pProbe = malloc(probeLen);
+	int probe, idx;
+	for ( probe = 0; probe != N_COST_PROBES; ++probe ) {
+		char const* pBase = pSeq1->seq + (int64_t)probe*(pSeq1->l_seq - probeLen)/(N_COST_PROBES - 1);
+		for ( idx = 0; idx != probeLen; ++idx ) pProbe[idx] = nst_nt4_table[(int)(unsigned char)pBase[idx]];
+		bwtint_t saBeg, saEnd;
+		if ( bwt_match_exact(pIdx->bwt, probeLen, pProbe, &saBeg, &saEnd) > 1 ) cost <<= 1;
+	}
+	free(pProbe);
+	return cost;
+}
+
+typedef struct {
+	uint64_t cost;
+	int idx;
+} jnibwa_job_cost_t;
+
+static int compareJobCosts( void const* pV1, void const* pV2 ) {
+	jnibwa_job_cost_t const* pCost1 = pV1;
+	jnibwa_job_cost_t const* pCost2 = pV2;
+	if ( pCost1->cost != pCost2->cost ) return pCost1->cost > pCost2->cost ? -1 : 1; // most expensive first
+	return pCost1->idx - pCost2->idx;
+}
+
+// the order in which to start the jobs so that the expensive ones don't straggle in at the end of the batch
+// (the threads grab jobs in order, so this is longest-processing-time-first scheduling)
+static int* orderJobs( bwaidx_t const* pIdx, mem_opt_t const* pOpts, bseq1_t const* pSeqs, int nJobs ) {
+	int seqsPerJob = (pOpts->flag & MEM_F_PE) ? 2 : 1;
+	jnibwa_job_cost_t* pCosts = malloc((nJobs ? nJobs : 1)*sizeof(jnibwa_job_cost_t));
+	int* pOrder = malloc((nJobs ? nJobs : 1)*sizeof(int));
+	int idx, seq;
+	for ( idx = 0; idx != nJobs; ++idx ) {
+		pCosts[idx].cost = 0;
+		pCosts[idx].idx = idx;
+		for ( seq = 0; seq != seqsPerJob; ++seq ) {
+			pCosts[idx].cost += guessCost(pIdx, pOpts, pSeqs + idx*seqsPerJob + seq);
+		}
+	}
+	qsort(pCosts, nJobs, sizeof(jnibwa_job_cost_t), compareJobCosts);
+	for ( idx = 0; idx != nJobs; ++idx ) pOrder[idx] = pCosts[idx].idx;
+	free(pCosts);
+	return pOrder;
+}
+
+// this does what bwa's mem_process_seqs does, except that we hang on to the pair-end stats
+// if pPestatIn is null, and we're aligning pairs, the stats are inferred from the batch
+// the stats used are returned in pPestatOut
+// if statsOnly is true, we stop after inferring the stats
+// if *pCancel goes non-zero, the rest of the batch is reported as unmapped (and the cancelled sequences are counted)
+// pXOpts may be null, and so may pCtx (which, if supplied, the caller has acquired), pCancel, and pCounts
+static void alignBatch( bwaidx_t const* pIdx, mem_opt_t const* pOpts, jnibwa_xopt_t const* pXOpts,
+						jnibwa_context_t* pCtx, int32_t const volatile* pCancel, int nSeqs, bseq1_t* pSeqs,
+						mem_pestat_t const* pPestatIn, mem_pestat_t pPestatOut[4], int statsOnly, int32_t* pCounts ) {
+	jnibwa_worker_t w;
+	int nThreads = pOpts->n_threads > 0 ? pOpts->n_threads : 1;
+	int nJobs = (pOpts->flag & MEM_F_PE) ? nSeqs >> 1 : nSeqs;
+	int idx;
+	w.pOpts = pOpts;
+	w.pXOpts = pXOpts;
+	w.pIdx = pIdx;
+	w.pSeqs = pSeqs;
+	w.pRegs = createRegs(pCtx, nSeqs);
+	w.pPestat = pPestatOut;
+	w.ppAux = createAuxes(pCtx, nThreads);
+	w.pCounts = pCounts;
+	w.pCancel = pCancel;
+	// the results go where they belong no matter what order the jobs are done in, and we still pass the original
+	// index to bwa (which uses it to break ties at random), so the order doesn't change the results
+	w.pOrder = pXOpts && (pXOpts->flag & JNIBWA_F_COST_ORDER) && nThreads > 1 ? orderJobs(pIdx, pOpts, pSeqs, nJobs) : 0;
+	parallelFor(nThreads, findRegions, &w, nJobs);
+	destroyAuxes(pCtx, w.ppAux, nThreads);
+	if ( pOpts->flag & MEM_F_PE ) {
+		if ( pPestatIn ) memcpy(pPestatOut, pPestatIn, 4*sizeof(mem_pestat_t));
+		else mem_pestat(pOpts, pIdx->bns->l_pac, nJobs << 1, w.pRegs, pPestatOut);
+	}
+	if ( !statsOnly ) {
+		parallelFor(nThreads, formatRegions, &w, nJobs);
+	} else {
+		for ( idx = 0; idx != nSeqs; ++idx ) free(w.pRegs[idx].a);
+	}
+	destroyRegs(pCtx, w.pRegs);
+	free(w.pOrder);
+}
+
+// fill a batch with the sequences in pSeq (a count, followed by length-prefixed, null-terminated sequences)
+static jnibwa_batch_t* parseBatch( jnibwa_context_t* pCtx, char* pSeq, uint32_t* pNSeqs, size_t* pNBases ) {
+	static char emptyString[1];
 	uint32_t nSeqs = *(uint32_t*)pSeq;
 	pSeq += sizeof(uint32_t);
-	bseq1_t* pSeq1Beg = calloc(nSeqs, sizeof(bseq1_t));
+	jnibwa_batch_t* pBatch = createBatch(pCtx, nSeqs);
+	bseq1_t* pSeq1Beg = pBatch->seqs;
 	bseq1_t* pSeq1End = pSeq1Beg+nSeqs;
 	bseq1_t* pSeq1;
+	size_t nBases = 0;
 	for ( pSeq1 = pSeq1Beg; pSeq1 != pSeq1End; ++pSeq1 ) {
-		size_t seqLen = strlen(pSeq);
+		int32_t seqLen;
+		memcpy(&seqLen, pSeq, sizeof(int32_t)); // lengths aren't necessarily aligned
+		pSeq += sizeof(int32_t);
 		pSeq1->l_seq = seqLen;
 		pSeq1->seq = pSeq;
 		pSeq1->name = emptyString;
 		pSeq1->id = pSeq1-pSeq1Beg;
 		pSeq += seqLen + 1;
+		nBases += seqLen;
 	}
+	*pNSeqs = nSeqs;
+	*pNBases = nBases;
+	return pBatch;
+}
 
-	mem_process_seqs(pOpts, pIdx->bwt, pIdx->bns, pIdx->pac, 0, nSeqs, pSeq1Beg, pPestat);
+// write the pair-end stats as 4 records of PESTAT_INTS int32_t's
+void jnibwa_putPestats( mem_pestat_t const* pPestat, int32_t* pOut ) {
+	int dir;
+	for ( dir = 0; dir != 4; ++dir, ++pPestat, pOut += PESTAT_INTS ) {
+		memcpy(pOut, &pPestat->avg, sizeof(double));
+		memcpy(pOut + 2, &pPestat->std, sizeof(double));
+		pOut[4] = pPestat->low;
+		pOut[5] = pPestat->high;
+		pOut[6] = pPestat->failed;
+		pOut[7] = 0;
+	}
+}
 
-	size_t nInts = 0;
-	for ( pSeq1 = pSeq1Beg; pSeq1 != pSeq1End; ++pSeq1 ) {
-		if ( pSeq1->sam ) nInts += bufLen((int32_t*)pSeq1->sam);
+// pCtx, if supplied, is used for scratch space (unless some other batch is using it)
+// pCancel, if supplied, is checked before each sequence (or pair) in each stage of the alignment:  once it's
+// non-zero, the remaining sequences are reported as unmapped, and counted in the results header as cancelled
+void* jnibwa_createAlignments( bwaidx_t* pIdx, mem_opt_t* pOpts, jnibwa_xopt_t const* pXOpts, jnibwa_context_t* pCtx,
+								int32_t const volatile* pCancel, mem_pestat_t* pPestat, char* pSeq, void* pOut, size_t outCapacity, size_t* pBufSize ) {
+	uint32_t nSeqs;
+	size_t nBases;
+	pCtx = acquireContext(pCtx);
+	jnibwa_batch_t* pBatch = parseBatch(pCtx, pSeq, &nSeqs, &nBases);
+	createResults(pBatch, nSeqs, nBases, pOut, outCapacity);
+
+	mem_pestat_t pestat[4];
+	memset(pestat, 0, sizeof(pestat));
+	int32_t* pHeader = pBatch->results.pMem;
+	alignBatch(pIdx, pOpts, pXOpts, pCtx, pCancel, nSeqs, pBatch->seqs, pPestat, pestat, 0, pHeader + COUNTS_OFFSET);
+	pHeader[3] = (pOpts->flag & MEM_F_PE) != 0;
+	jnibwa_putPestats(pestat, pHeader + PESTATS_OFFSET);
+
+	void* pResult = finishBatch(pBatch, nSeqs, pBufSize);
+	releaseContext(pCtx);
+	return pResult;
+}
+
+// align a single sequence on the calling thread, without the batch machinery (or, if we have a context, any of the
+// scratch-space allocations):  the sequence (seqLen bases and a trailing null) is recoded in place, and it's
+// aligned as an unpaired read, with results just like those from jnibwa_createAlignments for a batch of 1
+void* jnibwa_alignOne( bwaidx_t* pIdx, mem_opt_t* pOpts, jnibwa_xopt_t const* pXOpts, jnibwa_context_t* pCtx,
+						char* pSeq, int seqLen, void* pOut, size_t outCapacity, size_t* pBufSize ) {
+	static char emptyString[1];
+	pCtx = acquireContext(pCtx);
+	jnibwa_batch_t* pBatch = createBatch(pCtx, 1);
+	createResults(pBatch, 1, seqLen, pOut, outCapacity);
+	bseq1_t* pSeq1 = pBatch->seqs;
+	pSeq1->l_seq = seqLen;
+	pSeq1->seq = pSeq;
+	pSeq1->name = emptyString;
+	pSeq1->id = 0;
+
+	jnibwa_aux_t** ppAux = createAuxes(pCtx, 1);
+	int32_t* pHeader = pBatch->results.pMem;
+	mem_alnreg_v regs = alignRegions(pOpts, pXOpts, pIdx, seqLen, pSeq, ppAux[0], pHeader + COUNTS_OFFSET);
+	destroyAuxes(pCtx, ppAux, 1);
+	mem_mark_primary_se(pOpts, regs.n, regs.a, 0);
+	if ( pOpts->flag & MEM_F_PRIMARY5 ) mem_reorder_primary5(pOpts->T, &regs);
+	mem_reg2sam(pOpts, pIdx->bns, pIdx->pac, pSeq1, &regs, 0, 0);
+	free(regs.a);
+
+	mem_pestat_t pestat[4];
+	memset(pestat, 0, sizeof(pestat));
+	pHeader[3] = 0;
+	jnibwa_putPestats(pestat, pHeader + PESTATS_OFFSET);
+
+	void* pResult = finishBatch(pBatch, 1, pBufSize);
+	releaseContext(pCtx);
+	return pResult;
+}
+
+// results that are computed in parallel, a part for each of n items, are gathered into a malloc'd buffer of
+// int32_t's:  n, nHeaderInts, and nResultInts, a table of the offset of each item's part (in int32_t's from the
+// start of the buffer), and then the parts (which are freed, along with the arrays that describe them)
+#define PARTS_HEADER_INTS 3
+static int32_t* gatherParts( uint32_t n, int32_t** ppParts, size_t* pNInts, size_t* pBufSize ) {
+	uint32_t idx;
+	size_t nInts = PARTS_HEADER_INTS + n;
+	for ( idx = 0; idx != n; ++idx ) nInts += pNInts[idx];
+	int32_t* pMem = malloc(nInts*sizeof(int32_t));
+	if ( pMem ) {
+		int32_t* pOut = pMem + PARTS_HEADER_INTS + n;
+		pMem[0] = n;
+		pMem[1] = PARTS_HEADER_INTS;
+		pMem[2] = nInts;
+		for ( idx = 0; idx != n; ++idx ) {
+			pMem[PARTS_HEADER_INTS + idx] = pOut - pMem;
+			memcpy(pOut, ppParts[idx], pNInts[idx]*sizeof(int32_t));
+			pOut += pNInts[idx];
+		}
 	}
-	int32_t* resultsBeg = malloc(nInts*sizeof(int32_t));
-	int32_t* pResults = resultsBeg;
-	for ( pSeq1 = pSeq1Beg; pSeq1 != pSeq1End; ++pSeq1 ) {
-		int32_t* pBuf = (int32_t*)pSeq1->sam;
-		if ( pBuf ) {
-			size_t len = bufLen(pBuf);
-			memcpy(pResults, pBuf, len*sizeof(int32_t));
-			free(pBuf);
-			pResults += len;
+	for ( idx = 0; idx != n; ++idx ) free(ppParts[idx]);
+	free(ppParts);
+	free(pNInts);
+	*pBufSize = nInts*sizeof(int32_t);
+	return pMem;
+}
+
+// seeds and chains, without extension:  each sequence's chains are written to a buffer of their own, as
+//   nChains, then for each chain:  rid, beg, end, isRev, weight, nSeeds, and for each seed:  qbeg, rbeg, len
+// with reference coordinates 0-based, on the forward strand of contig rid, and query coordinates on the sequence
+// as given, whichever strand it's on
+#define CHAIN_INTS 6
+#define SEED_INTS 3
+typedef struct {
+	mem_opt_t const* pOpts;
+	jnibwa_targets_t const* pTargets; // may be null
+	bwaidx_t const* pIdx;
+	bseq1_t* pSeqs;
+	jnibwa_aux_t** ppAux; // one for each thread
+	int32_t** ppChains;   // the serialized chains for each sequence
+	size_t* pNInts;       // and their length
+} jnibwa_chainer_t;
+
+// flip a span in bwa's coordinates (where the reverse strand follows the forward strand) onto the forward strand of
+// contig rid
+static void toContigCoords( bntseq_t const* bns, int rid, int64_t rb, int64_t re, int32_t* pBeg, int32_t* pEnd ) {
+	if ( rb >= bns->l_pac ) {
+		int64_t fb = (bns->l_pac << 1) - re;
+		re = (bns->l_pac << 1) - rb;
+		rb = fb;
+	}
+	*pBeg = rb - bns->anns[rid].offset;
+	*pEnd = re - bns->anns[rid].offset;
+}
+
+static void findSeqChains( void* pData, int idx, int tid ) {
+	jnibwa_chainer_t* pC = pData;
+	bntseq_t const* bns = pC->pIdx->bns;
+	bseq1_t* pSeq1 = pC->pSeqs + idx;
+	jnibwa_chain_v chn = findChains(pC->pOpts, pC->pTargets, pC->pIdx, pSeq1->l_seq, pSeq1->seq, pC->ppAux[tid], 0);
+	size_t nInts = 1, iChain;
+	for ( iChain = 0; iChain != chn.n; ++iChain ) nInts += CHAIN_INTS + SEED_INTS*chn.a[iChain].n;
+	int32_t* pOut = malloc(nInts*sizeof(int32_t));
+	pC->ppChains[idx] = pOut;
+	pC->pNInts[idx] = nInts;
+	*pOut++ = chn.n;
+	for ( iChain = 0; iChain != chn.n; ++iChain ) {
+		jnibwa_chain_t* pChain = chn.a + iChain;
+		int32_t* pChainOut = pOut;
+		int32_t chainBeg = INT32_MAX, chainEnd = 0;
+		int iSeed;
+		pOut += CHAIN_INTS;
+		for ( iSeed = 0; iSeed != pChain->n; ++iSeed ) {
+			jnibwa_seed_t const* pSeed = pChain->seeds + iSeed;
+			int32_t beg, end;
+			toContigCoords(bns, pChain->rid, pSeed->rbeg, pSeed->rbeg + pSeed->len, &beg, &end);
+			if ( beg < chainBeg ) chainBeg = beg;
+			if ( end > chainEnd ) chainEnd = end;
+			*pOut++ = pSeed->qbeg;
+			*pOut++ = beg;
+			*pOut++ = pSeed->len;
 		}
+		pChainOut[0] = pChain->rid;
+		pChainOut[1] = pChain->n ? chainBeg : 0;
+		pChainOut[2] = chainEnd;
+		pChainOut[3] = pChain->pos >= bns->l_pac;
+		pChainOut[4] = pChain->w;
+		pChainOut[5] = pChain->n;
+		free(pChain->seeds);
 	}
-	free(pSeq1Beg);
+	free(chn.a);
+}
 
-	*pBufSize = nInts*sizeof(int32_t);
-	return resultsBeg;
+// find the chains of seeds for each sequence in pSeq (formatted as for jnibwa_createAlignments), without going on
+// to extend them:  there's no Smith-Waterman, no MD or XA tags, and no pairing (every sequence is treated as
+// unpaired)
+// the targets (pXOpts->pTargets), if any, are respected, but none of our other options apply
+// we return a malloc'd buffer of nSeqs, nHeaderInts, and nResultInts, a table of the offset of each sequence's
+// chains, and then the chains, serialized as described above
+void* jnibwa_createChains( bwaidx_t* pIdx, mem_opt_t* pOpts, jnibwa_xopt_t const* pXOpts, char* pSeq,
+							size_t* pBufSize ) {
+	uint32_t nSeqs;
+	size_t nBases;
+	jnibwa_batch_t* pBatch = parseBatch(0, pSeq, &nSeqs, &nBases);
+	int nThreads = pOpts->n_threads > 0 ? pOpts->n_threads : 1;
+	jnibwa_chainer_t c;
+	c.pOpts = pOpts;
+	c.pTargets = pXOpts ? pXOpts->pTargets : 0;
+	c.pIdx = pIdx;
+	c.pSeqs = pBatch->seqs;
+	c.ppAux = createAuxes(0, nThreads);
+	c.ppChains = malloc((nSeqs ? nSeqs : 1)*sizeof(int32_t*));
+	c.pNInts = malloc((nSeqs ? nSeqs : 1)*sizeof(size_t));
+	parallelFor(nThreads, findSeqChains, &c, nSeqs);
+	destroyAuxes(0, c.ppAux, nThreads);
+	free(pBatch);
+
+	return gatherParts(nSeqs, c.ppChains, c.pNInts, pBufSize);
+}
+
+// local alignment of queries to reference intervals chosen by the caller:  for each query, we do a Smith-Waterman
+// (bwa's SIMD ksw_align2) against the bases of its interval, which we read from the pac, and then a banded global
+// alignment of the part of the query that aligned to the part of the interval it aligned to, for the cigar and NM
+// (just as bwa itself does with bwa_gen_cigar2, in a band inferred from the score)
+// the Smith-Waterman takes time proportional to the product of the query and interval lengths, but its memory, and
+// that of the banded global alignment, is only proportional to the query length (times the band)
+// each result is serialized as samFlag (0, or 4 if the score is below the output threshold T), rid, rb, re, qb, qe,
+// NM, score, the next best score (for a hit elsewhere in the interval), mapQ (always 0), nCigar, and the cigar
+// (len<<4|op, with the unaligned ends of the query soft-clipped), with reference coordinates 0-based on the forward
+// strand of the contig
+#define LOCAL_ALN_INTS 11
+typedef struct {
+	mem_opt_t const* pOpts;
+	bwaidx_t const* pIdx;
+	bseq1_t* pSeqs;
+	int32_t const* pRids;
+	int32_t const* pBegs;
+	int32_t const* pEnds;
+	int32_t** ppAlns;  // the serialized alignment for each query
+	size_t* pNInts;    // and its length
+} jnibwa_local_aligner_t;
+
+// the widest band that an alignment of qLen query bases to tLen target bases could wander through and still score
+// score (bwa's infer_bw, for insertions and for deletions):  this keeps the global alignment that produces the cigar
+// from allocating qLen*tLen bytes when the sequences are long
+static int inferBand1( int qLen, int tLen, int score, int a, int o, int e ) {
+	int lenDiff = abs(qLen - tLen);
+	if ( qLen == tLen && qLen*a - score < (o + e - a) << 1 ) return 0; // there can't be any gaps
+	int w = (int)((double)((qLen < tLen ? qLen : tLen)*a - score - o)/e + 2.);
+	return w > lenDiff ? w : lenDiff;
+}
+
+static int inferBand( mem_opt_t const* pOpts, int qLen, int tLen, int score ) {
+	int wDel = inferBand1(qLen, tLen, score, pOpts->a, pOpts->o_del, pOpts->e_del);
+	int wIns = inferBand1(qLen, tLen, score, pOpts->a, pOpts->o_ins, pOpts->e_ins);
+	return wDel > wIns ? wDel : wIns;
+}
+
+static void alignLocally( void* pData, int idx, int tid ) {
+	jnibwa_local_aligner_t* pL = pData;
+	mem_opt_t const* pOpts = pL->pOpts;
+	bntseq_t const* bns = pL->pIdx->bns;
+	bseq1_t* pSeq1 = pL->pSeqs + idx;
+	int l_seq = pSeq1->l_seq;
+	uint8_t* query = (uint8_t*)pSeq1->seq;
+	int rid = pL->pRids[idx];
+	int32_t beg = pL->pBegs[idx];
+	int32_t end = pL->pEnds[idx];
+	int32_t* pOut = malloc(LOCAL_ALN_INTS*sizeof(int32_t));
+	uint32_t* cigar = 0;
+	int nCigar = 0, score = 0, NM = 0;
+	kswr_t r;
+	memset(&r, 0, sizeof(r));
+	r.score = r.score2 = -1;
+	recodeSeq(l_seq, pSeq1->seq);
+	if ( l_seq > 0 && rid >= 0 && rid < bns->n_seqs && beg >= 0 && beg < end && end <= bns->anns[rid].len ) {
+		int64_t rb = bns->anns[rid].offset + beg;
+		int64_t tlen = 0;
+		uint8_t* target = bns_get_seq(bns->l_pac, pL->pIdx->pac, rb, rb + (end - beg), &tlen);
+		int xtra = KSW_XSTART | (l_seq*pOpts->a < 250 ? KSW_XBYTE : 0);
+		r = ksw_align2(l_seq, query, tlen, target, 5, pOpts->mat, pOpts->o_del, pOpts->e_del, pOpts->o_ins,
+						pOpts->e_ins, xtra, 0);
+		free(target);
+		if ( r.score >= pOpts->T && r.qb >= 0 && r.tb >= 0 ) {
+			int qLen = r.qe + 1 - r.qb;
+			int tLen = r.te + 1 - r.tb;
+			// as in bwa's mem_reg2aln:  start with the band w, unless the score implies that it's too narrow, and
+			// widen it until the global alignment recovers the score (or the band is as wide as the score allows)
+			int wNeeded = inferBand(pOpts, qLen, tLen, r.score);
+			int w = wNeeded < pOpts->w ? wNeeded : pOpts->w;
+			if ( w < abs(qLen - tLen) ) w = abs(qLen - tLen);
+			for ( ;; ) {
+				cigar = bwa_gen_cigar2(pOpts->mat, pOpts->o_del, pOpts->e_del, pOpts->o_ins, pOpts->e_ins, w,
+										bns->l_pac, pL->pIdx->pac, qLen, query + r.qb, rb + r.tb, rb + r.te + 1,
+										&score, &nCigar, &NM);
+				if ( score >= r.score || w >= wNeeded ) break;
+				free(cigar);
+				w = w << 1 < wNeeded ? w << 1 : wNeeded;
+			}
+		}
+	}
+	if ( !cigar ) {
+		pOut[0] = 4;
+		pOut[1] = -1;
+		memset(pOut + 2, 0, (LOCAL_ALN_INTS - 2)*sizeof(int32_t));
+		pL->ppAlns[idx] = pOut;
+		pL->pNInts[idx] = LOCAL_ALN_INTS;
+		return;
+	}
+	int clip5 = r.qb;
+	int clip3 = l_seq - 1 - r.qe;
+	int nOps = nCigar + (clip5 > 0) + (clip3 > 0);
+	pOut = realloc(pOut, (LOCAL_ALN_INTS + nOps)*sizeof(int32_t));
+	pOut[0] = 0;
+	pOut[1] = rid;
+	pOut[2] = beg + r.tb;
+	pOut[3] = beg + r.te + 1;
+	pOut[4] = r.qb;
+	pOut[5] = r.qe + 1;
+	pOut[6] = NM;
+	pOut[7] = r.score;
+	pOut[8] = r.score2 > 0 ? r.score2 : 0;
+	pOut[9] = 0;
+	pOut[10] = nOps;
+	int32_t* pCigar = pOut + LOCAL_ALN_INTS;
+	if ( clip5 > 0 ) *pCigar++ = clip5 << 4 | 4;
+	memcpy(pCigar, cigar, nCigar*sizeof(uint32_t));
+	pCigar += nCigar;
+	if ( clip3 > 0 ) *pCigar++ = clip3 << 4 | 4;
+	free(cigar);
+	pL->ppAlns[idx] = pOut;
+	pL->pNInts[idx] = LOCAL_ALN_INTS + nOps;
+}
+
+// align each query in pSeq (formatted as for jnibwa_createAlignments) to its interval, [pBegs[idx],pEnds[idx]) on
+// contig pRids[idx], using the scoring options in pOpts, on pOpts->n_threads threads
+// we return the results for each query, serialized as described above, and gathered as by gatherParts
+// queries whose intervals are out of range are reported as unaligned
+void* jnibwa_createLocalAlignments( bwaidx_t* pIdx, mem_opt_t* pOpts, char* pSeq, int32_t const* pRids,
+									int32_t const* pBegs, int32_t const* pEnds, size_t* pBufSize ) {
+	uint32_t nSeqs;
+	size_t nBases;
+	jnibwa_batch_t* pBatch = parseBatch(0, pSeq, &nSeqs, &nBases);
+	jnibwa_local_aligner_t l;
+	l.pOpts = pOpts;
+	l.pIdx = pIdx;
+	l.pSeqs = pBatch->seqs;
+	l.pRids = pRids;
+	l.pBegs = pBegs;
+	l.pEnds = pEnds;
+	l.ppAlns = malloc((nSeqs ? nSeqs : 1)*sizeof(int32_t*));
+	l.pNInts = malloc((nSeqs ? nSeqs : 1)*sizeof(size_t));
+	parallelFor(pOpts->n_threads > 0 ? pOpts->n_threads : 1, alignLocally, &l, nSeqs);
+	free(pBatch);
+	return gatherParts(nSeqs, l.ppAlns, l.pNInts, pBufSize);
+}
+
+// realignment of soft clips:  for each read, only the clipped segment [pClipBegs[idx],pClipEnds[idx]) is put
+// through bwa's usual single-end pipeline (seeding, chaining, extension, and choice of the primary alignment), so
+// there's no need to cut the segment out and submit it as a read of its own
+// if window > 0, and the read has an anchor (a pAnchorRids[idx] >= 0), only the chains that touch the window of
+// that many bases on either side of pAnchorPos[idx] are extended (on either strand), as if the window were a target
+// interval
+// each result is serialized just as for alignLocally, except that the mapQ is bwa's, and the strand is given by the
+// 0x10 bit of the samFlag:  the cigar covers the whole read, in reference orientation, with everything outside the
+// aligned part of the segment soft-clipped, and qb and qe are the ends of the aligned part in that orientation (so
+// qb is the length of the leading soft clip, as it is for all our other alignments)
+typedef struct {
+	mem_opt_t const* pOpts;
+	bwaidx_t const* pIdx;
+	bseq1_t* pSeqs;
+	int32_t const* pClipBegs;
+	int32_t const* pClipEnds;
+	int32_t const* pAnchorRids;
+	int32_t const* pAnchorPos;
+	int32_t window;
+	jnibwa_aux_t** ppAux; // one for each thread
+	int32_t** ppAlns;     // the serialized alignment for each read
+	size_t* pNInts;       // and its length
+} jnibwa_clip_aligner_t;
+
+static void realignClip( void* pData, int idx, int tid ) {
+	jnibwa_clip_aligner_t* pC = pData;
+	mem_opt_t const* pOpts = pC->pOpts;
+	bwaidx_t const* pIdx = pC->pIdx;
+	bntseq_t const* bns = pIdx->bns;
+	bseq1_t* pSeq1 = pC->pSeqs + idx;
+	int32_t clipBeg = pC->pClipBegs[idx];
+	int32_t clipEnd = pC->pClipEnds[idx];
+	int32_t rid = pC->pAnchorRids[idx];
+	int32_t* pOut = malloc(LOCAL_ALN_INTS*sizeof(int32_t));
+	mem_aln_t aln;
+	memset(&aln, 0, sizeof(aln));
+	if ( clipBeg >= 0 && clipBeg < clipEnd && clipEnd <= pSeq1->l_seq ) {
+		int l_seg = clipEnd - clipBeg;
+		char* seg = pSeq1->seq + clipBeg;
+		jnibwa_targets_t* pWindow = 0;
+		if ( pC->window > 0 && rid >= 0 && rid < bns->n_seqs ) {
+			int64_t pos = pC->pAnchorPos[idx];
+			int64_t beg = pos - pC->window;
+			int64_t end = pos + pC->window;
+			pWindow = malloc(sizeof(jnibwa_targets_t) + sizeof(jnibwa_interval_t));
+			pWindow->nIntervals = 1;
+			pWindow->pad = 0;
+			pWindow->intervals[0].rid = rid;
+			pWindow->intervals[0].beg = beg > 0 ? beg : 0;
+			pWindow->intervals[0].end = end < bns->anns[rid].len ? end : bns->anns[rid].len;
+		}
+		recodeSeq(pSeq1->l_seq, pSeq1->seq);
+		mem_alnreg_v regs = alignCore(pOpts, pWindow, pIdx, l_seg, seg, pC->ppAux[tid], 0);
+		mem_mark_primary_se(pOpts, regs.n, regs.a, idx);
+		size_t iReg;
+		for ( iReg = 0; iReg != regs.n; ++iReg ) {
+			mem_alnreg_t reg = regs.a[iReg];
+			if ( reg.secondary >= 0 || reg.score < pOpts->T ) continue;
+			if ( pWindow && !isOnTarget(pWindow, bns, reg.rid, reg.rb, reg.re) ) continue;
+			// shift the region onto the whole read, so that bwa soft-clips everything outside it
+			reg.qb += clipBeg;
+			reg.qe += clipBeg;
+			aln = mem_reg2aln(pOpts, bns, pIdx->pac, pSeq1->l_seq, pSeq1->seq, &reg);
+			break;
+		}
+		free(regs.a);
+		free(pWindow);
+	}
+	if ( !aln.cigar ) {
+		pOut[0] = 4;
+		pOut[1] = -1;
+		memset(pOut + 2, 0, (LOCAL_ALN_INTS - 2)*sizeof(int32_t));
+		pC->ppAlns[idx] = pOut;
+		pC->pNInts[idx] = LOCAL_ALN_INTS;
+		return;
+	}
+	// the soft clips (op 3 in a mem_aln_t) give the ends of the aligned part, in reference orientation
+	int nCigar = aln.n_cigar;
+	int qb = (aln.cigar[0] & 0xf) == 3 ? aln.cigar[0] >> 4 : 0;
+	int qe = pSeq1->l_seq - ((aln.cigar[nCigar - 1] & 0xf) == 3 ? aln.cigar[nCigar - 1] >> 4 : 0);
+	pOut = realloc(pOut, (LOCAL_ALN_INTS + nCigar)*sizeof(int32_t));
+	pOut[0] = aln.is_rev ? 0x10 : 0;
+	pOut[1] = aln.rid;
+	pOut[2] = aln.pos;
+	pOut[3] = aln.pos + cigarRefLen(aln.n_cigar, aln.cigar);
+	pOut[4] = qb;
+	pOut[5] = qe;
+	pOut[6] = aln.NM;
+	pOut[7] = aln.score;
+	pOut[8] = aln.sub;
+	pOut[9] = aln.mapq;
+	pOut[10] = nCigar;
+	int iOp;
+	for ( iOp = 0; iOp != nCigar; ++iOp ) {
+		uint32_t lenOp = aln.cigar[iOp];
+		// op is encoded as MIDSH in a mem_aln_t, but as MIDNSH in a BAM
+		if ( (lenOp & 0xf) > 2 ) ++lenOp;
+		pOut[LOCAL_ALN_INTS + iOp] = lenOp;
+	}
+	free(aln.cigar);
+	pC->ppAlns[idx] = pOut;
+	pC->pNInts[idx] = LOCAL_ALN_INTS + nCigar;
+}
+
+// realign the clipped segment of each read in pSeq (formatted as for jnibwa_createAlignments, and recoded in place),
+// as described above, using the options in pOpts (but none of our xopts), on pOpts->n_threads threads
+// we return the results for each read, serialized as described above, and gathered as by gatherParts
+// reads whose clipped segments are out of range are reported as unaligned (but the Java side checks the ranges first)
+void* jnibwa_realignClips( bwaidx_t* pIdx, mem_opt_t* pOpts, char* pSeq, int32_t const* pClipBegs,
+							int32_t const* pClipEnds, int32_t const* pAnchorRids, int32_t const* pAnchorPos,
+							int32_t window, size_t* pBufSize ) {
+	uint32_t nSeqs;
+	size_t nBases;
+	jnibwa_batch_t* pBatch = parseBatch(0, pSeq, &nSeqs, &nBases);
+	int nThreads = pOpts->n_threads > 0 ? pOpts->n_threads : 1;
+	jnibwa_clip_aligner_t c;
+	c.pOpts = pOpts;
+	c.pIdx = pIdx;
+	c.pSeqs = pBatch->seqs;
+	c.pClipBegs = pClipBegs;
+	c.pClipEnds = pClipEnds;
+	c.pAnchorRids = pAnchorRids;
+	c.pAnchorPos = pAnchorPos;
+	c.window = window;
+	c.ppAux = createAuxes(0, nThreads);
+	c.ppAlns = malloc((nSeqs ? nSeqs : 1)*sizeof(int32_t*));
+	c.pNInts = malloc((nSeqs ? nSeqs : 1)*sizeof(size_t));
+	parallelFor(nThreads, realignClip, &c, nSeqs);
+	destroyAuxes(0, c.ppAux, nThreads);
+	free(pBatch);
+	return gatherParts(nSeqs, c.ppAlns, c.pNInts, pBufSize);
+}
+
+// pairwise alignment, without an index:  the sequences in a batch alternate between a query and its target, and
+// each pair is aligned in one of these modes:
+//   local:  Smith-Waterman (bwa's SIMD ksw_align2)
+//   global:  Needleman-Wunsch, end to end, in a band wide enough for any gap that could pay for itself
+//   extension:  bwa's extension of a seed (ksw_extend2), from the start of both sequences, as if from an anchor that
+//     had already scored h0, with the clipping penalty pen_clip3 deciding whether to extend to the end of the query
+// in each mode, the cigar (and NM) comes from a global alignment of the parts of the sequences that aligned
+// each result is serialized as score, qb, qe, tb, te, NM, nCigar, and the cigar (len<<4|op, with the unaligned ends
+// of the query soft-clipped), or just a score of 0 and -1's if nothing aligned
+#define PAIR_ALN_INTS 7
+typedef struct {
+	mem_opt_t const* pOpts;
+	int mode;
+	int h0;
+	bseq1_t* pSeqs;
+	int32_t** ppAlns;  // the serialized alignment for each pair
+	size_t* pNInts;    // and its length
+} jnibwa_pair_aligner_t;
+
+// the band that bwa_gen_cigar2 would use for a global alignment of qlen bases of query to tlen bases of target
+static int globalBand( mem_opt_t const* pOpts, int qlen, int tlen ) {
+	int maxIns = (int)((double)(((qlen + 1) >> 1)*pOpts->mat[0] - pOpts->o_ins)/pOpts->e_ins + 1.);
+	int maxDel = (int)((double)(((qlen + 1) >> 1)*pOpts->mat[0] - pOpts->o_del)/pOpts->e_del + 1.);
+	int maxGap = maxIns > maxDel ? maxIns : maxDel;
+	int lenDiff = abs(tlen - qlen);
+	if ( maxGap < 1 ) maxGap = 1;
+	int w = (maxGap + lenDiff + 1) >> 1;
+	return w > lenDiff + 3 ? w : lenDiff + 3;
+}
+
+// the edit distance implied by a cigar (of M, I, and D ops only)
+static int cigarNM( uint8_t const* query, uint8_t const* target, int nCigar, uint32_t const* cigar ) {
+	int idx, len, NM = 0;
+	for ( idx = 0; idx != nCigar; ++idx ) {
+		int op = cigar[idx] & 0xf;
+		len = cigar[idx] >> 4;
+		if ( op == 0 ) {
+			for ( ; len; --len ) NM += *query++ != *target++;
+		} else {
+			NM += len;
+			if ( op == 1 ) query += len;
+			else target += len;
+		}
+	}
+	return NM;
+}
+
+static void alignPair( void* pData, int idx, int tid ) {
+	jnibwa_pair_aligner_t* pP = pData;
+	mem_opt_t const* pOpts = pP->pOpts;
+	bseq1_t* pQuery = pP->pSeqs + 2*idx;
+	bseq1_t* pTarget = pQuery + 1;
+	int qlen = pQuery->l_seq, tlen = pTarget->l_seq;
+	uint8_t* query = (uint8_t*)pQuery->seq;
+	uint8_t* target = (uint8_t*)pTarget->seq;
+	int score = 0, qb = 0, qe = 0, tb = 0, te = 0;
+	int nCigar = 0, NM = 0;
+	uint32_t* cigar = 0;
+	recodeSeq(qlen, pQuery->seq);
+	recodeSeq(tlen, pTarget->seq);
+	if ( qlen > 0 && tlen > 0 ) {
+		if ( pP->mode == JNIBWA_PAIR_LOCAL ) {
+			int xtra = KSW_XSTART | (qlen*pOpts->mat[0] < 250 ? KSW_XBYTE : 0);
+			kswr_t r = ksw_align2(qlen, query, tlen, target, 5, pOpts->mat, pOpts->o_del, pOpts->e_del,
+									pOpts->o_ins, pOpts->e_ins, xtra, 0);
+			if ( r.score > 0 && r.qb >= 0 && r.tb >= 0 ) {
+				score = r.score; qb = r.qb; qe = r.qe + 1; tb = r.tb; te = r.te + 1;
+			}
+		} else if ( pP->mode == JNIBWA_PAIR_GLOBAL ) {
+			score = ksw_global2(qlen, query, tlen, target, 5, pOpts->mat, pOpts->o_del, pOpts->e_del, pOpts->o_ins,
+								pOpts->e_ins, globalBand(pOpts, qlen, tlen), &nCigar, &cigar);
+			qe = qlen; te = tlen;
+		} else {
+			int qle, tle, gtle, gscore, maxOff;
+			int h0 = pP->h0 > 0 ? pP->h0 : 1;
+			int localScore = ksw_extend2(qlen, query, tlen, target, 5, pOpts->mat, pOpts->o_del, pOpts->e_del,
+									pOpts->o_ins, pOpts->e_ins, pOpts->w, pOpts->pen_clip3, pOpts->zdrop, h0,
+									&qle, &tle, &gtle, &gscore, &maxOff);
+			if ( gscore <= 0 || gscore <= localScore - pOpts->pen_clip3 ) { // clip, as bwa would
+				score = localScore; qe = qle; te = tle;
+			} else {
+				score = gscore; qe = qlen; te = gtle;
+			}
+			if ( !qe || !te ) score = 0;
+		}
+	}
+	if ( !cigar && qe > qb && te > tb ) {
+		ksw_global2(qe - qb, query + qb, te - tb, target + tb, 5, pOpts->mat, pOpts->o_del, pOpts->e_del,
+					pOpts->o_ins, pOpts->e_ins, globalBand(pOpts, qe - qb, te - tb), &nCigar, &cigar);
+	}
+	if ( cigar ) NM = cigarNM(query + qb, target + tb, nCigar, cigar);
+	int clip3 = qlen - qe;
+	int nOps = nCigar ? nCigar + (qb > 0) + (clip3 > 0) : 0;
+	int32_t* pOut = malloc((PAIR_ALN_INTS + nOps)*sizeof(int32_t));
+	if ( !nOps ) {
+		pOut[0] = 0;
+		pOut[1] = pOut[2] = pOut[3] = pOut[4] = -1;
+		pOut[5] = pOut[6] = 0;
+	} else {
+		pOut[0] = score;
+		pOut[1] = qb;
+		pOut[2] = qe;
+		pOut[3] = tb;
+		pOut[4] = te;
+		pOut[5] = NM;
+		pOut[6] = nOps;
+		int32_t* pCigar = pOut + PAIR_ALN_INTS;
+		if ( qb > 0 ) *pCigar++ = qb << 4 | 4;
+		memcpy(pCigar, cigar, nCigar*sizeof(uint32_t));
+		pCigar += nCigar;
+		if ( clip3 > 0 ) *pCigar++ = clip3 << 4 | 4;
+	}
+	free(cigar);
+	pP->ppAlns[idx] = pOut;
+	pP->pNInts[idx] = PAIR_ALN_INTS + nOps;
+}
+
+// align the pairs in pSeq (formatted as for jnibwa_createAlignments, with each query followed by its target) in the
+// given mode (a JNIBWA_PAIR_* value), using the scoring options in pOpts, on pOpts->n_threads threads
+// h0 is the score of the implied anchor for the extension mode
+// we return the results for each pair, serialized as described above, and gathered as by gatherParts
+void* jnibwa_alignPairs( mem_opt_t* pOpts, int mode, int h0, char* pSeq, size_t* pBufSize ) {
+	uint32_t nSeqs;
+	size_t nBases;
+	jnibwa_batch_t* pBatch = parseBatch(0, pSeq, &nSeqs, &nBases);
+	jnibwa_pair_aligner_t p;
+	uint32_t nPairs = nSeqs >> 1;
+	p.pOpts = pOpts;
+	p.mode = mode;
+	p.h0 = h0;
+	p.pSeqs = pBatch->seqs;
+	p.ppAlns = malloc((nPairs ? nPairs : 1)*sizeof(int32_t*));
+	p.pNInts = malloc((nPairs ? nPairs : 1)*sizeof(size_t));
+	parallelFor(pOpts->n_threads > 0 ? pOpts->n_threads : 1, alignPair, &p, nPairs);
+	free(pBatch);
+	return gatherParts(nPairs, p.ppAlns, p.pNInts, pBufSize);
+}
+
+// FM-index queries:  these run on the calling thread, and the sequences (in pSeq, formatted as for
+// jnibwa_createAlignments) are recoded in place
+
+// the suffix-array interval of exact matches to each sequence, on either strand:  two int64_t's per sequence in
+// pOut, the first SA row, and the number of rows (i.e., the number of occurrences)
+// returns the number of sequences
+int jnibwa_findIntervals( bwaidx_t* pIdx, char* pSeq, int64_t* pOut ) {
+	uint32_t nSeqs, idx;
+	size_t nBases;
+	jnibwa_batch_t* pBatch = parseBatch(0, pSeq, &nSeqs, &nBases);
+	for ( idx = 0; idx != nSeqs; ++idx ) {
+		bseq1_t* pSeq1 = pBatch->seqs + idx;
+		bwtint_t saBeg = 0, saEnd = 0, nOccs = 0;
+		if ( pSeq1->l_seq > 0 ) {
+			recodeSeq(pSeq1->l_seq, pSeq1->seq);
+			nOccs = bwt_match_exact(pIdx->bwt, pSeq1->l_seq, (ubyte_t const*)pSeq1->seq, &saBeg, &saEnd);
+		}
+		*pOut++ = nOccs ? saBeg : 0;
+		*pOut++ = nOccs;
+	}
+	free(pBatch);
+	return nSeqs;
+}
+
+// resolve each of n suffix-array rows to a reference position:  the row's match, of length pLens[idx], is written
+// to pOut as 3 int32_t's, the rid, the 0-based start on the forward strand of the contig, and a flag that's
+// non-zero if the match is on the reverse strand
+// the rid is -1 if the row is out of range, or if the match straddles contigs
+void jnibwa_resolveSAPositions( bwaidx_t* pIdx, int n, int64_t const* pSAPos, int32_t const* pLens, int32_t* pOut ) {
+	bntseq_t const* bns = pIdx->bns;
+	int idx;
+	for ( idx = 0; idx != n; ++idx, pOut += 3 ) {
+		int64_t saPos = pSAPos[idx];
+		int32_t len = pLens[idx];
+		int rid = -1;
+		int64_t rb = 0;
+		if ( saPos >= 0 && (bwtint_t)saPos <= pIdx->bwt->seq_len && len > 0 ) {
+			rb = bwt_sa(pIdx->bwt, saPos);
+			if ( rb + len <= bns->l_pac << 1 ) rid = bns_intv2rid(bns, rb, rb + len);
+		}
+		if ( rid < 0 ) {
+			pOut[0] = -1;
+			pOut[1] = pOut[2] = 0;
+			continue;
+		}
+		int32_t beg, end;
+		toContigCoords(bns, rid, rb, rb + len, &beg, &end);
+		pOut[0] = rid;
+		pOut[1] = beg;
+		pOut[2] = rb >= bns->l_pac;
+	}
+}
+
+// the super-maximal exact matches (at least minLen bases long) for each sequence, just as bwa's first round of
+// seeding finds them, before it re-seeds or looks up any hits
+// we return a malloc'd buffer of int64_t's:  nSeqs, nHeaderLongs, and nResultLongs, a table of the offset of each
+// sequence's SMEMs (in int64_t's from the start of the buffer), and then, for each sequence, the number of SMEMs,
+// and for each SMEM, its start and (exclusive) end on the sequence, its first SA row, and its number of occurrences
+#define SMEMS_HEADER_LONGS 3
+#define SMEM_LONGS 4
+void* jnibwa_findSMEMs( bwaidx_t* pIdx, int minLen, char* pSeq, size_t* pBufSize ) {
+	uint32_t nSeqs, idx;
+	size_t nBases, jdx;
+	jnibwa_batch_t* pBatch = parseBatch(0, pSeq, &nSeqs, &nBases);
+	jnibwa_aux_t* pAux = createAux();
+	size_t nLongs = SMEMS_HEADER_LONGS + nSeqs;
+	size_t capacity = nLongs + nSeqs + nBases/8;
+	int64_t* pMem = malloc(capacity*sizeof(int64_t));
+	for ( idx = 0; pMem && idx != nSeqs; ++idx ) {
+		bseq1_t* pSeq1 = pBatch->seqs + idx;
+		uint8_t const* query = (uint8_t const*)pSeq1->seq;
+		size_t countPos = nLongs++;
+		int64_t nSMEMs = 0;
+		int x = 0;
+		recodeSeq(pSeq1->l_seq, pSeq1->seq);
+		while ( x < pSeq1->l_seq ) {
+			if ( query[x] >= 4 ) { ++x; continue; }
+			x = bwt_smem1(pIdx->bwt, pSeq1->l_seq, query, x, 1, &pAux->mem1, pAux->tmpv);
+			for ( jdx = 0; jdx != pAux->mem1.n; ++jdx ) {
+				bwtintv_t const* pIntv = pAux->mem1.a + jdx;
+				int qBeg = pIntv->info >> 32;
+				int qEnd = (uint32_t)pIntv->info;
+				if ( qEnd - qBeg < minLen ) continue;
+				if ( nLongs + SMEM_LONGS > capacity ) {
+					capacity = 2*(nLongs + SMEM_LONGS);
+					int64_t* pNewMem = realloc(pMem, capacity*sizeof(int64_t));
+					if ( !pNewMem ) { free(pMem); pMem = 0; break; }
+					pMem = pNewMem;
+				}
+				pMem[nLongs++] = qBeg;
+				pMem[nLongs++] = qEnd;
+				pMem[nLongs++] = pIntv->x[0];
+				pMem[nLongs++] = pIntv->x[2];
+				nSMEMs += 1;
+			}
+			if ( !pMem ) break;
+		}
+		if ( !pMem ) break;
+		pMem[SMEMS_HEADER_LONGS + idx] = countPos;
+		pMem[countPos] = nSMEMs;
+	}
+	destroyAux(pAux);
+	free(pBatch);
+	if ( !pMem ) return 0;
+	pMem[0] = nSeqs;
+	pMem[1] = SMEMS_HEADER_LONGS;
+	pMem[2] = nLongs;
+	*pBufSize = nLongs*sizeof(int64_t);
+	return pMem;
+}
+
+// the mappability scan:  the number of occurrences, on either strand, of the k-mer that starts at each position of
+// a span of a contig
+// the span is cut into chunks that are scanned in parallel:  each chunk fetches its bases (and the k-1 that follow)
+// from the pac, marks the ambiguous ones (which bwa replaced with random bases when it built the index), and counts
+// each of its k-mers with a backward search of the FM-index
+#define SCAN_CHUNK_LEN 65536
+#define MAX_SCAN_COUNT 255
+typedef struct {
+	bwaidx_t const* pIdx;
+	int k;
+	int64_t contigOffset; // where the contig starts in the pac
+	int64_t contigLen;
+	int64_t beg, end;     // the span, on the contig
+	uint8_t* pOut;
+} jnibwa_scanner_t;
+
+static void scanChunk( void* pData, int idx, int tid ) {
+	jnibwa_scanner_t const* pS = pData;
+	bntseq_t const* bns = pS->pIdx->bns;
+	int64_t chunkBeg = pS->beg + (int64_t)idx*SCAN_CHUNK_LEN;
+	int64_t chunkEnd = chunkBeg + SCAN_CHUNK_LEN < pS->end ? chunkBeg + SCAN_CHUNK_LEN : pS->end;
+	int64_t seqEnd = chunkEnd + pS->k - 1 < pS->contigLen ? chunkEnd + pS->k - 1 : pS->contigLen;
+	uint8_t* pOut = pS->pOut + (chunkBeg - pS->beg);
+	int64_t seqLen = 0;
+	uint8_t* seq = bns_get_seq(bns->l_pac, pS->pIdx->pac, pS->contigOffset + chunkBeg, pS->contigOffset + seqEnd, &seqLen);
+
+	// mark the ambiguous bases:  the holes are sorted, so find the first one that ends after the chunk begins
+	int64_t refBeg = pS->contigOffset + chunkBeg;
+	int64_t refEnd = refBeg + seqLen;
+	int lo = 0, hi = bns->n_holes;
+	while ( lo < hi ) {
+		int mid = (lo + hi) >> 1;
+		if ( bns->ambs[mid].offset + bns->ambs[mid].len <= refBeg ) lo = mid + 1;
+		else hi = mid;
+	}
+	for ( ; lo < bns->n_holes && bns->ambs[lo].offset < refEnd; ++lo ) {
+		int64_t holeBeg = bns->ambs[lo].offset > refBeg ? bns->ambs[lo].offset : refBeg;
+		int64_t holeEnd = bns->ambs[lo].offset + bns->ambs[lo].len < refEnd ? bns->ambs[lo].offset + bns->ambs[lo].len : refEnd;
+		memset(seq + (holeBeg - refBeg), 4, holeEnd - holeBeg);
+	}
+
+	// a k-mer that runs off the end of the contig, or that includes an ambiguous base, gets 0
+	int64_t pos, nScanned = 0, lastAmbig = -1; // the bases we've looked at so far, and the last ambiguous one
+	for ( pos = 0; pos + pS->k <= seqLen; ++pos ) {
+		for ( ; nScanned != pos + pS->k; ++nScanned ) {
+			if ( seq[nScanned] > 3 ) lastAmbig = nScanned;
+		}
+		if ( lastAmbig >= pos ) { pOut[pos] = 0; continue; }
+		bwtint_t saBeg, saEnd;
+		bwtint_t nOccs = bwt_match_exact(pS->pIdx->bwt, pS->k, seq + pos, &saBeg, &saEnd);
+		pOut[pos] = nOccs < MAX_SCAN_COUNT ? nOccs : MAX_SCAN_COUNT;
+	}
+	for ( ; pos < chunkEnd - chunkBeg; ++pos ) pOut[pos] = 0;
+	free(seq);
+}
+
+// write the k-mer occurrence count (saturated at 255) for each position in [beg,end) on contig rid to pOut, using
+// nThreads threads
+// returns the number of positions written, which is less than end-beg if the span runs off the end of the contig
+// (and -1 if rid or beg is out of range, or k isn't positive)
+int64_t jnibwa_scanMappability( bwaidx_t* pIdx, int k, int rid, int64_t beg, int64_t end, int nThreads, uint8_t* pOut ) {
+	if ( rid < 0 || rid >= pIdx->bns->n_seqs || k <= 0 ) return -1;
+	jnibwa_scanner_t s;
+	s.pIdx = pIdx;
+	s.k = k;
+	s.contigOffset = pIdx->bns->anns[rid].offset;
+	s.contigLen = pIdx->bns->anns[rid].len;
+	if ( beg < 0 || beg > s.contigLen ) return -1;
+	s.beg = beg;
+	s.end = end < s.contigLen ? end : s.contigLen;
+	if ( s.end < beg ) s.end = beg;
+	s.pOut = pOut;
+	int nChunks = (s.end - s.beg + SCAN_CHUNK_LEN - 1)/SCAN_CHUNK_LEN;
+	parallelFor(nThreads > 0 ? nThreads : 1, scanChunk, &s, nChunks);
+	return s.end - s.beg;
+}
+
+int jnibwa_estimatePestats( bwaidx_t* pIdx, mem_opt_t* pOpts, char* pSeq, mem_pestat_t pPestat[4] ) {
+	uint32_t nSeqs;
+	size_t nBases;
+	mem_opt_t opts = *pOpts;
+	opts.flag |= MEM_F_PE;
+	jnibwa_batch_t* pBatch = parseBatch(0, pSeq, &nSeqs, &nBases);
+	alignBatch(pIdx, &opts, 0, 0, 0, nSeqs, pBatch->seqs, 0, pPestat, 1, 0);
+	free(pBatch);
+	return nSeqs >> 1;
+}
+
+// a batch that's aligned in stages, each stage being run over ranges of the batch on threads of the caller's choosing
+// the regions for the whole batch are kept between the stages, so that the pair-end stats are inferred from the
+// whole batch, and the results are just what jnibwa_createAlignments would have produced
+// a job is a sequence or, when aligning pairs, a pair
+struct jnibwa_staged {
+	jnibwa_batch_t* pBatch;
+	uint32_t nSeqs;
+	int nJobs;
+	mem_opt_t opts;         // a snapshot of the caller's options, taken when the batch was staged
+	jnibwa_xopt_t xopts;
+	mem_pestat_t pestat[4]; // supplied by the caller, or inferred between the stages
+	int pestatProvided;
+	void* pOut;
+	jnibwa_worker_t w;
+};
+
+jnibwa_staged_t* jnibwa_stageBatch( bwaidx_t* pIdx, mem_opt_t* pOpts, jnibwa_xopt_t const* pXOpts,
+									int32_t const volatile* pCancel, mem_pestat_t* pPestat, char* pSeq, void* pOut, size_t outCapacity ) {
+	jnibwa_staged_t* pStaged = calloc(1, sizeof(jnibwa_staged_t));
+	if ( !pStaged ) return 0;
+	size_t nBases;
+	pStaged->pBatch = parseBatch(0, pSeq, &pStaged->nSeqs, &nBases);
+	createResults(pStaged->pBatch, pStaged->nSeqs, nBases, pOut, outCapacity);
+	pStaged->opts = *pOpts;
+	pStaged->opts.n_threads = 1;
+	if ( pXOpts ) pStaged->xopts = *pXOpts;
+	pStaged->nJobs = (pOpts->flag & MEM_F_PE) ? pStaged->nSeqs >> 1 : pStaged->nSeqs;
+	if ( pPestat ) {
+		memcpy(pStaged->pestat, pPestat, sizeof(pStaged->pestat));
+		pStaged->pestatProvided = 1;
+	}
+	pStaged->pOut = pStaged->pBatch->results.isCallers ? pOut : 0;
+	pStaged->w.pOpts = &pStaged->opts;
+	pStaged->w.pXOpts = &pStaged->xopts;
+	pStaged->w.pIdx = pIdx;
+	pStaged->w.pSeqs = pStaged->pBatch->seqs;
+	pStaged->w.pRegs = calloc(pStaged->nSeqs ? pStaged->nSeqs : 1, sizeof(mem_alnreg_v));
+	pStaged->w.pPestat = pStaged->pestat;
+	pStaged->w.pCounts = pStaged->pBatch->results.pMem + COUNTS_OFFSET;
+	pStaged->w.pCancel = pCancel;
+	return pStaged;
+}
+
+// run a stage over the jobs in [from,to) on the calling thread
+// ranges handed to concurrent calls mustn't overlap
+static void runStage( jnibwa_staged_t* pStaged, void (*func)(void*,int,int), int from, int to ) {
+	if ( from < 0 ) from = 0;
+	if ( to > pStaged->nJobs ) to = pStaged->nJobs;
+	if ( from >= to ) return;
+	jnibwa_aux_t* pAux = createAux();
+	jnibwa_worker_t w = pStaged->w;
+	w.ppAux = &pAux;
+	for ( ; from != to; ++from ) func(&w, from, 0);
+	destroyAux(pAux);
+}
+
+void jnibwa_findStagedRegions( jnibwa_staged_t* pStaged, int from, int to ) {
+	runStage(pStaged, findRegions, from, to);
+}
+
+// call this after the regions have been found for every job, and before any are formatted
+void jnibwa_inferStagedPestats( jnibwa_staged_t* pStaged ) {
+	if ( (pStaged->opts.flag & MEM_F_PE) && !pStaged->pestatProvided ) {
+		mem_pestat(&pStaged->opts, pStaged->w.pIdx->bns->l_pac, pStaged->nJobs << 1, pStaged->w.pRegs, pStaged->pestat);
+	}
+}
+
+void jnibwa_formatStagedRegions( jnibwa_staged_t* pStaged, int from, int to ) {
+	runStage(pStaged, formatRegions, from, to);
+}
+
+// returns the results, as jnibwa_createAlignments would, and frees the staged batch
+void* jnibwa_finishStaged( jnibwa_staged_t* pStaged, size_t* pBufSize ) {
+	int32_t* pHeader = pStaged->pBatch->results.pMem;
+	pHeader[3] = (pStaged->opts.flag & MEM_F_PE) != 0;
+	jnibwa_putPestats(pStaged->pestat, pHeader + PESTATS_OFFSET);
+	uint32_t idx;
+	for ( idx = 0; idx != pStaged->nSeqs; ++idx ) free(pStaged->w.pRegs[idx].a); // in case any weren't formatted
+	free(pStaged->w.pRegs);
+	void* pResult = finishBatch(pStaged->pBatch, pStaged->nSeqs, pBufSize);
+	free(pStaged);
+	return pResult;
+}
+
+// frees the staged batch, and any results that don't belong to the caller
+void jnibwa_discardStaged( jnibwa_staged_t* pStaged ) {
+	void* pOut = pStaged->pOut;
+	size_t bufSize;
+	void* pResult = jnibwa_finishStaged(pStaged, &bufSize);
+	if ( pResult != pOut ) free(pResult);
+}
+
+// a queue of alignment jobs, serviced by a fixed set of worker threads
+// jobs are queued in the order they're submitted, and put on the done list in the order they finish
+// the queue is stopped by jnibwa_stopQueue, which lets the workers finish the queued jobs, and waits for them to exit;
+// after that, jnibwa_awaitJob returns 0 once the done list is empty, and the queue can be destroyed
+struct jnibwa_job {
+	jnibwa_job_t* pNext;
+	bwaidx_t* pIdx;
+	jnibwa_context_t* pCtx; // the submitting aligner's scratch space (used if it's free), which must outlive the job
+	mem_opt_t opts;         // a snapshot of the caller's options, taken when the job was submitted
+	jnibwa_xopt_t xopts;
+	int32_t const volatile* pCancel; // the caller's, like pSeq, and it has to stay put until the job is done
+	mem_pestat_t pestat[4];
+	int pestatProvided;
+	char* pSeq;             // the caller's encoded batch:  it has to stay put until the job is done
+	void* pOut;
+	size_t outCapacity;
+	void* pResult;
+	size_t resultSize;
+};
+
+struct jnibwa_queue {
+	pthread_mutex_t lock;
+	pthread_cond_t jobQueued;
+	pthread_cond_t jobDone;
+	jnibwa_job_t* pQueued;
+	jnibwa_job_t** ppQueuedTail;
+	jnibwa_job_t* pDone;
+	jnibwa_job_t** ppDoneTail;
+	int shutdown;
+	int nWorkers;
+	pthread_t workers[];
+};
+
+static void* queueWorker( void* pArg ) {
+	jnibwa_queue_t* pQueue = pArg;
+	pthread_mutex_lock(&pQueue->lock);
+	while ( 1 ) {
+		while ( !pQueue->pQueued && !pQueue->shutdown ) pthread_cond_wait(&pQueue->jobQueued, &pQueue->lock);
+		if ( !pQueue->pQueued ) break; // shut down, and there's nothing left to do
+		jnibwa_job_t* pJob = pQueue->pQueued;
+		if ( !(pQueue->pQueued = pJob->pNext) ) pQueue->ppQueuedTail = &pQueue->pQueued;
+		pthread_mutex_unlock(&pQueue->lock);
+
+		pJob->pResult = jnibwa_createAlignments(pJob->pIdx, &pJob->opts, &pJob->xopts, pJob->pCtx, pJob->pCancel,
+												pJob->pestatProvided ? pJob->pestat : 0,
+												pJob->pSeq, pJob->pOut, pJob->outCapacity, &pJob->resultSize);
+
+		pthread_mutex_lock(&pQueue->lock);
+		pJob->pNext = 0;
+		*pQueue->ppDoneTail = pJob;
+		pQueue->ppDoneTail = &pJob->pNext;
+		pthread_cond_signal(&pQueue->jobDone);
+	}
+	pthread_mutex_unlock(&pQueue->lock);
+	return 0;
+}
+
+jnibwa_queue_t* jnibwa_createQueue( int nWorkers ) {
+	if ( nWorkers < 1 ) nWorkers = 1;
+	jnibwa_queue_t* pQueue = calloc(1, sizeof(jnibwa_queue_t) + nWorkers*sizeof(pthread_t));
+	if ( !pQueue ) return 0;
+	pthread_mutex_init(&pQueue->lock, 0);
+	pthread_cond_init(&pQueue->jobQueued, 0);
+	pthread_cond_init(&pQueue->jobDone, 0);
+	pQueue->ppQueuedTail = &pQueue->pQueued;
+	pQueue->ppDoneTail = &pQueue->pDone;
+	for ( ; pQueue->nWorkers != nWorkers; ++pQueue->nWorkers ) {
+		if ( pthread_create(&pQueue->workers[pQueue->nWorkers], 0, queueWorker, pQueue) ) break;
+	}
+	if ( !pQueue->nWorkers ) {
+		free(pQueue);
+		return 0;
+	}
+	return pQueue;
+}
+
+// the workers finish the jobs that have been queued, and exit:  this waits for them
+void jnibwa_stopQueue( jnibwa_queue_t* pQueue ) {
+	pthread_mutex_lock(&pQueue->lock);
+	pQueue->shutdown = 1;
+	pthread_cond_broadcast(&pQueue->jobQueued);
+	pthread_cond_broadcast(&pQueue->jobDone);
+	pthread_mutex_unlock(&pQueue->lock);
+	int idx;
+	for ( idx = 0; idx != pQueue->nWorkers; ++idx ) pthread_join(pQueue->workers[idx], 0);
+}
+
+// only after jnibwa_stopQueue, and once nobody's waiting in jnibwa_awaitJob
+void jnibwa_destroyQueue( jnibwa_queue_t* pQueue ) {
+	pthread_cond_destroy(&pQueue->jobDone);
+	pthread_cond_destroy(&pQueue->jobQueued);
+	pthread_mutex_destroy(&pQueue->lock);
+	free(pQueue);
+}
+
+jnibwa_job_t* jnibwa_submitJob( jnibwa_queue_t* pQueue, bwaidx_t* pIdx, mem_opt_t* pOpts, jnibwa_xopt_t const* pXOpts,
+								jnibwa_context_t* pCtx, int32_t const volatile* pCancel, mem_pestat_t* pPestat,
+								char* pSeq, void* pOut, size_t outCapacity ) {
+	jnibwa_job_t* pJob = calloc(1, sizeof(jnibwa_job_t));
+	if ( !pJob ) return 0;
+	pJob->pIdx = pIdx;
+	pJob->pCtx = pCtx;
+	pJob->opts = *pOpts;
+	if ( pXOpts ) pJob->xopts = *pXOpts;
+	pJob->pCancel = pCancel;
+	if ( pPestat ) {
+		memcpy(pJob->pestat, pPestat, sizeof(pJob->pestat));
+		pJob->pestatProvided = 1;
+	}
+	pJob->pSeq = pSeq;
+	pJob->pOut = pOut;
+	pJob->outCapacity = outCapacity;
+	pthread_mutex_lock(&pQueue->lock);
+	if ( pQueue->shutdown ) {
+		pthread_mutex_unlock(&pQueue->lock);
+		free(pJob);
+		return 0;
+	}
+	*pQueue->ppQueuedTail = pJob;
+	pQueue->ppQueuedTail = &pJob->pNext;
+	pthread_cond_signal(&pQueue->jobQueued);
+	pthread_mutex_unlock(&pQueue->lock);
+	return pJob;
+}
+
+jnibwa_job_t* jnibwa_awaitJob( jnibwa_queue_t* pQueue ) {
+	pthread_mutex_lock(&pQueue->lock);
+	// once we're shut down, the workers are gone, so nothing more can arrive on the done list
+	while ( !pQueue->pDone && !pQueue->shutdown ) pthread_cond_wait(&pQueue->jobDone, &pQueue->lock);
+	jnibwa_job_t* pJob = pQueue->pDone;
+	if ( pJob && !(pQueue->pDone = pJob->pNext) ) pQueue->ppDoneTail = &pQueue->pDone;
+	pthread_mutex_unlock(&pQueue->lock);
+	return pJob;
+}
+
+void* jnibwa_finishJob( jnibwa_job_t* pJob, size_t* pBufSize ) {
+	void* pResult = pJob->pResult;
+	*pBufSize = pJob->resultSize;
+	free(pJob);
+	return pResult;
 }
@@ -5,14 +5,100 @@
 #ifndef JNIBWA_H_
 #define JNIBWA_H_
 
+#include <stddef.h>
 #include "bwa/bwamem.h"
 
+// a set of target intervals on the reference:  0-based, half-open, sorted by rid and then beg, and not overlapping
+// the Java side (BwaMemIntervalSet) builds one of these in a direct ByteBuffer
+typedef struct {
+	int32_t rid, beg, end;
+} jnibwa_interval_t;
+
+typedef struct {
+	int32_t nIntervals;
+	int32_t pad;
+	jnibwa_interval_t intervals[];
+} jnibwa_targets_t;
+
+// options of our own, beyond bwa's mem_opt_t
+// the Java side (BwaMemAligner) keeps the fields up to pTargets in a direct ByteBuffer, and knows their offsets
+typedef struct {
+	int32_t flag; // JNIBWA_F_* bits
+	int32_t maxProbeOccs; // per-sequence work budget:  occurrences of its seed-length probes (0 for no limit)
+	jnibwa_targets_t const* pTargets; // if not null, chains that don't touch a target are dropped before extension
+} jnibwa_xopt_t;
+
+#define JNIBWA_XOPT_JAVA_SIZE offsetof(jnibwa_xopt_t, pTargets)
+
+#define JNIBWA_F_COST_ORDER 0x1 // start on the sequences that look most expensive first
+#define JNIBWA_F_EXACT_MATCH 0x2 // skip seeding, chaining, and extension for sequences that occur once, verbatim
+#define JNIBWA_F_PREFILTER 0x4 // report sequences as unmapped, without seeding them, if no seed seems possible
+#define JNIBWA_F_OVER_BUDGET_UNMAPPED 0x8 // report over-budget sequences as unmapped (rather than aligning cheaply)
+
+// modes for jnibwa_alignPairs
+#define JNIBWA_PAIR_LOCAL 0
+#define JNIBWA_PAIR_GLOBAL 1
+#define JNIBWA_PAIR_EXTEND 2
+
+// the short cuts taken are counted in the results header
+#define JNIBWA_COUNT_PREFILTERED 0
+#define JNIBWA_COUNT_EXACT_MATCH 1
+#define JNIBWA_COUNT_OVER_BUDGET 2
+#define JNIBWA_COUNT_CANCELLED 3 // sequences reported as unmapped because the batch was cancelled
+#define JNIBWA_COUNT_OFF_TARGET 4 // sequences reported as unmapped because none of their chains touched a target
+#define JNIBWA_N_COUNTS 5
+
+typedef struct jnibwa_queue jnibwa_queue_t;
+typedef struct jnibwa_job jnibwa_job_t;
+typedef struct jnibwa_staged jnibwa_staged_t;
+typedef struct jnibwa_context jnibwa_context_t;
 
 int jnibwa_createReferenceIndex( char const* refFileName, char const* indexPrefix, char const* algoName);
 int jnibwa_createIndexFile( char const* refName, char const* imgSuffix );
 bwaidx_t* jnibwa_openIndex( int fd );
 int jnibwa_destroyIndex( bwaidx_t* pIdx );
 void* jnibwa_getRefContigNames( bwaidx_t* pIdx, size_t* pBufSize );
-void* jnibwa_createAlignments( bwaidx_t* pIdx, mem_opt_t* pOpts, mem_pestat_t* peStats, char* pSeq, size_t* pBufSize);
+int jnibwa_getRefContigLengths( bwaidx_t* pIdx, int32_t* pOut );
+jnibwa_context_t* jnibwa_createContext( size_t maxBytes );
+void jnibwa_setContextLimit( jnibwa_context_t* pCtx, size_t maxBytes );
+size_t jnibwa_getContextSize( jnibwa_context_t* pCtx );
+void jnibwa_trimContext( jnibwa_context_t* pCtx );
+void jnibwa_destroyContext( jnibwa_context_t* pCtx );
+void* jnibwa_createAlignments( bwaidx_t* pIdx, mem_opt_t* pOpts, jnibwa_xopt_t const* pXOpts, jnibwa_context_t* pCtx,
+								int32_t const volatile* pCancel, mem_pestat_t* peStats, char* pSeq, void* pOut, size_t outCapacity, size_t* pBufSize );
+void* jnibwa_alignOne( bwaidx_t* pIdx, mem_opt_t* pOpts, jnibwa_xopt_t const* pXOpts, jnibwa_context_t* pCtx,
+						char* pSeq, int seqLen, void* pOut, size_t outCapacity, size_t* pBufSize );
+void* jnibwa_createChains( bwaidx_t* pIdx, mem_opt_t* pOpts, jnibwa_xopt_t const* pXOpts, char* pSeq,
+							size_t* pBufSize );
+void* jnibwa_createLocalAlignments( bwaidx_t* pIdx, mem_opt_t* pOpts, char* pSeq, int32_t const* pRids,
+									int32_t const* pBegs, int32_t const* pEnds, size_t* pBufSize );
+void* jnibwa_realignClips( bwaidx_t* pIdx, mem_opt_t* pOpts, char* pSeq, int32_t const* pClipBegs,
+							int32_t const* pClipEnds, int32_t const* pAnchorRids, int32_t const* pAnchorPos,
+							int32_t window, size_t* pBufSize );
+void* jnibwa_alignPairs( mem_opt_t* pOpts, int mode, int h0, char* pSeq, size_t* pBufSize );
+int jnibwa_findIntervals( bwaidx_t* pIdx, char* pSeq, int64_t* pOut );
+void jnibwa_resolveSAPositions( bwaidx_t* pIdx, int n, int64_t const* pSAPos, int32_t const* pLens, int32_t* pOut );
+void* jnibwa_findSMEMs( bwaidx_t* pIdx, int minLen, char* pSeq, size_t* pBufSize );
+int64_t jnibwa_scanMappability( bwaidx_t* pIdx, int k, int rid, int64_t beg, int64_t end, int nThreads, uint8_t* pOut );
+int jnibwa_estimatePestats( bwaidx_t* pIdx, mem_opt_t* pOpts, char* pSeq, mem_pestat_t peStats[4] );
+void jnibwa_putPestats( mem_pestat_t const* peStats, int32_t* pOut );
+jnibwa_staged_t* jnibwa_stageBatch( bwaidx_t* pIdx, mem_opt_t* pOpts, jnibwa_xopt_t const* pXOpts,
+									int32_t const volatile* pCancel, mem_pestat_t* peStats, char* pSeq, void* pOut, size_t outCapacity );
+void jnibwa_findStagedRegions( jnibwa_staged_t* pStaged, int from, int to );
+void jnibwa_inferStagedPestats( jnibwa_staged_t* pStaged );
+void jnibwa_formatStagedRegions( jnibwa_staged_t* pStaged, int from, int to );
+void* jnibwa_finishStaged( jnibwa_staged_t* pStaged, size_t* pBufSize );
+void jnibwa_discardStaged( jnibwa_staged_t* pStaged );
+int jnibwa_startPool( int nThreads );
+int jnibwa_getPoolSize();
+void jnibwa_stopPool();
+jnibwa_queue_t* jnibwa_createQueue( int nWorkers );
+void jnibwa_stopQueue( jnibwa_queue_t* pQueue );
+void jnibwa_destroyQueue( jnibwa_queue_t* pQueue );
+jnibwa_job_t* jnibwa_submitJob( jnibwa_queue_t* pQueue, bwaidx_t* pIdx, mem_opt_t* pOpts, jnibwa_xopt_t const* pXOpts,
+								jnibwa_context_t* pCtx, int32_t const volatile* pCancel, mem_pestat_t* peStats,
+								char* pSeq, void* pOut, size_t outCapacity );
+jnibwa_job_t* jnibwa_awaitJob( jnibwa_queue_t* pQueue );
+void* jnibwa_finishJob( jnibwa_job_t* pJob, size_t* pBufSize );
 
 #endif /* JNIBWA_H_ */
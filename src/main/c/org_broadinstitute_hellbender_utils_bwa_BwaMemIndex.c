@@ -18,27 +18,35 @@ jint throwIllegalArgumentException(JNIEnv* env, char* message) {
    return (*env)->ThrowNew(env, iaeClass, message);
 }
 
-int jobject_to_mem_pestat_t(JNIEnv* env, jobject in, mem_pestat_t *out) {
+// the "in" argument is an array of 4 BwaMemPairEndStats (in bwa's order: FF, FR, RF, RR), some of which may be null
+int jobject_to_mem_pestat_t(JNIEnv* env, jobjectArray in, mem_pestat_t *out) {
    if (in == NULL) {
      return 0;
    }
    memset(out, 0, sizeof(mem_pestat_t) * 4);
    for (int i = 0; i < 4; i++, out++) {
-      if (i == 1) {
-         out->failed = (int) (*env)->GetBooleanField(env, in, peStatClass_failedID);
-         if (!out->failed) {
-            out->low = (int) (*env)->GetIntField(env, in, peStatClass_lowID);
-            out->high = (int) (*env)->GetIntField(env, in, peStatClass_highID);
-            out->avg = (double) (*env)->GetDoubleField(env, in, peStatClass_averageID);
-            out->std = (double) (*env)->GetDoubleField(env, in, peStatClass_stdID);
-         }
-      } else {
-         out->failed = 1;
+      jobject stats = (*env)->GetObjectArrayElement(env, in, i);
+      out->failed = stats ? (int) (*env)->GetBooleanField(env, stats, peStatClass_failedID) : 1;
+      if (!out->failed) {
+         out->low = (int) (*env)->GetIntField(env, stats, peStatClass_lowID);
+         out->high = (int) (*env)->GetIntField(env, stats, peStatClass_highID);
+         out->avg = (double) (*env)->GetDoubleField(env, stats, peStatClass_averageID);
+         out->std = (double) (*env)->GetDoubleField(env, stats, peStatClass_stdID);
       }
+      if (stats) (*env)->DeleteLocalRef(env, stats);
    }
    return 1;
 }
 
+// gather our own options:  the fields that the Java side sets come from xoptsBuf (which may be null), and the
+// targets (a jnibwa_targets_t, which the Java side has no way to point to) from targetsBuf (which may also be null)
+jnibwa_xopt_t* getXOpts(JNIEnv* env, jobject xoptsBuf, jobject targetsBuf, jnibwa_xopt_t* pXOpts) {
+   memset(pXOpts, 0, sizeof(jnibwa_xopt_t));
+   if (xoptsBuf) memcpy(pXOpts, (*env)->GetDirectBufferAddress(env, xoptsBuf), JNIBWA_XOPT_JAVA_SIZE);
+   if (targetsBuf) pXOpts->pTargets = (*env)->GetDirectBufferAddress(env, targetsBuf);
+   return pXOpts;
+}
+
 JNIEXPORT jboolean JNICALL
 Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_createReferenceIndex( JNIEnv* env, jclass cls, jstring jReferenceFileName, jstring jIndexPrefix, jstring jAlgoName) {
 
@@ -107,13 +115,69 @@ Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_getRefContigNames( JNIE
 	return namesBuf;
 }
 
+JNIEXPORT jintArray JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_getRefContigLengths( JNIEnv* env, jclass cls, jlong idxAddr ) {
+	if ( !idxAddr ) return 0;
+	int nContigs = jnibwa_getRefContigLengths((bwaidx_t*)idxAddr, 0);
+	int32_t* pLens = malloc((nContigs ? nContigs : 1)*sizeof(int32_t));
+	if ( !pLens ) return 0;
+	jnibwa_getRefContigLengths((bwaidx_t*)idxAddr, pLens);
+	jintArray result = (*env)->NewIntArray(env, nContigs);
+	if ( result ) (*env)->SetIntArrayRegion(env, result, 0, nContigs, (jint const*)pLens);
+	free(pLens);
+	return result;
+}
+
+// when aligning pairs, the batch (a count, followed by the sequences) must have an even number of sequences,
+// otherwise the last one would never be aligned:  we throw an IllegalArgumentException if it doesn't
+static int checkPairs( JNIEnv* env, mem_opt_t const* pOpts, char const* pSeq ) {
+	if ( !(pOpts->flag & MEM_F_PE) || !(*(uint32_t const*)pSeq & 1) ) return 1;
+	throwIllegalArgumentException(env, "Aligning pairs, but there's an odd number of reads.");
+	return 0;
+}
+
+// outBuf, if the results were written there, otherwise a ByteBuffer wrapping the malloc'd results
+static jobject wrapAlignments( JNIEnv* env, void* bufMem, size_t bufSize, jobject outBuf ) {
+	if ( !bufMem ) return 0;
+	if ( outBuf && bufMem == (*env)->GetDirectBufferAddress(env, outBuf) ) return outBuf;
+	jobject alnBuf = (*env)->NewDirectByteBuffer(env, bufMem, bufSize);
+	if ( !alnBuf ) free(bufMem);
+	return alnBuf;
+}
+
 // we accept a ByteBuffer that contains:
 //   a 32-bit integer count of the number of sequences to follow
-//   each sequence is just a regular old C string (8-bit characters, null terminated) giving the bases in the sequence
+//   for each sequence,
+//     a 32-bit integer giving the length of the sequence (not necessarily aligned on a 4-byte boundary)
+//     that many 8-bit characters giving the bases in the sequence
+//     a trailing null
 // the idxAddr is what you got from the createIndex method above
 // the optsBuf argument is a mem_opt_t structure wrapped by a ByteBuffer (from createDefaultOptions method)
-// we return a ByteBuffer that contains:
-// for each sequence,
+// the xoptsBuf argument is an optional jnibwa_xopt_t structure (our own options) wrapped by a direct ByteBuffer
+// the targetsBuf argument is an optional jnibwa_targets_t structure (target intervals) wrapped by a direct ByteBuffer
+// the ctxAddr is an optional scratch-space context (from createContext), or 0
+// the cancelBuf argument is an optional direct ByteBuffer holding a 32-bit integer:  if it goes non-zero while we're
+//   working, the rest of the batch is reported as unmapped, and the cancelled sequences are counted (see below)
+// the peStats argument is an array of the pair-end stats for each orientation, or null to infer them from the batch
+// the outBuf argument is an optional direct ByteBuffer owned by the caller into which we'll write the results
+// if it's null, or too small, we allocate a new buffer (which the caller frees with destroyByteBuffer)
+// we return a ByteBuffer (outBuf, if the results fit) that contains:
+// a 32-bit integer count of the number of sequences
+// a 32-bit integer giving the offset of the table of offsets below (in 32-bit units from the start of the buffer)
+// a 32-bit integer giving the total size of the results (in 32-bit units)
+// a 32-bit integer that's non-zero if we aligned pairs, and the pair-end stats that follow are meaningful
+// the pair-end stats used (whether inferred or supplied) for each orientation (FF, FR, RF, RR), each being:
+//   a 64-bit double giving the average insert size
+//   a 64-bit double giving the std. deviation of the insert size
+//   a 32-bit integer giving the low bound for a proper pair
+//   a 32-bit integer giving the high bound for a proper pair
+//   a 32-bit integer that's non-zero if the orientation failed (not enough data)
+//   a 32-bit pad
+// 32-bit integer counts (JNIBWA_N_COUNTS of them) of the sequences that were pre-filtered, that were exact matches,
+//   that were over budget, that were cancelled, and that were off target (none of their chains touched a target)
+// a table of 32-bit integers giving the offset of each sequence's alignments (in 32-bit units from the start of the buffer)
+//   or 0 for a sequence that has none (which shouldn't happen, but it's what you'd see rather than garbage)
+// then, for each sequence, in no particular order and perhaps with unused space in between,
 //   a 32-bit integer count of the number of alignments that follow
 //   for each alignment, a flattened BAM-like pseudo-structure like this:
 /*
@@ -141,17 +205,433 @@ typedef struct {
 */
 JNIEXPORT jobject JNICALL
 Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_createAlignments(
-				JNIEnv* env, jclass cls, jobject seqsBuf, jlong idxAddr, jobject optsBuf, jobject frPEStats ) {
+				JNIEnv* env, jclass cls, jobject seqsBuf, jlong idxAddr, jobject optsBuf, jobject xoptsBuf,
+				jobject targetsBuf, jlong ctxAddr, jobject cancelBuf, jobjectArray peStats, jobject outBuf ) {
 	bwaidx_t* pIdx = (bwaidx_t*)idxAddr;
 	mem_opt_t* pOpts = (*env)->GetDirectBufferAddress(env, optsBuf);
-	mem_pestat_t peStats[4];
-	int pestatProvided = jobject_to_mem_pestat_t(env, frPEStats, peStats);
+	if ( !checkPairs(env, pOpts, (*env)->GetDirectBufferAddress(env, seqsBuf)) ) return 0;
+	jnibwa_xopt_t xopts;
+	jnibwa_xopt_t* pXOpts = getXOpts(env, xoptsBuf, targetsBuf, &xopts);
+	int32_t* pCancel = cancelBuf ? (*env)->GetDirectBufferAddress(env, cancelBuf) : 0;
+	mem_pestat_t pestat[4];
+	int pestatProvided = jobject_to_mem_pestat_t(env, peStats, pestat);
 	char* pSeq = (*env)->GetDirectBufferAddress(env, seqsBuf);
+	void* pOut = outBuf ? (*env)->GetDirectBufferAddress(env, outBuf) : 0;
+	size_t outCapacity = pOut ? (*env)->GetDirectBufferCapacity(env, outBuf) : 0;
 	size_t bufSize = 0;
-	void* bufMem = jnibwa_createAlignments(pIdx, pOpts, pestatProvided ? peStats : 0, pSeq, &bufSize);
-	jobject alnBuf = (*env)->NewDirectByteBuffer(env, bufMem, bufSize);
-	if ( !alnBuf ) free(bufMem);
-	return alnBuf;
+	void* bufMem = jnibwa_createAlignments(pIdx, pOpts, pXOpts, (jnibwa_context_t*)ctxAddr, pCancel,
+											pestatProvided ? pestat : 0, pSeq, pOut, outCapacity, &bufSize);
+	return wrapAlignments(env, bufMem, bufSize, outBuf);
+}
+
+// align a single sequence, given as a byte[] of base calls, as an unpaired read
+// the other arguments are as for createAlignments, and so are the results (which are those for a batch of 1)
+#define STACK_SEQ_LEN 1024 // sequences shorter than this are copied onto the stack, rather than into malloc'd memory
+JNIEXPORT jobject JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_alignOne(
+				JNIEnv* env, jclass cls, jlong idxAddr, jobject optsBuf, jobject xoptsBuf, jobject targetsBuf,
+				jlong ctxAddr, jbyteArray seq, jobject outBuf ) {
+	mem_opt_t* pOpts = (*env)->GetDirectBufferAddress(env, optsBuf);
+	jnibwa_xopt_t xopts;
+	jnibwa_xopt_t* pXOpts = getXOpts(env, xoptsBuf, targetsBuf, &xopts);
+	void* pOut = outBuf ? (*env)->GetDirectBufferAddress(env, outBuf) : 0;
+	size_t outCapacity = pOut ? (*env)->GetDirectBufferCapacity(env, outBuf) : 0;
+	jsize seqLen = (*env)->GetArrayLength(env, seq);
+	char stackSeq[STACK_SEQ_LEN];
+	char* pSeq = seqLen < STACK_SEQ_LEN ? stackSeq : malloc(seqLen + 1);
+	if ( !pSeq ) return 0;
+	(*env)->GetByteArrayRegion(env, seq, 0, seqLen, (jbyte*)pSeq);
+	pSeq[seqLen] = 0;
+	size_t bufSize = 0;
+	void* bufMem = jnibwa_alignOne((bwaidx_t*)idxAddr, pOpts, pXOpts, (jnibwa_context_t*)ctxAddr, pSeq, seqLen,
+									pOut, outCapacity, &bufSize);
+	if ( pSeq != stackSeq ) free(pSeq);
+	return wrapAlignments(env, bufMem, bufSize, outBuf);
+}
+
+// find the chains of seeds for a batch of sequences, without extending them into alignments
+// the arguments are as for createAlignments (though only the targets are taken from the xopts)
+// we return a ByteBuffer (which the caller frees with destroyByteBuffer) that contains:
+// a 32-bit integer count of the number of sequences
+// a 32-bit integer giving the offset of the table of offsets below (in 32-bit units from the start of the buffer)
+// a 32-bit integer giving the total size of the results (in 32-bit units)
+// a table of 32-bit integers giving the offset of each sequence's chains (in 32-bit units from the start of the buffer)
+// then, for each sequence,
+//   a 32-bit integer count of the number of chains that follow (heaviest first)
+//   for each chain, 32-bit integers giving
+//     the reference id, and the 0-based start and (exclusive) end of its seeds on the forward strand of that contig
+//     a flag that's non-zero if the chain is on the reverse strand
+//     the chain's weight
+//     the number of seeds, and for each seed, its start on the sequence, its start on the contig, and its length
+JNIEXPORT jobject JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_createChains(
+				JNIEnv* env, jclass cls, jobject seqsBuf, jlong idxAddr, jobject optsBuf, jobject xoptsBuf,
+				jobject targetsBuf ) {
+	mem_opt_t* pOpts = (*env)->GetDirectBufferAddress(env, optsBuf);
+	jnibwa_xopt_t xopts;
+	jnibwa_xopt_t* pXOpts = getXOpts(env, xoptsBuf, targetsBuf, &xopts);
+	char* pSeq = (*env)->GetDirectBufferAddress(env, seqsBuf);
+	size_t bufSize = 0;
+	void* bufMem = jnibwa_createChains((bwaidx_t*)idxAddr, pOpts, pXOpts, pSeq, &bufSize);
+	return wrapAlignments(env, bufMem, bufSize, 0);
+}
+
+// align each sequence in seqsBuf (formatted as for createAlignments, and recoded in place) locally to an interval of
+// the reference:  [starts[idx],ends[idx]) on contig refIds[idx]
+// the scoring options (and the output threshold, and the number of threads) are taken from optsBuf
+// we return a ByteBuffer (which the caller frees with destroyByteBuffer) that contains:
+// a 32-bit integer count of the number of sequences
+// a 32-bit integer giving the offset of the table of offsets below (in 32-bit units from the start of the buffer)
+// a 32-bit integer giving the total size of the results (in 32-bit units)
+// a table of 32-bit integers giving the offset of each sequence's alignment (in 32-bit units from the start of the buffer)
+// then, for each sequence, 32-bit integers giving
+//   the SAM flag (4 if there's no alignment that scores at least T, in which case the rest are 0, except the refID)
+//   the refID (-1 if unaligned), and the 0-based start and (exclusive) end of the alignment on that contig
+//   the 0-based start and (exclusive) end of the aligned part of the sequence
+//   NM, the alignment score, and the score of the next best (non-overlapping) alignment in the interval
+//   the mapping quality (always 0)
+//   nCigarOps, and the cigar ops (len<<4 | op), with the unaligned ends of the sequence soft-clipped
+JNIEXPORT jobject JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_createLocalAlignments(
+				JNIEnv* env, jclass cls, jobject seqsBuf, jlong idxAddr, jobject optsBuf, jintArray refIds,
+				jintArray starts, jintArray ends ) {
+	mem_opt_t* pOpts = (*env)->GetDirectBufferAddress(env, optsBuf);
+	char* pSeq = (*env)->GetDirectBufferAddress(env, seqsBuf);
+	jsize n = (*env)->GetArrayLength(env, refIds);
+	int32_t* pRids = malloc((n ? 3*n : 1)*sizeof(int32_t));
+	if ( !pRids ) return 0;
+	int32_t* pBegs = pRids + n;
+	int32_t* pEnds = pBegs + n;
+	(*env)->GetIntArrayRegion(env, refIds, 0, n, (jint*)pRids);
+	(*env)->GetIntArrayRegion(env, starts, 0, n, (jint*)pBegs);
+	(*env)->GetIntArrayRegion(env, ends, 0, n, (jint*)pEnds);
+	size_t bufSize = 0;
+	void* bufMem = jnibwa_createLocalAlignments((bwaidx_t*)idxAddr, pOpts, pSeq, pRids, pBegs, pEnds, &bufSize);
+	free(pRids);
+	return wrapAlignments(env, bufMem, bufSize, 0);
+}
+
+// realign the clipped segment of each read:  [clipStarts[idx],clipEnds[idx]) of the idx'th sequence in seqsBuf
+// (formatted as for createAlignments, and recoded in place), which is aligned by bwa as an unpaired read
+// if window > 0, only chains within window bases of the anchor (anchorPositions[idx] on contig anchorRefIds[idx])
+// are extended, unless the anchorRefId is negative
+// the options (including the output threshold, and the number of threads) are taken from optsBuf
+// we return a ByteBuffer (which the caller frees with destroyByteBuffer) laid out just as for createLocalAlignments,
+// except that the SAM flag has the 0x10 bit set for alignments to the reverse strand, and the mapping quality is
+// bwa's:  the cigar covers the whole read, in reference orientation, with everything outside the aligned part of
+// the segment soft-clipped, and the start and end of the aligned part are in that orientation, too
+JNIEXPORT jobject JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_realignClips(
+				JNIEnv* env, jclass cls, jobject seqsBuf, jlong idxAddr, jobject optsBuf, jintArray clipStarts,
+				jintArray clipEnds, jintArray anchorRefIds, jintArray anchorPositions, jint window ) {
+	mem_opt_t* pOpts = (*env)->GetDirectBufferAddress(env, optsBuf);
+	char* pSeq = (*env)->GetDirectBufferAddress(env, seqsBuf);
+	jsize n = (*env)->GetArrayLength(env, clipStarts);
+	int32_t* pClipBegs = malloc((n ? 4*n : 1)*sizeof(int32_t));
+	if ( !pClipBegs ) return 0;
+	int32_t* pClipEnds = pClipBegs + n;
+	int32_t* pAnchorRids = pClipEnds + n;
+	int32_t* pAnchorPos = pAnchorRids + n;
+	(*env)->GetIntArrayRegion(env, clipStarts, 0, n, (jint*)pClipBegs);
+	(*env)->GetIntArrayRegion(env, clipEnds, 0, n, (jint*)pClipEnds);
+	(*env)->GetIntArrayRegion(env, anchorRefIds, 0, n, (jint*)pAnchorRids);
+	(*env)->GetIntArrayRegion(env, anchorPositions, 0, n, (jint*)pAnchorPos);
+	size_t bufSize = 0;
+	void* bufMem = jnibwa_realignClips((bwaidx_t*)idxAddr, pOpts, pSeq, pClipBegs, pClipEnds, pAnchorRids,
+										pAnchorPos, window, &bufSize);
+	free(pClipBegs);
+	return wrapAlignments(env, bufMem, bufSize, 0);
+}
+
+// align pairs of sequences to each other, without an index:  the sequences in seqsBuf (formatted as for
+// createAlignments, and recoded in place) alternate between a query and its target
+// the mode is one of the JNIBWA_PAIR_* values, and initialScore is the score of the implied anchor in the extension
+// mode (see jnibwa.c)
+// the scoring options (and the number of threads) are taken from optsBuf
+// we return a ByteBuffer (which the caller frees with destroyByteBuffer) that contains:
+// a 32-bit integer count of the number of pairs
+// a 32-bit integer giving the offset of the table of offsets below (in 32-bit units from the start of the buffer)
+// a 32-bit integer giving the total size of the results (in 32-bit units)
+// a table of 32-bit integers giving the offset of each pair's alignment (in 32-bit units from the start of the buffer)
+// then, for each pair, 32-bit integers giving
+//   the score (0 if nothing aligned, in which case the rest are -1 or 0)
+//   the 0-based start and (exclusive) end of the alignment on the query, and on the target
+//   NM, nCigarOps, and the cigar ops (len<<4 | op), with the unaligned ends of the query soft-clipped
+JNIEXPORT jobject JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_alignPairs(
+				JNIEnv* env, jclass cls, jobject seqsBuf, jobject optsBuf, jint mode, jint initialScore ) {
+	mem_opt_t* pOpts = (*env)->GetDirectBufferAddress(env, optsBuf);
+	char* pSeq = (*env)->GetDirectBufferAddress(env, seqsBuf);
+	if ( mode < JNIBWA_PAIR_LOCAL || mode > JNIBWA_PAIR_EXTEND ) return 0;
+	size_t bufSize = 0;
+	void* bufMem = jnibwa_alignPairs(pOpts, mode, initialScore, pSeq, &bufSize);
+	return wrapAlignments(env, bufMem, bufSize, 0);
+}
+
+// FM-index queries on a batch of sequences (formatted as for createAlignments, and recoded in place)
+// findSAIntervals returns a long[] with 2 elements for each sequence:  the first suffix-array row of its exact
+//   matches (on either strand), and the number of rows (i.e., the number of occurrences)
+JNIEXPORT jlongArray JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_findSAIntervals(
+				JNIEnv* env, jclass cls, jlong idxAddr, jobject seqsBuf ) {
+	char* pSeq = (*env)->GetDirectBufferAddress(env, seqsBuf);
+	uint32_t nSeqs;
+	memcpy(&nSeqs, pSeq, sizeof(uint32_t));
+	int64_t* pOut = malloc((nSeqs ? 2*nSeqs : 1)*sizeof(int64_t));
+	if ( !pOut ) return 0;
+	jnibwa_findIntervals((bwaidx_t*)idxAddr, pSeq, pOut);
+	jlongArray result = (*env)->NewLongArray(env, 2*nSeqs);
+	if ( result ) (*env)->SetLongArrayRegion(env, result, 0, 2*nSeqs, (jlong const*)pOut);
+	free(pOut);
+	return result;
+}
+
+// resolveSAPositions returns an int[] with 3 elements for each suffix-array row in saPositions:  the reference id,
+//   the 0-based start on the forward strand of that contig, and a flag that's non-zero if the match (whose length is
+//   given by the corresponding element of lengths) is on the reverse strand
+//   the reference id is -1 if the row is out of range, or if the match straddles contigs
+JNIEXPORT jintArray JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_resolveSAPositions(
+				JNIEnv* env, jclass cls, jlong idxAddr, jlongArray saPositions, jintArray lengths ) {
+	jsize n = (*env)->GetArrayLength(env, saPositions);
+	int64_t* pSAPos = malloc((n ? n : 1)*sizeof(int64_t));
+	int32_t* pLens = malloc((n ? n : 1)*sizeof(int32_t));
+	int32_t* pOut = malloc((n ? 3*n : 1)*sizeof(int32_t));
+	jintArray result = 0;
+	if ( pSAPos && pLens && pOut ) {
+		(*env)->GetLongArrayRegion(env, saPositions, 0, n, (jlong*)pSAPos);
+		(*env)->GetIntArrayRegion(env, lengths, 0, n, (jint*)pLens);
+		jnibwa_resolveSAPositions((bwaidx_t*)idxAddr, n, pSAPos, pLens, pOut);
+		result = (*env)->NewIntArray(env, 3*n);
+		if ( result ) (*env)->SetIntArrayRegion(env, result, 0, 3*n, (jint const*)pOut);
+	}
+	free(pSAPos);
+	free(pLens);
+	free(pOut);
+	return result;
+}
+
+// findSMEMs returns a ByteBuffer (which the caller frees with destroyByteBuffer) of 64-bit integers that contains:
+// a count of the number of sequences
+// the offset of the table of offsets below (in 64-bit units from the start of the buffer)
+// the total size of the results (in 64-bit units)
+// a table giving the offset of each sequence's SMEMs (in 64-bit units from the start of the buffer)
+// then, for each sequence,
+//   a count of the number of SMEMs that follow
+//   for each SMEM (of at least minLen bases), its start and (exclusive) end on the sequence, its first suffix-array
+//   row, and its number of occurrences
+JNIEXPORT jobject JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_findSMEMs(
+				JNIEnv* env, jclass cls, jlong idxAddr, jobject seqsBuf, jint minLen ) {
+	char* pSeq = (*env)->GetDirectBufferAddress(env, seqsBuf);
+	size_t bufSize = 0;
+	void* bufMem = jnibwa_findSMEMs((bwaidx_t*)idxAddr, minLen, pSeq, &bufSize);
+	return wrapAlignments(env, bufMem, bufSize, 0);
+}
+
+// scanMappability writes a byte into outBuf for each position in [start,end) on contig refId:  the number of
+//   occurrences, on either strand and saturated at 255, of the k-mer that starts there (0 if the k-mer runs off the
+//   end of the contig, or includes an ambiguous base)
+//   it returns the number of positions written (which is less than end-start if the span runs off the end of the
+//   contig), or -1 if the arguments don't make sense
+JNIEXPORT jlong JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_scanMappability(
+				JNIEnv* env, jclass cls, jlong idxAddr, jint k, jint refId, jlong start, jlong end, jint nThreads,
+				jobject outBuf ) {
+	uint8_t* pOut = (*env)->GetDirectBufferAddress(env, outBuf);
+	if ( end - start > (*env)->GetDirectBufferCapacity(env, outBuf) ) return -1;
+	return jnibwa_scanMappability((bwaidx_t*)idxAddr, k, refId, start, end, nThreads, pOut);
+}
+
+// a context keeps an aligner's scratch space from one batch to the next (so long as it's no bigger than maxBytes)
+// destroyContext waits for any batch that's using the context to finish with it
+JNIEXPORT jlong JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_createContext( JNIEnv* env, jclass cls, jlong maxBytes ) {
+	return (jlong)jnibwa_createContext(maxBytes > 0 ? maxBytes : 0);
+}
+
+JNIEXPORT void JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_setContextLimit(
+				JNIEnv* env, jclass cls, jlong ctxAddr, jlong maxBytes ) {
+	jnibwa_setContextLimit((jnibwa_context_t*)ctxAddr, maxBytes > 0 ? maxBytes : 0);
+}
+
+JNIEXPORT jlong JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_getContextSize( JNIEnv* env, jclass cls, jlong ctxAddr ) {
+	return jnibwa_getContextSize((jnibwa_context_t*)ctxAddr);
+}
+
+JNIEXPORT void JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_trimContext( JNIEnv* env, jclass cls, jlong ctxAddr ) {
+	jnibwa_trimContext((jnibwa_context_t*)ctxAddr);
+}
+
+JNIEXPORT void JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_destroyContext( JNIEnv* env, jclass cls, jlong ctxAddr ) {
+	jnibwa_destroyContext((jnibwa_context_t*)ctxAddr);
+}
+
+// estimate the pair-end stats for each orientation from a batch of pairs (arguments as for createAlignments)
+// the stats are written into statsBuf in the same format as in the header of createAlignments' results
+// returns the number of pairs examined
+JNIEXPORT jint JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_estimatePairEndStats(
+				JNIEnv* env, jclass cls, jobject seqsBuf, jlong idxAddr, jobject optsBuf, jobject statsBuf ) {
+	mem_opt_t* pOpts = (*env)->GetDirectBufferAddress(env, optsBuf);
+	char* pSeq = (*env)->GetDirectBufferAddress(env, seqsBuf);
+	mem_pestat_t pestat[4];
+	memset(pestat, 0, sizeof(pestat));
+	int nPairs = jnibwa_estimatePestats((bwaidx_t*)idxAddr, pOpts, pSeq, pestat);
+	jnibwa_putPestats(pestat, (*env)->GetDirectBufferAddress(env, statsBuf));
+	return nPairs;
+}
+
+// createAlignments in stages, so that the caller can run each stage on threads of its own:
+// stageAlignments sets up the batch (the arguments are as for createAlignments), and returns its address
+//   the options and pair-end stats are copied, but seqsBuf, targetsBuf, cancelBuf, and outBuf must stay put until
+//   the batch is finished
+// findStagedRegions runs the 1st stage (seeding, chaining, and extension) over the jobs (sequences, or pairs when
+//   aligning pairs) in [from,to) -- concurrent calls are fine, so long as their ranges don't overlap
+// inferStagedPairEndStats infers the pair-end stats from the whole batch (unless they were supplied)
+//   call it once all the regions have been found, and before any are formatted
+// formatStagedAlignments runs the 2nd stage (pairing and formatting) over the jobs in [from,to)
+// finishStagedAlignments frees the staged batch, and returns its alignments as createAlignments would
+// discardStagedAlignments frees the staged batch without returning anything
+JNIEXPORT jlong JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_stageAlignments(
+				JNIEnv* env, jclass cls, jobject seqsBuf, jlong idxAddr, jobject optsBuf, jobject xoptsBuf,
+				jobject targetsBuf, jobject cancelBuf, jobjectArray peStats, jobject outBuf ) {
+	mem_opt_t* pOpts = (*env)->GetDirectBufferAddress(env, optsBuf);
+	if ( !checkPairs(env, pOpts, (*env)->GetDirectBufferAddress(env, seqsBuf)) ) return 0;
+	jnibwa_xopt_t xopts;
+	jnibwa_xopt_t* pXOpts = getXOpts(env, xoptsBuf, targetsBuf, &xopts);
+	int32_t* pCancel = cancelBuf ? (*env)->GetDirectBufferAddress(env, cancelBuf) : 0;
+	mem_pestat_t pestat[4];
+	int pestatProvided = jobject_to_mem_pestat_t(env, peStats, pestat);
+	char* pSeq = (*env)->GetDirectBufferAddress(env, seqsBuf);
+	void* pOut = outBuf ? (*env)->GetDirectBufferAddress(env, outBuf) : 0;
+	size_t outCapacity = pOut ? (*env)->GetDirectBufferCapacity(env, outBuf) : 0;
+	return (jlong)jnibwa_stageBatch((bwaidx_t*)idxAddr, pOpts, pXOpts, pCancel, pestatProvided ? pestat : 0,
+									pSeq, pOut, outCapacity);
+}
+
+JNIEXPORT void JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_findStagedRegions(
+				JNIEnv* env, jclass cls, jlong stagedAddr, jint from, jint to ) {
+	jnibwa_findStagedRegions((jnibwa_staged_t*)stagedAddr, from, to);
+}
+
+JNIEXPORT void JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_inferStagedPairEndStats(
+				JNIEnv* env, jclass cls, jlong stagedAddr ) {
+	jnibwa_inferStagedPestats((jnibwa_staged_t*)stagedAddr);
+}
+
+JNIEXPORT void JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_formatStagedAlignments(
+				JNIEnv* env, jclass cls, jlong stagedAddr, jint from, jint to ) {
+	jnibwa_formatStagedRegions((jnibwa_staged_t*)stagedAddr, from, to);
+}
+
+JNIEXPORT jobject JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_finishStagedAlignments(
+				JNIEnv* env, jclass cls, jlong stagedAddr, jobject outBuf ) {
+	size_t bufSize = 0;
+	void* bufMem = jnibwa_finishStaged((jnibwa_staged_t*)stagedAddr, &bufSize);
+	return wrapAlignments(env, bufMem, bufSize, outBuf);
+}
+
+JNIEXPORT void JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_discardStagedAlignments(
+				JNIEnv* env, jclass cls, jlong stagedAddr ) {
+	jnibwa_discardStaged((jnibwa_staged_t*)stagedAddr);
+}
+
+// the asynchronous version of createAlignments:
+// createJobQueue starts nWorkers native threads that run alignment jobs
+// submitJob queues a job (the arguments are as for createAlignments), and returns its address right away (or 0 if
+//   the queue has been stopped)
+//   the options (both sets) and pair-end stats are copied, but seqsBuf, targetsBuf, cancelBuf, and outBuf must stay
+//   put until the job is finished, and so must the context (if any), which the job uses if it's free
+// awaitJob blocks until some job is done, and returns its address (or 0, once the queue has been stopped and all
+//   its jobs have been collected)
+// finishJob frees the job, and returns its alignments as createAlignments would
+// stopJobQueue lets the workers finish the queued jobs, and waits for them to exit
+// destroyJobQueue frees a stopped queue (once awaitJob has returned 0)
+JNIEXPORT jlong JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_createJobQueue( JNIEnv* env, jclass cls, jint nWorkers ) {
+	return (jlong)jnibwa_createQueue(nWorkers);
+}
+
+JNIEXPORT void JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_stopJobQueue( JNIEnv* env, jclass cls, jlong queueAddr ) {
+	jnibwa_stopQueue((jnibwa_queue_t*)queueAddr);
+}
+
+JNIEXPORT void JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_destroyJobQueue( JNIEnv* env, jclass cls, jlong queueAddr ) {
+	jnibwa_destroyQueue((jnibwa_queue_t*)queueAddr);
+}
+
+JNIEXPORT jlong JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_submitJob(
+				JNIEnv* env, jclass cls, jlong queueAddr, jobject seqsBuf, jlong idxAddr, jobject optsBuf,
+				jobject xoptsBuf, jobject targetsBuf, jlong ctxAddr, jobject cancelBuf, jobjectArray peStats,
+				jobject outBuf ) {
+	mem_opt_t* pOpts = (*env)->GetDirectBufferAddress(env, optsBuf);
+	if ( !checkPairs(env, pOpts, (*env)->GetDirectBufferAddress(env, seqsBuf)) ) return 0;
+	jnibwa_xopt_t xopts;
+	jnibwa_xopt_t* pXOpts = getXOpts(env, xoptsBuf, targetsBuf, &xopts);
+	int32_t* pCancel = cancelBuf ? (*env)->GetDirectBufferAddress(env, cancelBuf) : 0;
+	mem_pestat_t pestat[4];
+	int pestatProvided = jobject_to_mem_pestat_t(env, peStats, pestat);
+	char* pSeq = (*env)->GetDirectBufferAddress(env, seqsBuf);
+	void* pOut = outBuf ? (*env)->GetDirectBufferAddress(env, outBuf) : 0;
+	size_t outCapacity = pOut ? (*env)->GetDirectBufferCapacity(env, outBuf) : 0;
+	return (jlong)jnibwa_submitJob((jnibwa_queue_t*)queueAddr, (bwaidx_t*)idxAddr, pOpts, pXOpts,
+									(jnibwa_context_t*)ctxAddr, pCancel,
+									pestatProvided ? pestat : 0, pSeq, pOut, outCapacity);
+}
+
+JNIEXPORT jlong JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_awaitJob( JNIEnv* env, jclass cls, jlong queueAddr ) {
+	return (jlong)jnibwa_awaitJob((jnibwa_queue_t*)queueAddr);
+}
+
+JNIEXPORT jobject JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_finishJob(
+				JNIEnv* env, jclass cls, jlong jobAddr, jobject outBuf ) {
+	size_t bufSize = 0;
+	void* bufMem = jnibwa_finishJob((jnibwa_job_t*)jobAddr, &bufSize);
+	return wrapAlignments(env, bufMem, bufSize, outBuf);
+}
+
+// the native thread pool that's used instead of bwa's kt_for to run the alignment threads
+// startThreadPool returns the number of threads started (0 if there's already a pool)
+JNIEXPORT jint JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_startThreadPool( JNIEnv* env, jclass cls, jint nThreads ) {
+	return jnibwa_startPool(nThreads);
+}
+
+JNIEXPORT jint JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_getThreadPoolSize( JNIEnv* env, jclass cls ) {
+	return jnibwa_getPoolSize();
+}
+
+JNIEXPORT void JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_stopThreadPool( JNIEnv* env, jclass cls ) {
+	jnibwa_stopPool();
+}
+
+// returns a ByteBuffer wrapping capacity bytes of uninitialized, malloc'd memory (or null if there isn't any)
+// free it with destroyByteBuffer
+JNIEXPORT jobject JNICALL
+Java_org_broadinstitute_hellbender_utils_bwa_BwaMemIndex_createByteBuffer( JNIEnv* env, jclass cls, jint capacity ) {
+	void* bufMem = malloc(capacity > 0 ? capacity : 1);
+	if ( !bufMem ) return 0;
+	jobject buf = (*env)->NewDirectByteBuffer(env, bufMem, capacity);
+	if ( !buf ) free(bufMem);
+	return buf;
 }
 
 JNIEXPORT void JNICALL
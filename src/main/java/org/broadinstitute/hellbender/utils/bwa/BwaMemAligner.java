@@ -3,8 +3,13 @@ package org.broadinstitute.hellbender.utils.bwa;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 /**
@@ -13,23 +18,56 @@ import java.util.function.Function;
  * Usage pattern:
  *   Create a BwaMemAligner on some BwaMemIndex
  *   Set your bwa-mem parameters
- *   Align 1 or more chunks of sequences with alignSeqs
+ *   Align 1 or more chunks of sequences with alignSeqs (or submit them, and carry on with something else)
+ *     (You can have alignSeqs do its work on a ForkJoinPool of yours, instead of on bwa's own threads.)
  *   Close the BwaMemAligner
  * This class is not thread-safe, but it's very light-weight:  just use a separate instance in each thread.  
  */
 public final class BwaMemAligner implements AutoCloseable {
     private final BwaMemIndex index;
+    private final BwaMemBufferArena arena;
     private ByteBuffer opts;
+    private final ByteBuffer xopts; // options of our own, beyond bwa's (a jnibwa_xopt_t)
+    private long contextAddress; // native scratch space that's kept from one batch to the next
+    private int nSubmittedJobs; // jobs in the job queue that may use the context (guarded by contextLock)
+    private final Object contextLock = new Object();
+    private ByteBuffer singleSeqOutBuf; // kept for alignOne, so that it doesn't have to go to the arena each time
 
-    private BwaMemPairEndStats pairEndStats;
+    private BwaMemPairEndStats[] pairEndStats; // by orientation, or null to have bwa infer them for each batch
+    private BwaMemPairEndStatsAccumulator pairEndStatsAccumulator;
+    private volatile BwaMemPairEndStats[] lastPairEndStats;
+
+    // running totals of the sequences that took our short cuts (batches may finish on other threads)
+    private final AtomicLong nPrefilteredSequences = new AtomicLong();
+    private final AtomicLong nExactMatchSequences = new AtomicLong();
+    private final AtomicLong nOverBudgetSequences = new AtomicLong();
+    private final AtomicLong nOffTargetSequences = new AtomicLong();
+
+    private volatile BwaMemCancellationToken cancellationToken;
+    private volatile BwaMemIntervalSet targetIntervals;
+
+    // for sizing the output buffer:  bytes required per sequence by the largest batch (per sequence) we've seen
+    private volatile int resultBytesPerSequence = INITIAL_RESULT_BYTES_PER_SEQUENCE;
+    private static final int INITIAL_RESULT_BYTES_PER_SEQUENCE = 160; // a mapped, paired read with a few cigar ops
+    private static final int RESULT_HEADER_BYTES = 16 + BwaMemPairEndStats.N_ORIENTATIONS*BwaMemPairEndStats.ENCODED_SIZE +
+                                                    4*BwaMemAlignmentCursor.N_COUNTS;
+    private static final int XOPTS_SIZE = 8;
+    public static final long DEFAULT_SCRATCH_SPACE_LIMIT = 64L << 20;
+
+    // when aligning on a ForkJoinPool, cut the batch into about this many sub-batches per worker, so that there's
+    // something left to steal when some sub-batches turn out to be harder than others
+    private static final int SUB_BATCHES_PER_WORKER = 8;
 
     public BwaMemAligner( final BwaMemIndex index ) {
         this.index = index;
         if ( !index.isOpen() ) {
             throw new IllegalStateException("Can't create aligner: bwa-mem index has been closed");
         }
+        arena = new BwaMemBufferArena();
         opts = BwaMemIndex.createDefaultOptions();
         opts.order(ByteOrder.nativeOrder()).position(0).limit(opts.capacity());
+        xopts = ByteBuffer.allocateDirect(XOPTS_SIZE).order(ByteOrder.nativeOrder());
+        contextAddress = BwaMemIndex.createContext(DEFAULT_SCRATCH_SPACE_LIMIT);
         pairEndStats = null;
     }
 
@@ -40,6 +78,18 @@ public final class BwaMemAligner implements AutoCloseable {
         if ( opts != null ) {
             BwaMemIndex.destroyByteBuffer(opts);
             opts = null;
+            if ( singleSeqOutBuf != null ) {
+                arena.release(singleSeqOutBuf);
+                singleSeqOutBuf = null;
+            }
+            arena.close();
+            synchronized (contextLock) {
+                // if there are submitted jobs that might use the context, the last of them destroys it
+                if ( contextAddress != 0L && nSubmittedJobs == 0 ) {
+                    BwaMemIndex.destroyContext(contextAddress);
+                    contextAddress = 0L;
+                }
+            }
         }
     }
 
@@ -134,6 +184,56 @@ public final class BwaMemAligner implements AutoCloseable {
         tmpOpts.position(140);
         tmpOpts.put(mat);
     }
+
+    // flag bits for the extra flag option (these are ours, not bwa's)
+    /**
+     * Have bwa's threads start on the sequences (or pairs) that look most expensive, so that a few long or
+     * repetitive ones don't straggle in at the end of each batch.  The cost is guessed from the length, and from how
+     * repetitive a few seed-length probes are in the index.  The results are the same, and in the same order,
+     * either way.  Only has effect when NThreads is more than 1 (and not when aligning on a ForkJoinPool).
+     */
+    public static final int XF_COST_ORDER = 0x1;
+    /**
+     * Check first whether each sequence occurs verbatim, and just once, in the reference (on either strand).  If so,
+     * its alignment is known without seeding, chaining, or Smith-Waterman extension:  a full-length match with no
+     * mismatches.  (Pairing, and the rest of the output, are handled as usual.)  This saves a lot of work on
+     * high-quality short reads.  The one difference you may notice is that a read aligned this way doesn't get a
+     * suboptimal score (XS), because we don't look for other, inexact, hits.  So its mapping quality may be higher
+     * than bwa would have given it if the read also has near-matches elsewhere.
+     */
+    public static final int XF_EXACT_MATCH = 0x2;
+    /**
+     * Before seeding each sequence, check whether it has any chance of mapping:  if none of a set of probes of
+     * MinSeedLength bases, spaced so that any exact match long enough to reach the OutputScoreThreshold by itself
+     * would contain one, occurs in the reference, the sequence is reported as unmapped right away.  This saves
+     * the cost of SMEM seeding on contaminant reads.  The price is that a very divergent read, one that bwa might
+     * have aligned from a scattering of short seeds, may be reported as unmapped.  (Reads that take the exact-match
+     * fast path aren't filtered, of course.)  Use getNPrefilteredSequences to see how many reads were skipped.
+     */
+    public static final int XF_PREFILTER = 0x4;
+    /**
+     * Report sequences that exceed the work budget (see setMaxProbeOccurrencesOption) as unmapped, rather than
+     * aligning them with cheaper options.
+     */
+    public static final int XF_OVER_BUDGET_UNMAPPED = 0x8;
+    public int getExtraFlagOption() { return getXOpts().getInt(0); }
+    public void setExtraFlagOption( final int flag ) { getXOpts().putInt(0, flag); }
+
+    /**
+     * A per-sequence work budget, so that a few low-complexity or highly repetitive sequences can't stall a batch.
+     * Before seeding a sequence, we look up each of its non-overlapping, MinSeedLength-base stretches in the index,
+     * and add up the number of times they occur in the reference.  If the total is more than this, the sequence is
+     * over budget:  it's aligned with cheap options (no re-seeding, at most 20 hits per seed, and at most 4 chains
+     * extended), or, if you've set XF_OVER_BUDGET_UNMAPPED, it's reported as unmapped.  0 (the default) means no limit.
+     */
+    public int getMaxProbeOccurrencesOption() { return getXOpts().getInt(4); }
+    public void setMaxProbeOccurrencesOption( final int maxProbeOccs ) {
+        if ( maxProbeOccs < 0 ) {
+            throw new IllegalArgumentException("the maximum number of probe occurrences can't be negative");
+        }
+        getXOpts().putInt(4, maxProbeOccs);
+    }
+
     int getExpectedOptsSize() { return 168; }
     int getOptsSize() { return getOpts().capacity(); }
 
@@ -158,7 +258,7 @@ public final class BwaMemAligner implements AutoCloseable {
      * that information is not-available.
      */
     public void dontInferPairEndStats() {
-        pairEndStats = BwaMemPairEndStats.DO_NOT_INFER;
+        pairEndStats = BwaMemPairEndStats.forFROnly(BwaMemPairEndStats.DO_NOT_INFER);
     }
 
     /**
@@ -166,13 +266,160 @@ public final class BwaMemAligner implements AutoCloseable {
      * @param stats
      */
     public void setProperPairEndStats(final BwaMemPairEndStats stats) {
-        pairEndStats = stats;
+        pairEndStats = stats == null ? null : BwaMemPairEndStats.forFROnly(stats);
+    }
+
+    /**
+     * Indicate the pair-end inter size stats for each orientation -- e.g., those you got from estimatePairEndStats.
+     * @param stats An array indexed by orientation (BwaMemPairEndStats.FF, FR, RF, RR).  Null elements are
+     *              treated as FAILED.  A null array means that bwa should infer the stats from each batch.
+     */
+    public void setPairEndStats( final BwaMemPairEndStats[] stats ) {
+        if ( stats != null && stats.length != BwaMemPairEndStats.N_ORIENTATIONS ) {
+            throw new IllegalArgumentException("there must be stats for each of the " +
+                    BwaMemPairEndStats.N_ORIENTATIONS + " orientations");
+        }
+        pairEndStats = stats == null ? null : stats.clone();
+    }
+
+    /**
+     * The pair-end stats that were used to align the most recently completed batch of pairs (whether inferred by bwa,
+     * or supplied by you), indexed by orientation, or null if no pairs have been aligned.
+     */
+    public BwaMemPairEndStats[] getLastPairEndStats() {
+        final BwaMemPairEndStats[] stats = lastPairEndStats;
+        return stats == null ? null : stats.clone();
+    }
+
+    /**
+     * Estimate the pair-end stats from a sample of pairs, without producing any alignments.
+     * You can pin the stats for all later batches by passing the result to setPairEndStats.
+     * @param iterable An iterable over something like a read, that contains a sequence.  Reads and their mates
+     *                 must alternate.
+     * @param func A lambda that picks the sequence out of your read-like thing.
+     * @param <T> The read-like thing.
+     * @return The stats for each orientation, indexed by BwaMemPairEndStats.FF, FR, RF, and RR.
+     */
+    public <T> BwaMemPairEndStats[] estimatePairEndStats( final Iterable<T> iterable, final Function<T,byte[]> func ) {
+        getOpts();
+        try ( final BwaMemSequenceBatch batch = new BwaMemSequenceBatch(arena) ) {
+            for ( final T ele : iterable ) {
+                batch.add(func.apply(ele));
+            }
+            return estimatePairEndStats(batch);
+        }
+    }
+
+    /**
+     * Estimate the pair-end stats from a batch of pairs, without producing any alignments.
+     * @param batch A batch in which reads and their mates alternate.
+     * @return The stats for each orientation, indexed by BwaMemPairEndStats.FF, FR, RF, and RR.
+     */
+    public BwaMemPairEndStats[] estimatePairEndStats( final BwaMemSequenceBatch batch ) {
+        final ByteBuffer tmpOpts = getOpts();
+        if ( (batch.size() & 1) != 0 ) {
+            throw new IllegalArgumentException("there must be an even number of sequences -- reads and their mates");
+        }
+        return index.doPairEndStatsEstimation(batch.getEncodedBatch(), tmpOpts);
+    }
+
+    /**
+     * Accumulate insert-size stats across batches of pairs, and when they've stabilized, use them for all later
+     * batches in preference to the stats set by setProperPairEndStats (or bwa's per-batch inference).
+     * Only has effect in paired alignment.
+     * @param accumulator The accumulator to use (which may be shared with other aligners), or null to stop using one.
+     */
+    public void setPairEndStatsAccumulator( final BwaMemPairEndStatsAccumulator accumulator ) {
+        pairEndStatsAccumulator = accumulator;
+    }
+
+    public BwaMemPairEndStatsAccumulator getPairEndStatsAccumulator() {
+        return pairEndStatsAccumulator;
     }
 
     public BwaMemIndex getIndex() {
         return index;
     }
 
+    /**
+     * The aligner keeps its native scratch space (the sequence and region arrays for a batch, and each thread's
+     * seeding bookkeeping) from one batch to the next, so that steady-state alignment doesn't keep going back to
+     * the native heap.  If, after a batch, it's holding on to more than this many bytes, it lets go of all of it.
+     * (Batches aligned on a ForkJoinPool don't use it, and a submitted batch uses it only if no other batch is.)
+     */
+    public void setScratchSpaceLimit( final long maxBytes ) {
+        getOpts();
+        if ( maxBytes < 0L ) {
+            throw new IllegalArgumentException("the scratch space limit can't be negative");
+        }
+        if ( contextAddress != 0L ) BwaMemIndex.setContextLimit(contextAddress, maxBytes);
+    }
+
+    /** The number of bytes of native scratch space that the aligner is holding on to. */
+    public long getScratchSpaceSize() {
+        getOpts();
+        return contextAddress == 0L ? 0L : BwaMemIndex.getContextSize(contextAddress);
+    }
+
+    /** Let go of the native scratch space. */
+    public void trimScratchSpace() {
+        getOpts();
+        if ( contextAddress != 0L ) BwaMemIndex.trimContext(contextAddress);
+    }
+
+    /**
+     * The number of sequences that the pre-filter (XF_PREFILTER) has reported as unmapped, without seeding them,
+     * since this aligner was created.  (Each cursor also tells you the count for its batch.)
+     */
+    public long getNPrefilteredSequences() { return nPrefilteredSequences.get(); }
+
+    /** The number of sequences aligned by the exact-match fast path (XF_EXACT_MATCH) since this aligner was created. */
+    public long getNExactMatchSequences() { return nExactMatchSequences.get(); }
+
+    /** The number of sequences that have exceeded the work budget since this aligner was created. */
+    public long getNOverBudgetSequences() { return nOverBudgetSequences.get(); }
+
+    /**
+     * The number of sequences that have been reported as unmapped because none of their seeds touched a target
+     * interval since this aligner was created.
+     */
+    public long getNOffTargetSequences() { return nOffTargetSequences.get(); }
+
+    /**
+     * Restrict alignment to a set of target intervals (for amplicon or exome panels, say):  chains of seeds that
+     * don't touch a target are dropped before they're extended, and sequences that are left with no chains are
+     * reported as unmapped.  This applies to batches started from now on, however they're aligned, and to alignOne.
+     * Sequences that take the exact-match fast path are held to the targets, too.
+     * @param intervals The targets, on this aligner's index, or null to align against the whole reference again.
+     */
+    public void setTargetIntervals( final BwaMemIntervalSet intervals ) {
+        getOpts();
+        if ( intervals != null && intervals.getIndex() != index ) {
+            throw new IllegalArgumentException("The target intervals are for some other index.");
+        }
+        targetIntervals = intervals;
+    }
+
+    public BwaMemIntervalSet getTargetIntervals() { return targetIntervals; }
+
+    /**
+     * Batches started from now on (whether aligned synchronously, submitted, or aligned on a ForkJoinPool) can be
+     * abandoned by cancelling this token.  A cancelled batch gets you a CancellationException instead of alignments.
+     * (alignOne doesn't watch the token.)
+     * @param token The token to watch, or null to make batches uncancellable again.
+     */
+    public void setCancellationToken( final BwaMemCancellationToken token ) {
+        getOpts();
+        cancellationToken = token;
+    }
+
+    public BwaMemCancellationToken getCancellationToken() { return cancellationToken; }
+
+    /** The arena that recycles this aligner's native buffers.  You can use it to build batches, too. */
+    public BwaMemBufferArena getBufferArena() {
+        return arena;
+    }
+
     /**
      * Just align some sequences.
      * @param sequences A list of byte[]'s that contain base calls (ASCII 'A', 'C', 'G', or 'T').
@@ -184,138 +431,669 @@ public final class BwaMemAligner implements AutoCloseable {
 
     /**
      * A more abstract version that takes an iterable of things that can be turned into a byte[] of base calls.
+     * The iterable is traversed just once, and func is applied just once to each element.
      * @param iterable An iterable over something like a read, that contains a sequence.
      * @param func A lambda that picks the sequence out of your read-like thing.
      * @param <T> The read-like thing.
      * @return A list of (possibly multiple) alignments for each input sequence.
      */
     public <T> List<List<BwaMemAlignment>> alignSeqs( final Iterable<T> iterable, final Function<T,byte[]> func ) {
+        getOpts();
+        try ( final BwaMemSequenceBatch batch = new BwaMemSequenceBatch(arena) ) {
+            for ( final T ele : iterable ) {
+                batch.add(func.apply(ele));
+            }
+            return alignSeqs(batch);
+        }
+    }
+
+    /**
+     * Align a batch of sequences that you've already encoded.
+     * @param batch The sequences to align.  bwa recodes the bases in place, but you can clear and reuse the batch afterwards.
+     * @return A list of the same length as the batch.  Each element is a list of alignments for the corresponding sequence.
+     */
+    public List<List<BwaMemAlignment>> alignSeqs( final BwaMemSequenceBatch batch ) {
+        try ( final BwaMemAlignmentCursor cursor = alignSeqsToCursor(batch) ) {
+            return decodeAlignments(cursor);
+        }
+    }
+
+    /**
+     * Align a single sequence with as little overhead as possible, for interactive use.
+     * The sequence goes straight to bwa's single-read core on the calling thread:  there's no batch to encode, no
+     * thread hand-offs, and (in the steady state) no buffers to allocate, either in Java or in the native heap.
+     * The sequence is aligned as an unpaired read, even if the aligner is set to align pairs.  The NThreads option
+     * is irrelevant.
+     * @param sequence The base calls (ASCII 'A', 'C', 'G', or 'T').  It isn't modified.
+     * @return The alignments.  There's always at least 1, though it may be unmapped.
+     */
+    public List<BwaMemAlignment> alignOne( final byte[] sequence ) {
         final ByteBuffer tmpOpts = getOpts();
+        if ( singleSeqOutBuf == null ) {
+            singleSeqOutBuf = arena.acquire(RESULT_HEADER_BYTES + 4 + resultBytesPerSequence);
+        }
         index.refIndex(); // tell the index that we're doing some aligning so that it can't be closed
         final ByteBuffer alignsBuf;
-        int nSequences = 0;
         try {
-            int bufferCapacity = 4; // buffer will have a 4-byte sequence count as it's first element
-            for ( final T ele : iterable ) {
-                nSequences += 1;
-                bufferCapacity += func.apply(ele).length + 1; // sequence length bytes + 1 for the trailing null
+            alignsBuf = index.doSingleAlignment(sequence, tmpOpts, xopts, getTargetsBuffer(), contextAddress,
+                                                singleSeqOutBuf);
+        }
+        finally {
+            index.deRefIndex();
+        }
+        if ( alignsBuf == singleSeqOutBuf ) {
+            // we're keeping the buffer, so this cursor mustn't be closed
+            final BwaMemAlignmentCursor cursor = new BwaMemAlignmentCursor(alignsBuf, arena);
+            countShortCuts(cursor);
+            return decodeAlignments(cursor).get(0);
+        }
+        final List<BwaMemAlignment> alignments;
+        try ( final BwaMemAlignmentCursor cursor = new BwaMemAlignmentCursor(alignsBuf, null) ) {
+            countShortCuts(cursor);
+            alignments = decodeAlignments(cursor).get(0);
+        }
+        // didn't fit:  trade up to a buffer that would have
+        arena.release(singleSeqOutBuf);
+        singleSeqOutBuf = null;
+        singleSeqOutBuf = arena.acquire(alignsBuf.capacity());
+        return alignments;
+    }
+
+    /**
+     * Find the chains of seeds for some sequences, without extending them into alignments:  this runs only the
+     * seeding and chaining that begin bwa's alignment process, skipping the Smith-Waterman extension, the MD and
+     * XA tags, and the pairing of mates, so it's much cheaper than aligning.
+     * Every sequence is treated as unpaired.  The target intervals, if any, are respected (chains that don't touch
+     * a target aren't reported), but none of the other XF_* options apply.
+     * @param sequences A list of byte[]'s that contain base calls (ASCII 'A', 'C', 'G', or 'T').
+     * @return A list of the same length as the input list.  Each element holds the chains for the corresponding sequence.
+     */
+    public List<BwaMemChains> findChains( final List<byte[]> sequences ) {
+        getOpts();
+        try ( final BwaMemSequenceBatch batch = new BwaMemSequenceBatch(arena) ) {
+            for ( final byte[] sequence : sequences ) {
+                batch.add(sequence);
             }
-            final ByteBuffer contigBuf = ByteBuffer.allocateDirect(bufferCapacity);
-            contigBuf.order(ByteOrder.nativeOrder());
-            contigBuf.putInt(nSequences);
-            for ( final T ele : iterable ) {
-                contigBuf.put(func.apply(ele)).put((byte) 0);
+            return findChains(batch);
+        }
+    }
+
+    /**
+     * Find the chains of seeds for a batch of sequences that you've already encoded.
+     * @param batch The sequences.  bwa recodes the bases in place, but you can clear and reuse the batch afterwards.
+     * @return A list of the same length as the batch.  Each element holds the chains for the corresponding sequence.
+     */
+    public List<BwaMemChains> findChains( final BwaMemSequenceBatch batch ) {
+        final ByteBuffer tmpOpts = getOpts();
+        index.refIndex(); // tell the index that we're doing some work so that it can't be closed
+        final ByteBuffer chainsBuf;
+        try {
+            chainsBuf = index.doChainQuery(batch.getEncodedBatch(), tmpOpts, xopts, getTargetsBuffer());
+        }
+        finally {
+            index.deRefIndex();
+        }
+        try {
+            return BwaMemChains.decode(chainsBuf);
+        }
+        finally {
+            BwaMemIndex.destroyByteBuffer(chainsBuf);
+        }
+    }
+
+    /**
+     * Align sequences (locally assembled contigs, say) to reference intervals of your choosing, rather than to the
+     * whole reference:  each sequence gets a local (Smith-Waterman) alignment to its interval, using bwa's SIMD
+     * aligner and the reference bases in the index, with this aligner's scoring options.  There's no seeding.
+     * The unaligned ends of a sequence are soft-clipped.  A sequence is reported as unmapped if its best alignment
+     * scores below the OutputScoreThreshold option.  Only the forward strand of each interval is aligned to.
+     * The mapping quality isn't meaningful (it's always 0), there are no MD or XA tags, and the suboptimal score is
+     * that of the next best alignment within the interval.  The work is done on NThreads threads.
+     * The time taken for each sequence is proportional to the product of its length and that of its interval, so
+     * keep the intervals short (tens of kilobases, at most):  the memory needed is just proportional to the length
+     * of the sequence.
+     * @param sequences The base calls (ASCII 'A', 'C', 'G', or 'T') for each sequence.
+     * @param refIds The contig (an index into the index's getReferenceContigNames) of each sequence's interval.
+     * @param starts The 0-based start of each interval.
+     * @param ends The 0-based, exclusive end of each interval.
+     * @return An alignment for each sequence.
+     */
+    public List<BwaMemAlignment> alignToIntervals( final List<byte[]> sequences, final int[] refIds,
+                                                   final int[] starts, final int[] ends ) {
+        getOpts();
+        try ( final BwaMemSequenceBatch batch = new BwaMemSequenceBatch(arena) ) {
+            for ( final byte[] sequence : sequences ) {
+                batch.add(sequence);
+            }
+            return alignToIntervals(batch, refIds, starts, ends);
+        }
+    }
+
+    /**
+     * Align a batch of sequences that you've already encoded to reference intervals of your choosing.
+     * The batch's bases are recoded in place, but you can clear and reuse the batch afterwards.
+     * The other arguments, and the results, are as for alignToIntervals(List,int[],int[],int[]).
+     */
+    public List<BwaMemAlignment> alignToIntervals( final BwaMemSequenceBatch batch, final int[] refIds,
+                                                   final int[] starts, final int[] ends ) {
+        final ByteBuffer tmpOpts = getOpts();
+        final int nSequences = batch.size();
+        if ( refIds.length != nSequences || starts.length != nSequences || ends.length != nSequences ) {
+            throw new IllegalArgumentException("There must be an interval for each sequence.");
+        }
+        final int nContigs = index.getReferenceContigNames().size();
+        for ( int idx = 0; idx != nSequences; ++idx ) {
+            if ( refIds[idx] < 0 || refIds[idx] >= nContigs ) {
+                throw new IllegalArgumentException("interval " + idx + " has no such contig: " + refIds[idx]);
+            }
+            if ( starts[idx] < 0 || ends[idx] <= starts[idx] || ends[idx] > index.getReferenceContigLength(refIds[idx]) ) {
+                throw new IllegalArgumentException("interval " + idx + " has bad bounds: " + starts[idx] + "-" + ends[idx]);
+            }
+        }
+        index.refIndex(); // tell the index that we're doing some aligning so that it can't be closed
+        final ByteBuffer alignsBuf;
+        try {
+            alignsBuf = index.doLocalAlignment(batch.getEncodedBatch(), tmpOpts, refIds, starts, ends);
+        }
+        finally {
+            index.deRefIndex();
+        }
+        try {
+            return decodeLocalAlignments(alignsBuf);
+        }
+        finally {
+            BwaMemIndex.destroyByteBuffer(alignsBuf);
+        }
+    }
+
+    /**
+     * Realign the soft-clipped part of each read (to rescue split reads, say), without cutting it out and aligning
+     * it as a read of its own:  only the clipped segment, [clipStarts[idx],clipEnds[idx]), of each read is seeded,
+     * chained, and extended, as an unpaired read, with this aligner's options (but not its target intervals, or
+     * its short cuts).  If window is positive, the segment's alignment must be within that many bases of its
+     * anchor (anchorPositions[idx] on contig anchorRefIds[idx]), on either strand, which is a lot quicker, and
+     * avoids repeats elsewhere in the genome.  Reads with a negative anchorRefId are aligned to the whole
+     * reference, as are all the reads if the window is 0.
+     * Each result is the primary alignment of the segment (or an unmapped one, if nothing scored at least the
+     * OutputScoreThreshold option), described just as bwa would describe an alignment of the whole read:  its cigar
+     * covers the whole read, in reference orientation, with everything outside the aligned part of the segment
+     * soft-clipped, and seqStart and seqEnd are the ends of the aligned part in that orientation.  There are no MD or
+     * XA tags.  The work is done on NThreads threads.
+     * A segment that isn't within its read (or is empty) is an IllegalArgumentException.
+     * @param reads The base calls (ASCII 'A', 'C', 'G', or 'T') for each read.
+     * @param clipStarts The 0-based start of each read's clipped segment (e.g., the seqEnd of its alignment).
+     * @param clipEnds The 0-based, exclusive end of each read's clipped segment.
+     * @param anchorRefIds The contig of each read's anchor (e.g., the refId of its alignment), or -1 for none.
+     * @param anchorPositions The position of each read's anchor (e.g., the refEnd of its alignment).
+     * @param window How far from its anchor a segment may align, or 0 for anywhere.
+     * @return An alignment for each clipped segment.
+     */
+    public List<BwaMemAlignment> realignClips( final List<byte[]> reads, final int[] clipStarts, final int[] clipEnds,
+                                               final int[] anchorRefIds, final int[] anchorPositions,
+                                               final int window ) {
+        getOpts();
+        if ( clipStarts.length != reads.size() || clipEnds.length != reads.size() ) {
+            throw new IllegalArgumentException("There must be a clipped segment for each read.");
+        }
+        try ( final BwaMemSequenceBatch batch = new BwaMemSequenceBatch(arena) ) {
+            for ( int idx = 0; idx != clipEnds.length; ++idx ) {
+                final byte[] read = reads.get(idx);
+                checkClipBounds(idx, clipStarts[idx], clipEnds[idx], read.length);
+                batch.add(read);
+            }
+            return realignClips(batch, clipStarts, clipEnds, anchorRefIds, anchorPositions, window);
+        }
+    }
+
+    /**
+     * Realign the clipped segments of a batch of reads that you've already encoded.
+     * The batch's bases are recoded in place, but you can clear and reuse the batch afterwards.  A segment that isn't
+     * within its read is an IllegalArgumentException, just as for the other overload.
+     * The other arguments, and the results, are as for realignClips(List,int[],int[],int[],int[],int).
+     */
+    public List<BwaMemAlignment> realignClips( final BwaMemSequenceBatch batch, final int[] clipStarts,
+                                               final int[] clipEnds, final int[] anchorRefIds,
+                                               final int[] anchorPositions, final int window ) {
+        final ByteBuffer tmpOpts = getOpts();
+        final int nSequences = batch.size();
+        if ( clipStarts.length != nSequences || clipEnds.length != nSequences ||
+                anchorRefIds.length != nSequences || anchorPositions.length != nSequences ) {
+            throw new IllegalArgumentException("There must be a clipped segment and an anchor for each read.");
+        }
+        if ( window < 0 ) {
+            throw new IllegalArgumentException("The window can't be negative.");
+        }
+        final int nContigs = index.getReferenceContigNames().size();
+        final int[] readLengths = batch.getSequenceLengths();
+        for ( int idx = 0; idx != nSequences; ++idx ) {
+            checkClipBounds(idx, clipStarts[idx], clipEnds[idx], readLengths[idx]);
+            if ( anchorRefIds[idx] >= nContigs ) {
+                throw new IllegalArgumentException("anchor " + idx + " has no such contig: " + anchorRefIds[idx]);
             }
-            contigBuf.flip();
-            alignsBuf = index.doAlignment(contigBuf, tmpOpts, pairEndStats);
+        }
+        index.refIndex(); // tell the index that we're doing some aligning so that it can't be closed
+        final ByteBuffer alignsBuf;
+        try {
+            alignsBuf = index.doClipRealignment(batch.getEncodedBatch(), tmpOpts, clipStarts, clipEnds, anchorRefIds,
+                                                anchorPositions, window);
         }
         finally {
             index.deRefIndex();
         }
+        try {
+            return decodeLocalAlignments(alignsBuf);
+        }
+        finally {
+            BwaMemIndex.destroyByteBuffer(alignsBuf);
+        }
+    }
+
+    private static void checkClipBounds( final int idx, final int clipStart, final int clipEnd, final int readLength ) {
+        if ( clipStart < 0 || clipEnd <= clipStart || clipEnd > readLength ) {
+            throw new IllegalArgumentException("segment " + idx + " has bad bounds for a read of length " +
+                                                readLength + ": " + clipStart + "-" + clipEnd);
+        }
+    }
+
+    // the results of BwaMemIndex.createLocalAlignments (or realignClips, which are laid out the same way)
+    private static List<BwaMemAlignment> decodeLocalAlignments( final ByteBuffer alignsBuf ) {
         alignsBuf.order(ByteOrder.nativeOrder()).position(0).limit(alignsBuf.capacity());
-        final List<List<BwaMemAlignment>> allAlignments = new ArrayList<>(nSequences);
-        while ( nSequences-- > 0 ) {
-            int nAligns = alignsBuf.getInt();
-            final List<BwaMemAlignment> alignments = new ArrayList<>(nAligns);
-            while ( nAligns-- > 0 ) {
-                final int flag_mapQ = alignsBuf.getInt();
-                final int flags = flag_mapQ >>> 16;
-                final int mapQual = flag_mapQ & 0xff;
-                final int refId;
-                final int refStart;
-                final int refEnd;
-                final int seqStart;
-                final int seqEnd;
-                final int nMismatches;
-                final int alignerScore;
-                final int suboptimalScore;
-                final StringBuilder cigar = new StringBuilder();
-                final String mdTag;
-                final String xaTag;
-
-                // if unmapped
-                if ( (flags & 0x4) != 0 ) {
-                    refId = -1;
-                    refStart = -1;
-                    refEnd = -1;
-                    seqStart = -1;
-                    seqEnd = -1;
-                    nMismatches = 0;
-                    alignerScore = 0;
-                    suboptimalScore = 0;
-                    mdTag = null;
-                    xaTag = null;
-                }
-                else { // mapped
-                    refId = alignsBuf.getInt();
-                    refStart = alignsBuf.getInt();
-                    nMismatches = alignsBuf.getInt();
-                    alignerScore = alignsBuf.getInt();
-                    suboptimalScore = alignsBuf.getInt();
-                    int nCigarOps = alignsBuf.getInt();
-                    final String cigarOps = "MID?S???????????";
-                    if ( nCigarOps <= 0 ) {
-                        seqStart = 0;
-                        seqEnd = 0;
-                        refEnd = refStart;
-                    }
-                    else {
-                        int refLen = 0;
-                        int seqLen = 0;
-                        int lenOp = alignsBuf.getInt();
-                        int len = lenOp >>> 4;
-                        char op = cigarOps.charAt(lenOp & 0x0f);
-                        cigar.append(len);
-                        cigar.append(op);
-                        seqStart = op == 'S' ? len : 0;
-                        if ( op == 'M' || op == 'D' ) refLen += len;
-                        if ( op == 'M' || op == 'I' ) seqLen += len;
-                        while ( --nCigarOps > 0 ) {
-                            lenOp = alignsBuf.getInt();
-                            len = lenOp >>> 4;
-                            op = cigarOps.charAt(lenOp & 0x0f);
-                            cigar.append(len);
-                            cigar.append(op);
-                            if ( op == 'M' || op == 'D' ) refLen += len;
-                            if ( op == 'M' || op == 'I' ) seqLen += len;
-                        }
-                        refEnd = refStart + refLen;
-                        seqEnd = seqStart + seqLen;
-                    }
-                    mdTag = getTag(alignsBuf);
-                    xaTag = getTag(alignsBuf);
-                }
+        final int nSequences = alignsBuf.getInt(0);
+        final int offsetsPos = 4*alignsBuf.getInt(4);
+        final List<BwaMemAlignment> alignments = new ArrayList<>(nSequences);
+        for ( int idx = 0; idx != nSequences; ++idx ) {
+            final int pos = 4*alignsBuf.getInt(offsetsPos + 4*idx);
+            final int samFlag = alignsBuf.getInt(pos);
+            if ( (samFlag & 4) != 0 ) {
+                alignments.add(new BwaMemAlignment(samFlag, -1, -1, -1, -1, -1, 0, 0, 0, 0, (int[])null, null, null,
+                                                   -1, -1, 0));
+                continue;
+            }
+            final int[] cigarOps = new int[alignsBuf.getInt(pos + 40)];
+            for ( int op = 0; op != cigarOps.length; ++op ) {
+                cigarOps[op] = alignsBuf.getInt(pos + 44 + 4*op);
+            }
+            alignments.add(new BwaMemAlignment(samFlag, alignsBuf.getInt(pos + 4), alignsBuf.getInt(pos + 8),
+                    alignsBuf.getInt(pos + 12), alignsBuf.getInt(pos + 16), alignsBuf.getInt(pos + 20),
+                    alignsBuf.getInt(pos + 36),
+                    alignsBuf.getInt(pos + 24), alignsBuf.getInt(pos + 28), alignsBuf.getInt(pos + 32), cigarOps,
+                    null, null, -1, -1, 0));
+        }
+        return alignments;
+    }
 
-                final int mateRefId;
-                final int mateStartPos;
-                final int templateLen;
-
-                // if unpaired, or mate unmapped
-                if ( (flags & 0x1) == 0 || (flags & 0x8) != 0 ) {
-                    mateRefId = -1;
-                    mateStartPos = -1;
-                    templateLen = 0;
-                } else { // has mapped mate
-                    mateRefId = alignsBuf.getInt();
-                    mateStartPos = alignsBuf.getInt();
-                    templateLen = alignsBuf.getInt();
-                }
-                alignments.add(new BwaMemAlignment(flags, refId, refStart, refEnd, seqStart, seqEnd, mapQual,
-                        nMismatches, alignerScore, suboptimalScore, cigar.toString(), mdTag, xaTag,
-                        mateRefId, mateStartPos, templateLen));
+    private static List<List<BwaMemAlignment>> decodeAlignments( final BwaMemAlignmentCursor cursor ) {
+        final List<List<BwaMemAlignment>> allAlignments = new ArrayList<>(cursor.getNSequences());
+        while ( cursor.nextSequence() ) {
+            final List<BwaMemAlignment> alignments = new ArrayList<>(cursor.getNAlignments());
+            while ( cursor.nextAlignment() ) {
+                alignments.add(cursor.toAlignment());
             }
             allAlignments.add(alignments);
         }
-        BwaMemIndex.destroyByteBuffer(alignsBuf);
         return allAlignments;
     }
 
-    private String getTag( final ByteBuffer buffer ) {
-        int tagLen = buffer.getInt();
-        if ( tagLen == 0 ) return null;
-        byte[] tagBytes = new byte[(tagLen+3)&~3];
-        buffer.get(tagBytes);
-        return new String(tagBytes, 0, tagLen);
+    /**
+     * Align some sequences, and get a cursor that lets you look through the alignments without materializing them.
+     * Don't forget to close the cursor.
+     * @param iterable An iterable over something like a read, that contains a sequence.
+     * @param func A lambda that picks the sequence out of your read-like thing.
+     * @param <T> The read-like thing.
+     * @return A cursor over the alignments for each input sequence.
+     */
+    public <T> BwaMemAlignmentCursor alignSeqsToCursor( final Iterable<T> iterable, final Function<T,byte[]> func ) {
+        getOpts();
+        try ( final BwaMemSequenceBatch batch = new BwaMemSequenceBatch(arena) ) {
+            for ( final T ele : iterable ) {
+                batch.add(func.apply(ele));
+            }
+            return alignSeqsToCursor(batch);
+        }
+    }
+
+    /**
+     * Align a batch of sequences, and get a cursor that lets you look through the alignments without materializing
+     * them.  Don't forget to close the cursor.
+     * @param batch The sequences to align.  bwa recodes the bases in place, but you can clear and reuse the batch afterwards.
+     *              When aligning pairs, reads and their mates must alternate.
+     * @return A cursor over the alignments for each sequence in the batch.
+     * @throws IllegalArgumentException if we're aligning pairs, and there's an odd number of sequences.
+     */
+    public BwaMemAlignmentCursor alignSeqsToCursor( final BwaMemSequenceBatch batch ) {
+        final ByteBuffer tmpOpts = getOpts();
+        final int nSequences = batch.size();
+        checkPairs(nSequences);
+        final BwaMemPairEndStatsAccumulator accumulator = getWarmingUpAccumulator();
+        final ByteBuffer outBuf = acquireOutputBuffer(nSequences);
+        index.refIndex(); // tell the index that we're doing some aligning so that it can't be closed
+        final ByteBuffer alignsBuf;
+        try {
+            alignsBuf = index.doAlignment(batch.getEncodedBatch(), tmpOpts, xopts, getTargetsBuffer(), contextAddress,
+                                          getCancelBuffer(), getBatchPairEndStats(), outBuf);
+        }
+        catch ( final RuntimeException e ) {
+            arena.release(outBuf);
+            throw e;
+        }
+        finally {
+            index.deRefIndex();
+        }
+        return createCursor(alignsBuf, outBuf, nSequences, accumulator);
+    }
+
+    /**
+     * Align some sequences on a ForkJoinPool, rather than on bwa's own threads.
+     * @param iterable An iterable over something like a read, that contains a sequence.
+     * @param func A lambda that picks the sequence out of your read-like thing.
+     * @param pool The pool on which to do the aligning.
+     * @param <T> The read-like thing.
+     * @return A list of (possibly multiple) alignments for each input sequence.
+     */
+    public <T> List<List<BwaMemAlignment>> alignSeqs( final Iterable<T> iterable, final Function<T,byte[]> func,
+                                                      final ForkJoinPool pool ) {
+        getOpts();
+        try ( final BwaMemSequenceBatch batch = new BwaMemSequenceBatch(arena) ) {
+            for ( final T ele : iterable ) {
+                batch.add(func.apply(ele));
+            }
+            return alignSeqs(batch, pool);
+        }
+    }
+
+    /**
+     * Align a batch of sequences on a ForkJoinPool, rather than on bwa's own threads.
+     * @param batch The sequences to align.
+     * @param pool The pool on which to do the aligning.
+     * @return A list of the same length as the batch.  Each element is a list of alignments for the corresponding sequence.
+     */
+    public List<List<BwaMemAlignment>> alignSeqs( final BwaMemSequenceBatch batch, final ForkJoinPool pool ) {
+        try ( final BwaMemAlignmentCursor cursor = alignSeqsToCursor(batch, pool) ) {
+            return decodeAlignments(cursor);
+        }
+    }
+
+    /**
+     * Align a batch of sequences on a ForkJoinPool, rather than on bwa's own threads, so that the aligning shares
+     * the pool's cores (and whatever CPU quota it honors) with the rest of your work.  The NThreads option is ignored.
+     * The batch is cut into sub-batches that are each aligned single-threaded by the native code, and that idle
+     * workers can steal.  When aligning pairs, a pair is never split across sub-batches.
+     * bwa works in 2 stages (finding each read's alignment regions, and then pairing and formatting them), and we
+     * wait for every sub-batch to finish the 1st stage before starting the 2nd, so that the pair-end stats can be
+     * inferred from the whole batch:  the results are just what you'd get from alignSeqsToCursor(batch).
+     * The calling thread helps out if it's one of the pool's workers, otherwise it waits.
+     * @param batch The sequences to align.  bwa recodes the bases in place, but you can clear and reuse the batch afterwards.
+     * @param pool The pool on which to do the aligning.
+     * @return A cursor over the alignments for each sequence in the batch.  Don't forget to close it.
+     */
+    public BwaMemAlignmentCursor alignSeqsToCursor( final BwaMemSequenceBatch batch, final ForkJoinPool pool ) {
+        final ByteBuffer tmpOpts = getOpts();
+        final int nSequences = batch.size();
+        final boolean pairs = checkPairs(nSequences);
+        final int nJobs = pairs ? nSequences/2 : nSequences;
+        final int grain = Math.max(1, nJobs / (SUB_BATCHES_PER_WORKER*pool.getParallelism()));
+        final BwaMemPairEndStatsAccumulator accumulator = getWarmingUpAccumulator();
+        final ByteBuffer targets = getTargetsBuffer();
+        final ByteBuffer cancel = getCancelBuffer();
+        final ByteBuffer outBuf = acquireOutputBuffer(nSequences);
+        index.refIndex(); // tell the index that we're doing some aligning so that it can't be closed
+        final ByteBuffer alignsBuf;
+        try {
+            final long stagedAddress = index.stageAlignment(batch.getEncodedBatch(), tmpOpts, xopts, targets, cancel,
+                                                            getBatchPairEndStats(), outBuf);
+            boolean aligned = false;
+            try {
+                pool.invoke(new StageTask(stagedAddress, true, 0, nJobs, grain));
+                BwaMemIndex.inferStagedPairEndStats(stagedAddress);
+                pool.invoke(new StageTask(stagedAddress, false, 0, nJobs, grain));
+                aligned = true;
+            }
+            finally {
+                if ( !aligned ) BwaMemIndex.discardStagedAlignments(stagedAddress);
+            }
+            alignsBuf = index.finishStagedAlignment(stagedAddress, outBuf);
+        }
+        catch ( final RuntimeException e ) {
+            arena.release(outBuf);
+            throw e;
+        }
+        finally {
+            index.deRefIndex();
+        }
+        return createCursor(alignsBuf, outBuf, nSequences, accumulator);
+    }
+
+    // runs one stage of a staged batch over a range of jobs (sequences, or pairs), halving the range until it's no
+    // bigger than the grain, so that idle workers can steal the halves
+    private static final class StageTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long stagedAddress;
+        private final boolean findRegions; // the 1st stage, or (if false) the 2nd
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        StageTask( final long stagedAddress, final boolean findRegions, final int from, final int to, final int grain ) {
+            this.stagedAddress = stagedAddress;
+            this.findRegions = findRegions;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if ( to - from <= grain ) {
+                if ( findRegions ) BwaMemIndex.findStagedRegions(stagedAddress, from, to);
+                else BwaMemIndex.formatStagedAlignments(stagedAddress, from, to);
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            final StageTask upperHalf = new StageTask(stagedAddress, findRegions, mid, to, grain);
+            upperHalf.fork();
+            try {
+                new StageTask(stagedAddress, findRegions, from, mid, grain).compute();
+            }
+            finally {
+                upperHalf.join(); // the staged batch mustn't be discarded while anyone's still working on it
+            }
+        }
+    }
+
+    /**
+     * Align a batch of sequences asynchronously.  The alignment happens on a native worker thread, so the calling
+     * thread is free to prepare the next batch, or to work through the results of the previous one.
+     * The options and pair-end stats are captured when you submit, so you can change them right away, but you mustn't
+     * modify or close the batch until the future completes.
+     * If too many batches are already in flight, this method waits (without tying up a carrier thread, if you're
+     * calling it from a virtual thread) until there's room for another.
+     * The cursor is created (and, while they're being collected, the pair-end stats are accumulated) on the common
+     * ForkJoinPool, so that batches from different aligners don't wait on one another to be decoded.
+     * The batch uses this aligner's native scratch space, if no other batch is using it.
+     * @param batch The sequences to align.  When aligning pairs, reads and their mates must alternate.
+     * @return A future cursor over the alignments for each sequence in the batch.  Don't forget to close the cursor.
+     * @throws IllegalArgumentException (right away, rather than through the future) if we're aligning pairs, and
+     *                                  there's an odd number of sequences.
+     */
+    public CompletableFuture<BwaMemAlignmentCursor> submit( final BwaMemSequenceBatch batch ) {
+        final ByteBuffer tmpOpts = getOpts();
+        final int nSequences = batch.size();
+        checkPairs(nSequences);
+        final BwaMemPairEndStatsAccumulator accumulator = getWarmingUpAccumulator();
+        final ByteBuffer outBuf = acquireOutputBuffer(nSequences);
+        final CompletableFuture<ByteBuffer> future;
+        final long jobContextAddress;
+        synchronized (contextLock) {
+            jobContextAddress = contextAddress;
+            nSubmittedJobs += 1;
+        }
+        try {
+            future = index.submitAlignment(batch.getEncodedBatch(), tmpOpts, xopts, getTargetsBuffer(),
+                                           jobContextAddress, getCancelBuffer(), getBatchPairEndStats(), outBuf);
+        }
+        catch ( final RuntimeException e ) {
+            jobFinished();
+            arena.release(outBuf);
+            throw e;
+        }
+        future.whenComplete(( alignsBuf, ex ) -> jobFinished());
+        return future.handleAsync(( alignsBuf, ex ) -> {
+            if ( ex != null ) {
+                arena.release(outBuf);
+                throw ex instanceof CompletionException ? (CompletionException)ex : new CompletionException(ex);
+            }
+            return createCursor(alignsBuf, outBuf, nSequences, accumulator);
+        });
+    }
+
+    /**
+     * Align some sequences asynchronously.  The sequences are gathered into a batch right away (on the calling
+     * thread), and the alignments are decoded on the common ForkJoinPool when they're ready.
+     * @param iterable An iterable over something like a read, that contains a sequence.
+     * @param func A lambda that picks the sequence out of your read-like thing.
+     * @param <T> The read-like thing.
+     * @return A future list of (possibly multiple) alignments for each input sequence.
+     */
+    public <T> CompletableFuture<List<List<BwaMemAlignment>>> submit( final Iterable<T> iterable,
+                                                                      final Function<T,byte[]> func ) {
+        getOpts();
+        final BwaMemSequenceBatch batch = new BwaMemSequenceBatch(arena);
+        try {
+            for ( final T ele : iterable ) {
+                batch.add(func.apply(ele));
+            }
+        }
+        catch ( final RuntimeException e ) {
+            batch.close();
+            throw e;
+        }
+        return submitAndDecode(batch);
+    }
+
+    /**
+     * Submit a batch, and decode the alignments on the common ForkJoinPool when they're ready.
+     * The batch is closed when the alignment is done (or if the submission fails).
+     */
+    CompletableFuture<List<List<BwaMemAlignment>>> submitAndDecode( final BwaMemSequenceBatch batch ) {
+        final CompletableFuture<BwaMemAlignmentCursor> future;
+        try {
+            future = submit(batch);
+        }
+        catch ( final RuntimeException e ) {
+            batch.close();
+            throw e;
+        }
+        future.whenComplete(( cursor, ex ) -> batch.close());
+        return future.thenApply(cursor -> { // already on the common ForkJoinPool
+            try ( final BwaMemAlignmentCursor tmpCursor = cursor ) {
+                return decodeAlignments(tmpCursor);
+            }
+        });
+    }
+
+    // a submitted job is done with the context:  if the aligner has been closed, the last one out destroys it
+    private void jobFinished() {
+        synchronized (contextLock) {
+            nSubmittedJobs -= 1;
+            if ( nSubmittedJobs == 0 && opts == null && contextAddress != 0L ) {
+                BwaMemIndex.destroyContext(contextAddress);
+                contextAddress = 0L;
+            }
+        }
+    }
+
+    // returns true if we're aligning pairs, in which case there mustn't be an odd number of sequences
+    private boolean checkPairs( final int nSequences ) {
+        final boolean pairs = (getFlagOption() & MEM_F_PE) != 0;
+        if ( pairs && (nSequences & 1) != 0 ) {
+            throw new IllegalArgumentException("Aligning pairs, but there's an odd number of reads.");
+        }
+        return pairs;
+    }
+
+    private ByteBuffer acquireOutputBuffer( final int nSequences ) {
+        final long outBufSize = RESULT_HEADER_BYTES + (long)nSequences*(4 + resultBytesPerSequence);
+        return arena.acquire((int)Math.min(Integer.MAX_VALUE, outBufSize));
+    }
+
+    // the accumulator, if we're aligning pairs and it's still collecting data
+    private BwaMemPairEndStatsAccumulator getWarmingUpAccumulator() {
+        final BwaMemPairEndStatsAccumulator accumulator = pairEndStatsAccumulator;
+        if ( accumulator == null || accumulator.isFrozen() || (getFlagOption() & MEM_F_PE) == 0 ) return null;
+        return accumulator;
+    }
+
+    private BwaMemPairEndStats[] getBatchPairEndStats() {
+        final BwaMemPairEndStatsAccumulator accumulator = pairEndStatsAccumulator;
+        if ( accumulator != null ) {
+            final BwaMemPairEndStats frozenStats = accumulator.getFrozenStats();
+            if ( frozenStats != null ) return BwaMemPairEndStats.forFROnly(frozenStats);
+        }
+        return pairEndStats;
+    }
+
+    private BwaMemAlignmentCursor createCursor( final ByteBuffer alignsBuf, final ByteBuffer outBuf,
+                                                final int nSequences,
+                                                final BwaMemPairEndStatsAccumulator accumulator ) {
+        final BwaMemAlignmentCursor cursor = createCursor(alignsBuf, outBuf, nSequences);
+        countShortCuts(cursor);
+        if ( cursor.getNCancelledSequences() != 0 ) {
+            cursor.close();
+            throw new CancellationException("The alignment of the batch was cancelled.");
+        }
+        final BwaMemPairEndStats[] stats = cursor.getPairEndStats();
+        if ( stats != null ) {
+            lastPairEndStats = stats;
+        }
+        if ( accumulator != null ) {
+            accumulator.addPairs(cursor);
+        }
+        return cursor;
+    }
+
+    private void countShortCuts( final BwaMemAlignmentCursor cursor ) {
+        final int nPrefiltered = cursor.getNPrefilteredSequences();
+        if ( nPrefiltered != 0 ) nPrefilteredSequences.addAndGet(nPrefiltered);
+        final int nExactMatch = cursor.getNExactMatchSequences();
+        if ( nExactMatch != 0 ) nExactMatchSequences.addAndGet(nExactMatch);
+        final int nOverBudget = cursor.getNOverBudgetSequences();
+        if ( nOverBudget != 0 ) nOverBudgetSequences.addAndGet(nOverBudget);
+        final int nOffTarget = cursor.getNOffTargetSequences();
+        if ( nOffTarget != 0 ) nOffTargetSequences.addAndGet(nOffTarget);
+    }
+
+    private ByteBuffer getTargetsBuffer() {
+        final BwaMemIntervalSet intervals = targetIntervals;
+        return intervals == null ? null : intervals.getBuffer();
+    }
+
+    private ByteBuffer getCancelBuffer() {
+        final BwaMemCancellationToken token = cancellationToken;
+        return token == null ? null : token.getBuffer();
+    }
+
+    private BwaMemAlignmentCursor createCursor( final ByteBuffer alignsBuf, final ByteBuffer outBuf,
+                                                final int nSequences ) {
+        if ( alignsBuf != outBuf ) {
+            // didn't fit:  learn how much space we need, so that the next batch will fit
+            arena.release(outBuf);
+            if ( nSequences > 0 ) {
+                final long bytesPerSequence = (alignsBuf.capacity() - RESULT_HEADER_BYTES) / nSequences - 4;
+                resultBytesPerSequence = (int)Math.min(Integer.MAX_VALUE,
+                        Math.max(resultBytesPerSequence, bytesPerSequence + bytesPerSequence/4));
+            }
+            return new BwaMemAlignmentCursor(alignsBuf, null);
+        }
+        return new BwaMemAlignmentCursor(alignsBuf, arena);
+    }
+
+    /** Copy this aligner's bwa options into another options buffer (one from BwaMemIndex.createDefaultOptions). */
+    void copyOptionsTo( final ByteBuffer dest ) {
+        final ByteBuffer src = getOpts().duplicate();
+        src.position(0).limit(src.capacity());
+        dest.position(0).limit(dest.capacity());
+        dest.put(src);
+        dest.position(0);
     }
 
     private ByteBuffer getOpts() {
@@ -324,4 +1102,9 @@ public final class BwaMemAligner implements AutoCloseable {
         }
         return opts;
     }
+
+    private ByteBuffer getXOpts() {
+        getOpts();
+        return xopts;
+    }
 }
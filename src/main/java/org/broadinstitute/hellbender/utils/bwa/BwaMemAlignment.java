@@ -4,8 +4,13 @@ package org.broadinstitute.hellbender.utils.bwa;
  * Info from the Aligner about an alignment to reference that it discovered for some sequence.
  * Please note that the refId is with respect to the BWA index reference names.  These won't necessarily agree with
  * reference IDs in SAM or BAM headers.
+ * The cigar is held as an array of BAM-style packed (len<<4|op) ints.  It's only turned into a String if you ask for
+ * one, and then the String is cached.
  */
 public class BwaMemAlignment {
+    static final String CIGAR_OPS = "MIDNSHP=X???????"; // op codes, as in a BAM
+    private static final int[] NO_CIGAR_OPS = new int[0];
+
     private final int samFlag;     // flag bits per SAM format standard
     private final int refId;       // index into reference dictionary (-1 if unmapped)
     private final int refStart;    // 0-based coordinate, inclusive (-1 if unmapped)
@@ -16,7 +21,8 @@ public class BwaMemAlignment {
     private final int nMismatches; // number of mismatches (i.e., value of the NM tag in a SAM/BAM) (-1 if unmapped)
     private final int alignerScore; // for AS tag
     private final int suboptimalScore; // for bwa-specific XS tag
-    private final String cigar;     // cigar for alignment (empty if unmapped)
+    private final int[] cigarOps;  // packed cigar for alignment (empty if unmapped)
+    private String cigar;          // cigar as a String, lazily created from cigarOps
     private final String mdTag;    // the MD tag
     private final String xaTag;    // the XA tag
     private final int mateRefId;   // mate's refId (-1 if unpaired or if mate unmapped)
@@ -28,6 +34,19 @@ public class BwaMemAlignment {
                            final int nMismatches, final int alignerScore, final int suboptimalScore,
                            final String cigar, final String mdTag, final String xaTag,
                            final int mateRefId, final int mateRefStart, final int templateLen ) {
+        this(samFlag, refId, refStart, refEnd, seqStart, seqEnd, mapQual, nMismatches, alignerScore, suboptimalScore,
+                packCigar(cigar), mdTag, xaTag, mateRefId, mateRefStart, templateLen);
+        this.cigar = cigar;
+    }
+
+    /**
+     * @param cigarOps the cigar, packed BAM-style as len<<4|op.  The array is not copied, so don't modify it.
+     */
+    public BwaMemAlignment(final int samFlag, final int refId, final int refStart, final int refEnd,
+                           final int seqStart, final int seqEnd, final int mapQual,
+                           final int nMismatches, final int alignerScore, final int suboptimalScore,
+                           final int[] cigarOps, final String mdTag, final String xaTag,
+                           final int mateRefId, final int mateRefStart, final int templateLen ) {
         this.samFlag = samFlag;
         this.refId = refId;
         this.refStart = refStart;
@@ -38,7 +57,7 @@ public class BwaMemAlignment {
         this.nMismatches = nMismatches;
         this.alignerScore = alignerScore;
         this.suboptimalScore = suboptimalScore;
-        this.cigar = cigar;
+        this.cigarOps = cigarOps == null || cigarOps.length == 0 ? NO_CIGAR_OPS : cigarOps;
         this.mdTag = mdTag;
         this.xaTag = xaTag;
         this.mateRefId = mateRefId;
@@ -56,10 +75,60 @@ public class BwaMemAlignment {
     public int getNMismatches() { return nMismatches; }
     public int getAlignerScore() { return alignerScore; }
     public int getSuboptimalScore() { return suboptimalScore; }
-    public String getCigar() { return cigar; }
+    public String getCigar() {
+        String result = cigar;
+        if ( result == null ) {
+            cigar = result = cigarToString(cigarOps);
+        }
+        return result;
+    }
+    public int getNCigarOps() { return cigarOps.length; }
+    /** The idx'th cigar operation, packed BAM-style as len<<4|op. */
+    public int getCigarOp( final int idx ) { return cigarOps[idx]; }
+    public int getCigarOpLength( final int idx ) { return cigarOps[idx] >>> 4; }
+    public char getCigarOpChar( final int idx ) { return cigarOpChar(cigarOps[idx]); }
+    /** A copy of the packed cigar. */
+    public int[] getCigarOps() { return cigarOps.clone(); }
     public String getMDTag() { return mdTag; }
     public String getXATag() { return xaTag; }
     public int getMateRefId() { return mateRefId; }
     public int getMateRefStart() { return mateRefStart; }
     public int getTemplateLen() { return templateLen; }
+
+    // the inverse of packCigar:  also used by BwaMemPairwiseAlignment
+    static String cigarToString( final int[] cigarOps ) {
+        final StringBuilder sb = new StringBuilder(4*cigarOps.length);
+        for ( final int lenOp : cigarOps ) {
+            sb.append(lenOp >>> 4).append(cigarOpChar(lenOp));
+        }
+        return sb.toString();
+    }
+
+    static char cigarOpChar( final int lenOp ) { return CIGAR_OPS.charAt(lenOp & 0x0f); }
+
+    private static int[] packCigar( final String cigar ) {
+        if ( cigar == null || cigar.isEmpty() ) return NO_CIGAR_OPS;
+        int nOps = 0;
+        for ( int idx = 0; idx != cigar.length(); ++idx ) {
+            if ( !Character.isDigit(cigar.charAt(idx)) ) nOps += 1;
+        }
+        final int[] cigarOps = new int[nOps];
+        int len = 0;
+        int opIdx = 0;
+        for ( int idx = 0; idx != cigar.length(); ++idx ) {
+            final char chr = cigar.charAt(idx);
+            if ( Character.isDigit(chr) ) {
+                len = 10*len + (chr - '0');
+            }
+            else {
+                final int op = CIGAR_OPS.indexOf(chr);
+                if ( op < 0 || op > 8 ) {
+                    throw new IllegalArgumentException("invalid cigar operation '" + chr + "' in " + cigar);
+                }
+                cigarOps[opIdx++] = len << 4 | op;
+                len = 0;
+            }
+        }
+        return cigarOps;
+    }
 }
@@ -0,0 +1,349 @@
+package org.broadinstitute.hellbender.utils.bwa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A read-only view of the alignments produced by the native aligner, straight from the (non-Java) memory in which
+ * they were created.  You step through the sequences with nextSequence, and through each sequence's alignments
+ * with nextAlignment.  Nothing is allocated as you go, except when you ask for a tag value, or for a
+ * BwaMemAlignment to be materialized from the current alignment.
+ * Usage pattern:
+ *   try ( final BwaMemAlignmentCursor cursor = aligner.alignSeqsToCursor(batch) ) {
+ *       while ( cursor.nextSequence() ) {
+ *           while ( cursor.nextAlignment() ) {
+ *               if ( cursor.getMapQual() >= minMapQ ) keep(cursor.toAlignment());
+ *           }
+ *       }
+ *   }
+ * Don't forget to close it, or you'll leak the native memory.  (When the results were written into a buffer from the
+ * aligner's BwaMemBufferArena, closing the cursor gives the buffer back for reuse by the next batch.)
+ * This class is not thread-safe.
+ */
+public final class BwaMemAlignmentCursor implements AutoCloseable {
+    // buffer offsets of header fields (after nSequences, offsetsPos/4, and the size of the results in ints)
+    private static final int PAIRED_FLAG_POS = 12;
+    private static final int PAIR_END_STATS_POS = 16;
+    private static final int COUNTS_POS =
+            PAIR_END_STATS_POS + BwaMemPairEndStats.N_ORIENTATIONS*BwaMemPairEndStats.ENCODED_SIZE;
+    // counts of sequences that were prefiltered, that were exact matches, that were over budget, that were cancelled,
+    // and that were off target
+    static final int N_COUNTS = 5;
+    // in the table of offsets, for a sequence that has no results (the header's always at 0)
+    private static final int NO_RESULTS_OFFSET = 0;
+
+    private ByteBuffer alignsBuf;
+    private final BwaMemBufferArena arena; // where alignsBuf came from, or null if it was allocated by the native code
+    private final int nSequences;
+    private final int offsetsPos; // buffer offset of the table of offsets to each sequence's alignments
+    private int sequenceIdx;     // index of current sequence
+    private int nAlignments;     // number of alignments for current sequence
+    private int alignmentIdx;    // index of current alignment within current sequence
+    private int nextPos;         // buffer offset of the next thing to parse
+
+    // the current alignment
+    private int flags;
+    private int mapQual;
+    private int refId;
+    private int refStart;
+    private int nMismatches;
+    private int alignerScore;
+    private int suboptimalScore;
+    private int nCigarOps;
+    private int cigarPos;        // buffer offset of first cigar op
+    private int mdPos;           // buffer offset of the MD tag's length
+    private int xaPos;           // buffer offset of the XA tag's length
+    private int mateRefId;
+    private int mateRefStart;
+    private int templateLen;
+
+    BwaMemAlignmentCursor( final ByteBuffer alignsBuf, final BwaMemBufferArena arena ) {
+        this.alignsBuf = alignsBuf;
+        this.arena = arena;
+        alignsBuf.order(ByteOrder.nativeOrder()).position(0).limit(alignsBuf.capacity());
+        nSequences = alignsBuf.getInt(0);
+        offsetsPos = 4*alignsBuf.getInt(4);
+        sequenceIdx = -1;
+        nAlignments = 0;
+        alignmentIdx = 0;
+        nextPos = 0;
+    }
+
+    /** Number of sequences that were aligned. */
+    public int getNSequences() { return nSequences; }
+
+    /**
+     * The pair-end stats used to align the batch (inferred by bwa, unless you supplied them), indexed by orientation
+     * (BwaMemPairEndStats.FF, FR, RF, RR), or null if the batch wasn't aligned as pairs.
+     */
+    public BwaMemPairEndStats[] getPairEndStats() {
+        final ByteBuffer buf = getBuffer();
+        if ( buf.getInt(PAIRED_FLAG_POS) == 0 ) return null;
+        return BwaMemPairEndStats.decode(buf, PAIR_END_STATS_POS);
+    }
+
+    /**
+     * Number of sequences that were reported as unmapped by the pre-filter (BwaMemAligner.XF_PREFILTER), without
+     * being seeded.
+     */
+    public int getNPrefilteredSequences() { return getBuffer().getInt(COUNTS_POS); }
+
+    /** Number of sequences that were aligned by the exact-match fast path (BwaMemAligner.XF_EXACT_MATCH). */
+    public int getNExactMatchSequences() { return getBuffer().getInt(COUNTS_POS + 4); }
+
+    /**
+     * Number of sequences that exceeded the aligner's work budget (BwaMemAligner.setMaxProbeOccurrencesOption), and
+     * were aligned cheaply, or reported as unmapped.
+     */
+    public int getNOverBudgetSequences() { return getBuffer().getInt(COUNTS_POS + 8); }
+
+    /**
+     * Number of sequences that were reported as unmapped because the batch was cancelled.  (You won't see a cursor
+     * for which this isn't 0 unless you get it from the native code directly:  the aligner throws a
+     * CancellationException instead.)
+     */
+    public int getNCancelledSequences() { return getBuffer().getInt(COUNTS_POS + 12); }
+
+    /**
+     * Number of sequences that were reported as unmapped because, though they had seeds, none of them touched the
+     * aligner's target intervals (BwaMemAligner.setTargetIntervals).
+     */
+    public int getNOffTargetSequences() { return getBuffer().getInt(COUNTS_POS + 16); }
+
+    /**
+     * Move to the next sequence, skipping any alignments of the current sequence that you haven't visited.
+     * @return false if there are no more sequences.
+     */
+    public boolean nextSequence() {
+        if ( sequenceIdx + 1 >= nSequences ) {
+            getBuffer();
+            sequenceIdx = nSequences;
+            nAlignments = 0;
+            alignmentIdx = 0;
+            return false;
+        }
+        seekSequence(sequenceIdx + 1);
+        return true;
+    }
+
+    /**
+     * Move to the idx'th sequence.  You can visit the sequences in any order you like.
+     */
+    public void seekSequence( final int idx ) {
+        if ( idx < 0 || idx >= nSequences ) {
+            throw new IndexOutOfBoundsException("sequence " + idx + " of " + nSequences);
+        }
+        final ByteBuffer buf = getBuffer();
+        sequenceIdx = idx;
+        alignmentIdx = 0;
+        nextPos = 4*buf.getInt(offsetsPos + 4*idx);
+        if ( nextPos == NO_RESULTS_OFFSET ) { // the native code never got to this sequence
+            nAlignments = 0;
+            return;
+        }
+        nAlignments = buf.getInt(nextPos);
+        nextPos += 4;
+    }
+
+    /**
+     * Move to the next alignment of the current sequence.
+     * @return false if there are no more alignments for the current sequence.
+     */
+    public boolean nextAlignment() {
+        final ByteBuffer buf = getBuffer();
+        if ( alignmentIdx >= nAlignments ) return false;
+        parseAlignment(buf);
+        return true;
+    }
+
+    /** Index of the current sequence in the input. */
+    public int getSequenceIndex() { return sequenceIdx; }
+
+    /**
+     * Number of alignments for the current sequence.  There's always at least 1, though it may be unmapped, unless
+     * the native code somehow never got to the sequence.
+     */
+    public int getNAlignments() { return nAlignments; }
+
+    public int getSamFlag() { return flags; }
+    public boolean isMapped() { return (flags & 0x4) == 0; }
+    public int getMapQual() { return mapQual; }
+    public int getRefId() { return refId; }
+    public int getRefStart() { return refStart; }
+    public int getNMismatches() { return nMismatches; }
+    public int getAlignerScore() { return alignerScore; }
+    public int getSuboptimalScore() { return suboptimalScore; }
+    public int getMateRefId() { return mateRefId; }
+    public int getMateRefStart() { return mateRefStart; }
+    public int getTemplateLen() { return templateLen; }
+
+    /** Number of cigar operations in the current alignment (0 if unmapped). */
+    public int getNCigarOps() { return nCigarOps; }
+
+    /** The idx'th cigar operation, packed BAM-style as len<<4|op. */
+    public int getCigarOp( final int idx ) {
+        if ( idx < 0 || idx >= nCigarOps ) {
+            throw new IndexOutOfBoundsException("cigar op " + idx + " of " + nCigarOps);
+        }
+        return getBuffer().getInt(cigarPos + 4*idx);
+    }
+
+    public int getCigarOpLength( final int idx ) { return getCigarOp(idx) >>> 4; }
+    public char getCigarOpChar( final int idx ) { return BwaMemAlignment.cigarOpChar(getCigarOp(idx)); }
+
+    /** 0-based reference coordinate, exclusive (-1 if unmapped). */
+    public int getRefEnd() {
+        if ( !isMapped() ) return -1;
+        final ByteBuffer buf = getBuffer();
+        int refEnd = refStart;
+        for ( int pos = cigarPos; pos != cigarPos + 4*nCigarOps; pos += 4 ) {
+            final int lenOp = buf.getInt(pos);
+            final int op = lenOp & 0x0f;
+            if ( op == 0 || op == 2 ) refEnd += lenOp >>> 4;
+        }
+        return refEnd;
+    }
+
+    /** 0-based sequence coordinate, inclusive (-1 if unmapped). */
+    public int getSeqStart() {
+        if ( !isMapped() ) return -1;
+        if ( nCigarOps == 0 ) return 0;
+        final int lenOp = getBuffer().getInt(cigarPos);
+        return (lenOp & 0x0f) == 4 ? lenOp >>> 4 : 0;
+    }
+
+    /** 0-based sequence coordinate, exclusive (-1 if unmapped). */
+    public int getSeqEnd() {
+        if ( !isMapped() ) return -1;
+        final ByteBuffer buf = getBuffer();
+        int seqLen = 0;
+        for ( int pos = cigarPos; pos != cigarPos + 4*nCigarOps; pos += 4 ) {
+            final int lenOp = buf.getInt(pos);
+            final int op = lenOp & 0x0f;
+            if ( op == 0 || op == 1 ) seqLen += lenOp >>> 4;
+        }
+        return getSeqStart() + seqLen;
+    }
+
+    /** The cigar as a String (empty if unmapped).  This allocates. */
+    public String getCigar() {
+        final StringBuilder cigar = new StringBuilder();
+        for ( int idx = 0; idx != nCigarOps; ++idx ) {
+            cigar.append(getCigarOpLength(idx)).append(getCigarOpChar(idx));
+        }
+        return cigar.toString();
+    }
+
+    /** A copy of the current alignment's packed cigar ops. */
+    public int[] getCigarOps() {
+        final int[] cigarOps = new int[nCigarOps];
+        final ByteBuffer buf = getBuffer();
+        for ( int idx = 0; idx != nCigarOps; ++idx ) {
+            cigarOps[idx] = buf.getInt(cigarPos + 4*idx);
+        }
+        return cigarOps;
+    }
+
+    /** The MD tag (null if unmapped).  This allocates. */
+    public String getMDTag() { return isMapped() ? getTag(mdPos) : null; }
+
+    /** The XA tag (null if unmapped or if there are no alternative hits).  This allocates. */
+    public String getXATag() { return isMapped() ? getTag(xaPos) : null; }
+
+    /** Materialize the current alignment. */
+    public BwaMemAlignment toAlignment() {
+        if ( !isMapped() ) {
+            return new BwaMemAlignment(flags, -1, -1, -1, -1, -1, mapQual, 0, 0, 0, (int[])null, null, null,
+                    mateRefId, mateRefStart, templateLen);
+        }
+        return new BwaMemAlignment(flags, refId, refStart, getRefEnd(), getSeqStart(), getSeqEnd(), mapQual,
+                nMismatches, alignerScore, suboptimalScore, getCigarOps(), getMDTag(), getXATag(),
+                mateRefId, mateRefStart, templateLen);
+    }
+
+    public boolean isOpen() { return alignsBuf != null; }
+
+    /** Go back to where we started:  before the first sequence. */
+    void rewind() {
+        getBuffer();
+        sequenceIdx = -1;
+        nAlignments = 0;
+        alignmentIdx = 0;
+        nextPos = 0;
+    }
+
+    /** Release the native memory (or give it back to the arena it came from).  The cursor can't be used afterwards. */
+    @Override
+    public void close() {
+        if ( alignsBuf != null ) {
+            if ( arena != null ) {
+                arena.release(alignsBuf);
+            } else {
+                BwaMemIndex.destroyByteBuffer(alignsBuf);
+            }
+            alignsBuf = null;
+        }
+    }
+
+    private void parseAlignment( final ByteBuffer buf ) {
+        int pos = nextPos;
+        final int flag_mapQ = buf.getInt(pos);
+        pos += 4;
+        flags = flag_mapQ >>> 16;
+        mapQual = flag_mapQ & 0xff;
+        if ( (flags & 0x4) != 0 ) { // if unmapped
+            refId = -1;
+            refStart = -1;
+            nMismatches = 0;
+            alignerScore = 0;
+            suboptimalScore = 0;
+            nCigarOps = 0;
+            cigarPos = pos;
+        }
+        else { // mapped
+            refId = buf.getInt(pos);
+            refStart = buf.getInt(pos + 4);
+            nMismatches = buf.getInt(pos + 8);
+            alignerScore = buf.getInt(pos + 12);
+            suboptimalScore = buf.getInt(pos + 16);
+            nCigarOps = Math.max(0, buf.getInt(pos + 20));
+            cigarPos = pos + 24;
+            mdPos = cigarPos + 4*nCigarOps;
+            xaPos = mdPos + 4 + tagSpace(buf.getInt(mdPos));
+            pos = xaPos + 4 + tagSpace(buf.getInt(xaPos));
+        }
+        if ( (flags & 0x1) == 0 || (flags & 0x8) != 0 ) { // if unpaired, or mate unmapped
+            mateRefId = -1;
+            mateRefStart = -1;
+            templateLen = 0;
+        }
+        else { // has mapped mate
+            mateRefId = buf.getInt(pos);
+            mateRefStart = buf.getInt(pos + 4);
+            templateLen = buf.getInt(pos + 8);
+            pos += 12;
+        }
+        nextPos = pos;
+        alignmentIdx += 1;
+    }
+
+    private String getTag( final int tagPos ) {
+        final ByteBuffer buf = getBuffer();
+        final int tagLen = buf.getInt(tagPos);
+        if ( tagLen == 0 ) return null;
+        final byte[] tagBytes = new byte[tagLen];
+        buf.position(tagPos + 4);
+        buf.get(tagBytes);
+        return new String(tagBytes);
+    }
+
+    // tags are padded to stay on an int32_t boundary
+    private static int tagSpace( final int tagLen ) { return (tagLen + 3) & ~3; }
+
+    private ByteBuffer getBuffer() {
+        if ( alignsBuf == null ) {
+            throw new IllegalStateException("The alignment cursor has been closed.");
+        }
+        return alignsBuf;
+    }
+}
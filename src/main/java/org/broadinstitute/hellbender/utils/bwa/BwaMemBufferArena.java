@@ -0,0 +1,141 @@
+package org.broadinstitute.hellbender.utils.bwa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of reusable direct buffers for marshalling data to and from the native aligner.
+ * The buffers are malloc'd by the native code rather than by ByteBuffer.allocateDirect, so they aren't zeroed,
+ * they don't count against -XX:MaxDirectMemorySize, and they're freed as soon as the arena lets go of them
+ * rather than whenever the garbage collector gets around to it.
+ *
+ * Buffer sizes grow geometrically (by powers of 2), and buffers are recycled across batches.
+ * When the arena notices that it's holding on to buffers that are much larger than recent requests, it frees them.
+ * Don't forget to close it, or you'll leak the buffers.
+ * This class is thread-safe, because buffers may be released by a thread other than the one that acquired them
+ * (e.g., when you close a cursor you got from BwaMemAligner.submit), but each BwaMemAligner has its own arena,
+ * so there's rarely any contention.
+ */
+public final class BwaMemBufferArena implements AutoCloseable {
+    private static final int MIN_BUFFER_SIZE = 64*1024;
+    private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE;
+    private static final int RELEASES_PER_SHRINK_CHECK = 16;
+
+    private final List<ByteBuffer> freeBuffers;
+    private long allocatedBytes;     // total capacity of the buffers we've malloc'd and not yet freed
+    private long highWaterMark;      // maximum value ever attained by allocatedBytes
+    private int recentDemand;        // largest request since the last shrink check
+    private int nReleasesSinceCheck; // number of buffers released since the last shrink check
+    private boolean closed;
+
+    public BwaMemBufferArena() {
+        BwaMemIndex.loadNativeLibrary();
+        freeBuffers = new ArrayList<>();
+    }
+
+    /**
+     * Get a buffer with at least the requested capacity.
+     * The buffer is in native byte order, positioned at 0, with its limit set to its capacity.
+     * Its contents are unspecified.  Give it back by calling release when you're done with it.
+     */
+    public synchronized ByteBuffer acquire( final int minCapacity ) {
+        assertOpen();
+        if ( minCapacity < 0 ) {
+            throw new IllegalArgumentException("negative capacity requested: " + minCapacity);
+        }
+        recentDemand = Math.max(recentDemand, minCapacity);
+        ByteBuffer best = null;
+        for ( final ByteBuffer buffer : freeBuffers ) {
+            if ( buffer.capacity() >= minCapacity && (best == null || buffer.capacity() < best.capacity()) ) {
+                best = buffer;
+            }
+        }
+        if ( best != null ) {
+            freeBuffers.remove(best);
+            return best;
+        }
+        final int capacity = roundUpCapacity(minCapacity);
+        final ByteBuffer buffer = BwaMemIndex.createByteBuffer(capacity);
+        if ( buffer == null ) {
+            throw new IllegalStateException("Unable to allocate a native buffer of " + capacity + " bytes.");
+        }
+        allocatedBytes += capacity;
+        highWaterMark = Math.max(highWaterMark, allocatedBytes);
+        return buffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Trade a buffer for a larger one, preserving its contents up to its current position.
+     * The new buffer's position is the same as that of the old one.  The old buffer is released.
+     */
+    public synchronized ByteBuffer grow( final ByteBuffer buffer, final int minCapacity ) {
+        final int newCapacity = (int)Math.min(MAX_BUFFER_SIZE, Math.max(minCapacity, 2L*buffer.capacity()));
+        final ByteBuffer newBuffer = acquire(newCapacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        release(buffer);
+        return newBuffer;
+    }
+
+    /** Give back a buffer obtained from acquire or grow.  Don't use it afterwards. */
+    public synchronized void release( final ByteBuffer buffer ) {
+        buffer.clear();
+        if ( closed ) {
+            free(buffer);
+            return;
+        }
+        freeBuffers.add(buffer);
+        if ( ++nReleasesSinceCheck >= RELEASES_PER_SHRINK_CHECK ) {
+            shrinkTo(roundUpCapacity(recentDemand));
+            recentDemand = 0;
+            nReleasesSinceCheck = 0;
+        }
+    }
+
+    /** Free all the buffers that aren't currently in use. */
+    public synchronized void trim() { shrinkTo(-1); }
+
+    /** Total capacity of the native buffers currently held by the arena, whether in use or not. */
+    public synchronized long getAllocatedBytes() { return allocatedBytes; }
+
+    /** The largest total capacity the arena has ever held at one time. */
+    public synchronized long getHighWaterMark() { return highWaterMark; }
+
+    public synchronized boolean isOpen() { return !closed; }
+
+    /** Frees the idle buffers.  Buffers still in use are freed when they're released. */
+    @Override
+    public synchronized void close() {
+        trim();
+        closed = true;
+    }
+
+    private void shrinkTo( final int maxRetainedCapacity ) {
+        for ( int idx = freeBuffers.size() - 1; idx >= 0; --idx ) {
+            final ByteBuffer buffer = freeBuffers.get(idx);
+            if ( buffer.capacity() > maxRetainedCapacity ) {
+                freeBuffers.remove(idx);
+                free(buffer);
+            }
+        }
+    }
+
+    private void free( final ByteBuffer buffer ) {
+        allocatedBytes -= buffer.capacity();
+        BwaMemIndex.destroyByteBuffer(buffer);
+    }
+
+    private void assertOpen() {
+        if ( closed ) {
+            throw new IllegalStateException("The buffer arena has been closed.");
+        }
+    }
+
+    private static int roundUpCapacity( final int minCapacity ) {
+        if ( minCapacity <= MIN_BUFFER_SIZE ) return MIN_BUFFER_SIZE;
+        final int capacity = Integer.highestOneBit(minCapacity - 1) << 1;
+        return capacity > 0 ? capacity : MAX_BUFFER_SIZE;
+    }
+}
@@ -0,0 +1,38 @@
+package org.broadinstitute.hellbender.utils.bwa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A flag that lets you abandon batches that are being aligned.  Give one to a BwaMemAligner with
+ * setCancellationToken, and every batch that the aligner starts while it's set will watch it:  once you call cancel
+ * (from any thread), the native code stops aligning, reports the rest of each batch as unmapped, and gives its threads
+ * back, and the aligner throws (or completes the future with) a CancellationException instead of returning results.
+ * Batches that were already finished are unaffected.
+ * Cancellation is checked before each sequence (or pair):  a single sequence that's already being aligned isn't
+ * interrupted.
+ * A token can't be reset.  Once cancelled, it stays cancelled, so use a new one for each request you might abandon.
+ * This class is thread-safe.
+ */
+public final class BwaMemCancellationToken {
+    private final ByteBuffer flag; // a 32-bit int that the native code reads
+
+    public BwaMemCancellationToken() {
+        flag = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+    }
+
+    /** Abandon any batches that are watching this token. */
+    public void cancel() {
+        synchronized (flag) {
+            flag.putInt(0, 1);
+        }
+    }
+
+    public boolean isCancelled() {
+        synchronized (flag) {
+            return flag.getInt(0) != 0;
+        }
+    }
+
+    ByteBuffer getBuffer() { return flag; }
+}
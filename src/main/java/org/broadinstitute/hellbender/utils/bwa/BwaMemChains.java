@@ -0,0 +1,105 @@
+package org.broadinstitute.hellbender.utils.bwa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The chains of seeds that bwa found for a sequence, before it extended any of them into alignments:  what you get
+ * from BwaMemAligner.findChains.  This is bwa's view of where a sequence might go, which is useful for candidate
+ * generation, or for estimating coverage, when you don't need the alignments themselves.
+ * The chains are heaviest first (a chain's weight is roughly the number of bases covered by its seeds), and have
+ * been through bwa's usual chain filter, so they're the ones that bwa would have extended.
+ * The seeds of chain i are numbered from getFirstSeeds()[i] up to (but not including) getFirstSeeds()[i+1], and
+ * their properties are in the getSeed* arrays.
+ * Reference coordinates are 0-based, and on the forward strand of the contig (an index into the index's
+ * getReferenceContigNames), even for chains on the reverse strand.  Query coordinates are 0-based, and on the
+ * sequence as given.
+ * The getters return the arrays themselves, rather than copies, for speed:  don't modify them.
+ */
+public final class BwaMemChains {
+    private static final int CHAIN_INTS = 6; // refId, start, end, isReverse, weight, nSeeds
+    private static final int SEED_INTS = 3; // query start, ref start, length
+
+    private final int[] refIds;
+    private final int[] refStarts;
+    private final int[] refEnds;
+    private final boolean[] reverseStrands;
+    private final int[] weights;
+    private final int[] firstSeeds;
+    private final int[] seedQueryStarts;
+    private final int[] seedRefStarts;
+    private final int[] seedLengths;
+
+    private BwaMemChains( final ByteBuffer buf, final int pos ) {
+        final int nChains = buf.getInt(pos);
+        refIds = new int[nChains];
+        refStarts = new int[nChains];
+        refEnds = new int[nChains];
+        reverseStrands = new boolean[nChains];
+        weights = new int[nChains];
+        firstSeeds = new int[nChains + 1];
+        int nSeeds = 0;
+        int chainPos = pos + 4;
+        for ( int chain = 0; chain != nChains; ++chain ) {
+            final int nChainSeeds = buf.getInt(chainPos + 20);
+            nSeeds += nChainSeeds;
+            chainPos += 4*(CHAIN_INTS + SEED_INTS*nChainSeeds);
+        }
+        seedQueryStarts = new int[nSeeds];
+        seedRefStarts = new int[nSeeds];
+        seedLengths = new int[nSeeds];
+        int recPos = pos + 4;
+        int seed = 0;
+        for ( int chain = 0; chain != nChains; ++chain ) {
+            refIds[chain] = buf.getInt(recPos);
+            refStarts[chain] = buf.getInt(recPos + 4);
+            refEnds[chain] = buf.getInt(recPos + 8);
+            reverseStrands[chain] = buf.getInt(recPos + 12) != 0;
+            weights[chain] = buf.getInt(recPos + 16);
+            final int nChainSeeds = buf.getInt(recPos + 20);
+            firstSeeds[chain] = seed;
+            recPos += 4*CHAIN_INTS;
+            for ( int idx = 0; idx != nChainSeeds; ++idx, ++seed ) {
+                seedQueryStarts[seed] = buf.getInt(recPos);
+                seedRefStarts[seed] = buf.getInt(recPos + 4);
+                seedLengths[seed] = buf.getInt(recPos + 8);
+                recPos += 4*SEED_INTS;
+            }
+        }
+        firstSeeds[nChains] = seed;
+    }
+
+    public int getNChains() { return refIds.length; }
+    /** The contig of each chain. */
+    public int[] getRefIds() { return refIds; }
+    /** The start of each chain's seeds on its contig. */
+    public int[] getRefStarts() { return refStarts; }
+    /** The (exclusive) end of each chain's seeds on its contig. */
+    public int[] getRefEnds() { return refEnds; }
+    /** Whether each chain is on the reverse strand. */
+    public boolean[] getReverseStrands() { return reverseStrands; }
+    public int[] getWeights() { return weights; }
+    /** The number of the first seed of each chain, and, at index getNChains(), the total number of seeds. */
+    public int[] getFirstSeeds() { return firstSeeds; }
+
+    public int getNSeeds() { return seedLengths.length; }
+    /** The start of each seed on the sequence. */
+    public int[] getSeedQueryStarts() { return seedQueryStarts; }
+    /** The start of each seed on its chain's contig. */
+    public int[] getSeedRefStarts() { return seedRefStarts; }
+    public int[] getSeedLengths() { return seedLengths; }
+
+    /** Decode the chains for each sequence from the native results (in the format described by createChains). */
+    static List<BwaMemChains> decode( final ByteBuffer chainsBuf ) {
+        chainsBuf.order(ByteOrder.nativeOrder()).position(0).limit(chainsBuf.capacity());
+        final int nSequences = chainsBuf.getInt(0);
+        final int offsetsPos = 4*chainsBuf.getInt(4);
+        final List<BwaMemChains> allChains = new ArrayList<>(nSequences);
+        for ( int idx = 0; idx != nSequences; ++idx ) {
+            allChains.add(new BwaMemChains(chainsBuf, 4*chainsBuf.getInt(offsetsPos + 4*idx)));
+        }
+        return allChains;
+    }
+}
@@ -6,6 +6,7 @@ import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -83,6 +84,7 @@ public final class BwaMemIndex implements AutoCloseable {
     private volatile long indexAddress; // address where the index was memory-mapped (for use by C code)
     private final AtomicInteger refCount; // keep track of how many threads are actively aligning
     private final List<String> refContigNames; // the reference dictionary from the index
+    private final int[] refContigLengths; // and the length of each contig
     private static volatile boolean nativeLibLoaded = false; // whether we've loaded the native library or not
 
     private static String resolveFastaFileExtension(final String fasta) {
@@ -348,6 +350,10 @@ public final class BwaMemIndex implements AutoCloseable {
             refContigNames.add(new String(nameBytes));
         }
         destroyByteBuffer(refContigNamesBuf);
+        refContigLengths = getRefContigLengths(indexAddress);
+        if ( refContigLengths == null ) {
+            throw new CouldNotReadImageException("unable to retrieve reference contig lengths from bwa-mem index");
+        }
     }
 
     private void assertNonEmptyReadableImageFile(final String image) {
@@ -401,20 +407,373 @@ public final class BwaMemIndex implements AutoCloseable {
         return refContigNames;
     }
 
+    /** Number of elements per sequence in the results of findSAIntervals:  the first SA row, and the number of rows. */
+    public static final int SA_INTERVAL_FIELDS = 2;
+
+    /** Number of elements per position in the results of resolveSAPositions:  refId, start, and isReverse. */
+    public static final int SA_POSITION_FIELDS = 3;
+
+    /**
+     * Number of elements per SMEM in the results of findSMEMs:  its start and (exclusive) end on the sequence, its
+     * first SA row, and its number of occurrences.
+     */
+    public static final int SMEM_FIELDS = 4;
+
+    /**
+     * Find the exact matches to each sequence in a batch (k-mers, say), on either strand of the reference, directly
+     * from the index's FM-index.  This, and the other FM-index queries below, run on the calling thread, and can be
+     * run concurrently.  Each is much cheaper than aligning.
+     * @param batch The sequences.  The bases are recoded in place, but you can clear and reuse the batch afterwards.
+     * @return SA_INTERVAL_FIELDS elements for each sequence:  the first row of its suffix-array interval, and the
+     * interval's size (which is the number of occurrences, and 0 if there are none).
+     */
+    public long[] findSAIntervals( final BwaMemSequenceBatch batch ) {
+        final long indexAddress = refIndex();
+        try {
+            return checkQueryResult(findSAIntervals(indexAddress, batch.getEncodedBatch()));
+        }
+        finally {
+            deRefIndex();
+        }
+    }
+
+    /** The number of occurrences of each sequence in a batch, on either strand of the reference. */
+    public long[] countOccurrences( final BwaMemSequenceBatch batch ) {
+        final long[] intervals = findSAIntervals(batch);
+        final long[] counts = new long[intervals.length/SA_INTERVAL_FIELDS];
+        for ( int idx = 0; idx != counts.length; ++idx ) {
+            counts[idx] = intervals[SA_INTERVAL_FIELDS*idx + 1];
+        }
+        return counts;
+    }
+
+    /**
+     * Find where on the reference some suffix-array rows (from findSAIntervals or findSMEMs) point.
+     * @param saPositions The rows.
+     * @param lengths The length of the match at each row (needed to place matches on the reverse strand).
+     * @return SA_POSITION_FIELDS elements for each row:  the refId (an index into getReferenceContigNames, or -1 if
+     * the row is out of range or the match straddles contigs), the 0-based start of the match on the forward strand
+     * of that contig, and 1 if the match is on the reverse strand (0 if not).
+     */
+    public int[] resolveSAPositions( final long[] saPositions, final int[] lengths ) {
+        if ( saPositions.length != lengths.length ) {
+            throw new IllegalArgumentException("saPositions and lengths must have the same length");
+        }
+        final long indexAddress = refIndex();
+        try {
+            return checkQueryResult(resolveSAPositions(indexAddress, saPositions, lengths));
+        }
+        finally {
+            deRefIndex();
+        }
+    }
+
+    /**
+     * Find the super-maximal exact matches for each sequence in a batch, as bwa's first round of seeding does.
+     * @param batch The sequences.  The bases are recoded in place, but you can clear and reuse the batch afterwards.
+     * @param minLength The length of the shortest SMEM to report (the aligner's MinSeedLength option, say).
+     * @return An array for each sequence, holding SMEM_FIELDS elements for each of its SMEMs.
+     */
+    public long[][] findSMEMs( final BwaMemSequenceBatch batch, final int minLength ) {
+        final long indexAddress = refIndex();
+        final ByteBuffer smemsBuf;
+        try {
+            smemsBuf = checkQueryResult(findSMEMs(indexAddress, batch.getEncodedBatch(), minLength));
+        }
+        finally {
+            deRefIndex();
+        }
+        try {
+            smemsBuf.order(ByteOrder.nativeOrder()).position(0).limit(smemsBuf.capacity());
+            final int nSequences = (int)smemsBuf.getLong(0);
+            final int offsetsPos = 8*(int)smemsBuf.getLong(8);
+            final long[][] smems = new long[nSequences][];
+            for ( int idx = 0; idx != nSequences; ++idx ) {
+                final int pos = 8*(int)smemsBuf.getLong(offsetsPos + 8*idx);
+                final long[] seqSMEMs = new long[SMEM_FIELDS*(int)smemsBuf.getLong(pos)];
+                for ( int fld = 0; fld != seqSMEMs.length; ++fld ) {
+                    seqSMEMs[fld] = smemsBuf.getLong(pos + 8 + 8*fld);
+                }
+                smems[idx] = seqSMEMs;
+            }
+            return smems;
+        }
+        finally {
+            destroyByteBuffer(smemsBuf);
+        }
+    }
+
+    private <T> T checkQueryResult( final T result ) {
+        if ( result == null ) {
+            throw new IllegalStateException("Unable to query bwa-mem index "+indexImageFile+": We don't know why.");
+        }
+        return result;
+    }
+
+    /** the length of a contig in the reference dictionary */
+    public int getReferenceContigLength( final int refId ) {
+        return refContigLengths[refId];
+    }
+
+    /** The largest count in a mappability track:  k-mers that occur more often than this are reported as this. */
+    public static final int MAX_MAPPABILITY_COUNT = 255;
+
+    private static final int MAPPABILITY_TRACK_MAGIC = 0x424d4150; // "BMAP"
+    private static final int MAPPABILITY_TRACK_VERSION = 1;
+    private static final int MAPPABILITY_WINDOW = 1 << 22; // positions scanned per native call when writing a track
+
+    /**
+     * Compute the mappability of a span of a contig:  the number of times the k-mer starting at each position occurs
+     * in the reference, on either strand, straight from the FM-index.  A count of 1 means the k-mer is unique.
+     * K-mers that run off the end of the contig, or that include an ambiguous base, get 0.  Counts are saturated at
+     * MAX_MAPPABILITY_COUNT.  The scan is run on nThreads threads (on the native thread pool, if it's been started).
+     * @param k The k-mer length.
+     * @param refId The contig (an index into getReferenceContigNames).
+     * @param start The 0-based start of the span.
+     * @param end The 0-based, exclusive end of the span.  It's clipped to the end of the contig.
+     * @param nThreads The number of threads to scan with.
+     * @return The count for each position in the span, as an unsigned byte.
+     */
+    public byte[] computeMappability( final int k, final int refId, final int start, final int end, final int nThreads ) {
+        if ( k <= 0 ) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        if ( refId < 0 || refId >= refContigLengths.length ) {
+            throw new IllegalArgumentException("there's no such contig: " + refId);
+        }
+        final int clippedEnd = Math.min(end, refContigLengths[refId]);
+        if ( start < 0 || start > clippedEnd ) {
+            throw new IllegalArgumentException("bad span: " + start + "-" + end);
+        }
+        final byte[] counts = new byte[clippedEnd - start];
+        if ( counts.length == 0 ) {
+            return counts;
+        }
+        final ByteBuffer outBuf = createMappabilityBuffer(Math.min(counts.length, MAPPABILITY_WINDOW));
+        try {
+            for ( int windowStart = start; windowStart < clippedEnd; windowStart += MAPPABILITY_WINDOW ) {
+                final int windowEnd = Math.min(clippedEnd, windowStart + MAPPABILITY_WINDOW);
+                scanWindow(k, refId, windowStart, windowEnd, nThreads, outBuf);
+                outBuf.get(counts, windowStart - start, windowEnd - windowStart);
+            }
+        }
+        finally {
+            destroyByteBuffer(outBuf);
+        }
+        return counts;
+    }
+
+    /**
+     * Compute the mappability of the whole reference (as computeMappability does), streaming the results to a
+     * compact binary track, one window at a time, so that the counts for the whole reference are never in memory.
+     * The track is written (in big-endian order, as by a DataOutputStream) as:
+     *   a 32-bit magic number ("BMAP"), a 32-bit version (1), the 32-bit k, and the 32-bit number of contigs
+     *   for each contig, in the order of getReferenceContigNames,
+     *     its name (as by DataOutputStream.writeUTF), and its 32-bit length
+     *     a byte for each position, giving the count for the k-mer that starts there
+     * The stream isn't closed.
+     */
+    public void writeMappabilityTrack( final int k, final int nThreads, final OutputStream os ) throws IOException {
+        if ( k <= 0 ) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        final DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAPPABILITY_TRACK_MAGIC);
+        out.writeInt(MAPPABILITY_TRACK_VERSION);
+        out.writeInt(k);
+        out.writeInt(refContigLengths.length);
+        final ByteBuffer outBuf = createMappabilityBuffer(MAPPABILITY_WINDOW);
+        try {
+            final byte[] counts = new byte[MAPPABILITY_WINDOW];
+            for ( int refId = 0; refId != refContigLengths.length; ++refId ) {
+                out.writeUTF(refContigNames.get(refId));
+                out.writeInt(refContigLengths[refId]);
+                for ( int windowStart = 0; windowStart < refContigLengths[refId]; windowStart += MAPPABILITY_WINDOW ) {
+                    final int windowEnd = Math.min(refContigLengths[refId], windowStart + MAPPABILITY_WINDOW);
+                    scanWindow(k, refId, windowStart, windowEnd, nThreads, outBuf);
+                    outBuf.get(counts, 0, windowEnd - windowStart);
+                    out.write(counts, 0, windowEnd - windowStart);
+                }
+            }
+        }
+        finally {
+            destroyByteBuffer(outBuf);
+        }
+        out.flush();
+    }
+
+    // a native buffer for the counts (released with destroyByteBuffer), so that we don't leave a direct buffer
+    // of up to MAPPABILITY_WINDOW bytes for the garbage collector on every call
+    private static ByteBuffer createMappabilityBuffer( final int capacity ) {
+        final ByteBuffer outBuf = createByteBuffer(capacity);
+        if ( outBuf == null ) {
+            throw new IllegalStateException("Unable to allocate a native buffer of " + capacity + " bytes.");
+        }
+        return outBuf;
+    }
+
+    // scan [start,end) into outBuf, and leave outBuf positioned at the start of the counts
+    private void scanWindow( final int k, final int refId, final int start, final int end, final int nThreads,
+                             final ByteBuffer outBuf ) {
+        final long indexAddress = refIndex();
+        try {
+            if ( scanMappability(indexAddress, k, refId, start, end, nThreads, outBuf) != end - start ) {
+                throw new IllegalStateException("Unable to scan bwa-mem index "+indexImageFile+": We don't know why.");
+            }
+        }
+        finally {
+            deRefIndex();
+        }
+        outBuf.clear();
+    }
+
     /** returns github GUID for the version of bwa that has been compiled */
     public static String getBWAVersion() {
         loadNativeLibrary();
         return getVersion();
     }
 
-    ByteBuffer doAlignment( final ByteBuffer seqs, final ByteBuffer opts, final BwaMemPairEndStats peStats) {
-        final ByteBuffer alignments = createAlignments(seqs, indexAddress, opts, peStats);
+    /**
+     * Align some sequences.  If outBuf is big enough, the results are written into it, and it's returned.
+     * Otherwise, the results are returned in a new buffer (which must be released with destroyByteBuffer),
+     * and the capacity of that buffer tells you how big outBuf needed to be.  outBuf may be null.
+     * The contextAddress (from createContext) supplies scratch space, and may be 0.
+     * The targets buffer (from a BwaMemIntervalSet) and the cancel buffer (from a BwaMemCancellationToken) may be null.
+     */
+    ByteBuffer doAlignment( final ByteBuffer seqs, final ByteBuffer opts, final ByteBuffer xopts,
+                            final ByteBuffer targets, final long contextAddress, final ByteBuffer cancel,
+                            final BwaMemPairEndStats[] peStats, final ByteBuffer outBuf ) {
+        final ByteBuffer alignments =
+                createAlignments(seqs, indexAddress, opts, xopts, targets, contextAddress, cancel, peStats, outBuf);
+        if ( alignments == null ) {
+            throw new IllegalStateException("Unable to get alignments from bwa-mem index "+indexImageFile+": We don't know why.");
+        }
+        return alignments;
+    }
+
+    /**
+     * Align a single sequence, as an unpaired read, on the calling thread.  The other arguments, and the results,
+     * are as for doAlignment (with a batch of 1).
+     */
+    ByteBuffer doSingleAlignment( final byte[] seq, final ByteBuffer opts, final ByteBuffer xopts,
+                                  final ByteBuffer targets, final long contextAddress, final ByteBuffer outBuf ) {
+        final ByteBuffer alignments = alignOne(indexAddress, opts, xopts, targets, contextAddress, seq, outBuf);
+        if ( alignments == null ) {
+            throw new IllegalStateException("Unable to get alignments from bwa-mem index "+indexImageFile+": We don't know why.");
+        }
+        return alignments;
+    }
+
+    /**
+     * Like doAlignment, but the alignment happens on a native worker thread, and you get a future for the results.
+     * Don't touch seqs or outBuf, or destroy the context, until the future completes.
+     */
+    CompletableFuture<ByteBuffer> submitAlignment( final ByteBuffer seqs, final ByteBuffer opts, final ByteBuffer xopts,
+                                                   final ByteBuffer targets, final long contextAddress,
+                                                   final ByteBuffer cancel, final BwaMemPairEndStats[] peStats,
+                                                   final ByteBuffer outBuf ) {
+        return BwaMemJobQueue.getInstance().submit(this, seqs, opts, xopts, targets, contextAddress, cancel, peStats,
+                                                   outBuf);
+    }
+
+    /**
+     * Set up a batch to be aligned in stages, on threads of the caller's choosing.  The arguments are as for
+     * doAlignment.  The returned address must be handed to finishStagedAlignment or to discardStagedAlignments.
+     * (The caller should hold a reference to the index until then.)
+     */
+    long stageAlignment( final ByteBuffer seqs, final ByteBuffer opts, final ByteBuffer xopts, final ByteBuffer targets,
+                         final ByteBuffer cancel, final BwaMemPairEndStats[] peStats, final ByteBuffer outBuf ) {
+        final long stagedAddress = stageAlignments(seqs, indexAddress, opts, xopts, targets, cancel, peStats, outBuf);
+        if ( stagedAddress == 0L ) {
+            throw new IllegalStateException("Unable to stage alignments for bwa-mem index "+indexImageFile+": We don't know why.");
+        }
+        return stagedAddress;
+    }
+
+    /** Get the alignments for a staged batch, just as doAlignment would have returned them. */
+    ByteBuffer finishStagedAlignment( final long stagedAddress, final ByteBuffer outBuf ) {
+        final ByteBuffer alignments = finishStagedAlignments(stagedAddress, outBuf);
         if ( alignments == null ) {
             throw new IllegalStateException("Unable to get alignments from bwa-mem index "+indexImageFile+": We don't know why.");
         }
         return alignments;
     }
 
+    /**
+     * Find the chains of seeds for some sequences, without extending them into alignments.  The arguments are as for
+     * doAlignment, but only the targets matter among the xopts.  The results are in a new buffer, which must be
+     * released with destroyByteBuffer.
+     */
+    ByteBuffer doChainQuery( final ByteBuffer seqs, final ByteBuffer opts, final ByteBuffer xopts,
+                             final ByteBuffer targets ) {
+        final ByteBuffer chains = createChains(seqs, indexAddress, opts, xopts, targets);
+        if ( chains == null ) {
+            throw new IllegalStateException("Unable to get chains from bwa-mem index "+indexImageFile+": We don't know why.");
+        }
+        return chains;
+    }
+
+    /**
+     * Align each sequence locally to an interval of the reference ([starts[idx],ends[idx]) on contig refIds[idx]),
+     * using the scoring options (and the output threshold, and the number of threads) in opts.  The results are in a
+     * new buffer, which must be released with destroyByteBuffer.
+     */
+    ByteBuffer doLocalAlignment( final ByteBuffer seqs, final ByteBuffer opts, final int[] refIds, final int[] starts,
+                                 final int[] ends ) {
+        final ByteBuffer alignments = createLocalAlignments(seqs, indexAddress, opts, refIds, starts, ends);
+        if ( alignments == null ) {
+            throw new IllegalStateException("Unable to get alignments from bwa-mem index "+indexImageFile+": We don't know why.");
+        }
+        return alignments;
+    }
+
+    /**
+     * Realign the clipped segment of each sequence ([clipStarts[idx],clipEnds[idx])), optionally restricted to a
+     * window around its anchor, using the options (and the number of threads) in opts.  The results are in a new
+     * buffer, laid out as for doLocalAlignment, which must be released with destroyByteBuffer.
+     */
+    ByteBuffer doClipRealignment( final ByteBuffer seqs, final ByteBuffer opts, final int[] clipStarts,
+                                  final int[] clipEnds, final int[] anchorRefIds, final int[] anchorPositions,
+                                  final int window ) {
+        final ByteBuffer alignments =
+                realignClips(seqs, indexAddress, opts, clipStarts, clipEnds, anchorRefIds, anchorPositions, window);
+        if ( alignments == null ) {
+            throw new IllegalStateException("Unable to get alignments from bwa-mem index "+indexImageFile+": We don't know why.");
+        }
+        return alignments;
+    }
+
+    /**
+     * Align each query to its target (the sequences alternate between a query and its target) in one of the
+     * JNIBWA_PAIR_* modes (0=local, 1=global, 2=extension), using the scoring options (and the number of threads) in
+     * opts.  No index is involved.  The results are in a new buffer, which must be released with destroyByteBuffer.
+     */
+    static ByteBuffer doPairwiseAlignment( final ByteBuffer seqs, final ByteBuffer opts, final int mode,
+                                           final int initialScore ) {
+        final ByteBuffer alignments = alignPairs(seqs, opts, mode, initialScore);
+        if ( alignments == null ) {
+            throw new IllegalStateException("Unable to align pairs of sequences: We don't know why.");
+        }
+        return alignments;
+    }
+
+    /**
+     * Estimate the pair-end stats for each orientation from some pairs, without going on to produce alignments.
+     * The sequences must alternate between a read and its mate.
+     */
+    BwaMemPairEndStats[] doPairEndStatsEstimation( final ByteBuffer seqs, final ByteBuffer opts ) {
+        final ByteBuffer statsBuf = ByteBuffer.allocateDirect(BwaMemPairEndStats.N_ORIENTATIONS*BwaMemPairEndStats.ENCODED_SIZE)
+                .order(ByteOrder.nativeOrder());
+        refIndex();
+        try {
+            estimatePairEndStats(seqs, indexAddress, opts, statsBuf);
+        }
+        finally {
+            deRefIndex();
+        }
+        return BwaMemPairEndStats.decode(statsBuf, 0);
+    }
+
     private static void assertNonEmptyReadableIndexFile(final String index, final String fileName ) {
         if ( !nonEmptyReadableFile(fileName) )
             throw new CouldNotReadIndexException(index, "Missing bwa index file: "+ fileName);
@@ -431,7 +790,7 @@ public final class BwaMemIndex implements AutoCloseable {
         }
     }
 
-    private static void loadNativeLibrary() {
+    static void loadNativeLibrary() {
         if ( !nativeLibLoaded ) {
             synchronized(BwaMemIndex.class) {
                 if ( !nativeLibLoaded ) {
@@ -482,7 +841,39 @@ public final class BwaMemIndex implements AutoCloseable {
     private static native int destroyIndex( long indexAddress );
     static native ByteBuffer createDefaultOptions();
     private static native ByteBuffer getRefContigNames( long indexAddress );
-    private static native ByteBuffer createAlignments( ByteBuffer seqs, long indexAddress, ByteBuffer opts, BwaMemPairEndStats peStats);
+    private static native int[] getRefContigLengths( long indexAddress );
+    private static native ByteBuffer createAlignments( ByteBuffer seqs, long indexAddress, ByteBuffer opts, ByteBuffer xopts, ByteBuffer targets, long contextAddress, ByteBuffer cancel, BwaMemPairEndStats[] peStats, ByteBuffer outBuf );
+    private static native ByteBuffer alignOne( long indexAddress, ByteBuffer opts, ByteBuffer xopts, ByteBuffer targets, long contextAddress, byte[] seq, ByteBuffer outBuf );
+    private static native ByteBuffer createChains( ByteBuffer seqs, long indexAddress, ByteBuffer opts, ByteBuffer xopts, ByteBuffer targets );
+    private static native long[] findSAIntervals( long indexAddress, ByteBuffer seqs );
+    private static native int[] resolveSAPositions( long indexAddress, long[] saPositions, int[] lengths );
+    private static native ByteBuffer findSMEMs( long indexAddress, ByteBuffer seqs, int minLength );
+    private static native long scanMappability( long indexAddress, int k, int refId, long start, long end, int nThreads, ByteBuffer outBuf );
+    private static native ByteBuffer createLocalAlignments( ByteBuffer seqs, long indexAddress, ByteBuffer opts, int[] refIds, int[] starts, int[] ends );
+    private static native ByteBuffer realignClips( ByteBuffer seqs, long indexAddress, ByteBuffer opts, int[] clipStarts, int[] clipEnds, int[] anchorRefIds, int[] anchorPositions, int window );
+    private static native ByteBuffer alignPairs( ByteBuffer seqs, ByteBuffer opts, int mode, int initialScore );
+    static native long createContext( long maxBytes );
+    static native void setContextLimit( long contextAddress, long maxBytes );
+    static native long getContextSize( long contextAddress );
+    static native void trimContext( long contextAddress );
+    static native void destroyContext( long contextAddress );
+    private static native int estimatePairEndStats( ByteBuffer seqs, long indexAddress, ByteBuffer opts, ByteBuffer statsBuf );
+    private static native long stageAlignments( ByteBuffer seqs, long indexAddress, ByteBuffer opts, ByteBuffer xopts, ByteBuffer targets, ByteBuffer cancel, BwaMemPairEndStats[] peStats, ByteBuffer outBuf );
+    static native void findStagedRegions( long stagedAddress, int from, int to );
+    static native void inferStagedPairEndStats( long stagedAddress );
+    static native void formatStagedAlignments( long stagedAddress, int from, int to );
+    private static native ByteBuffer finishStagedAlignments( long stagedAddress, ByteBuffer outBuf );
+    static native void discardStagedAlignments( long stagedAddress );
+    static native long createJobQueue( int nWorkers );
+    static native void stopJobQueue( long queueAddress );
+    static native void destroyJobQueue( long queueAddress );
+    static native long submitJob( long queueAddress, ByteBuffer seqs, long indexAddress, ByteBuffer opts, ByteBuffer xopts, ByteBuffer targets, long contextAddress, ByteBuffer cancel, BwaMemPairEndStats[] peStats, ByteBuffer outBuf );
+    static native long awaitJob( long queueAddress );
+    static native ByteBuffer finishJob( long jobAddress, ByteBuffer outBuf );
+    static native int startThreadPool( int nThreads );
+    static native int getThreadPoolSize();
+    static native void stopThreadPool();
+    static native ByteBuffer createByteBuffer( int capacity );
     static native void destroyByteBuffer( ByteBuffer alignments );
     private static native String getVersion();
 }
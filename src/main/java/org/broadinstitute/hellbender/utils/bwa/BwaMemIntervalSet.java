@@ -0,0 +1,102 @@
+package org.broadinstitute.hellbender.utils.bwa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A set of target intervals on an index's reference, compiled into the form that the native aligner searches.
+ * Give one to a BwaMemAligner with setTargetIntervals, and the aligner drops any chain of seeds that doesn't touch
+ * a target before it's extended, so that reads with no on-target seeds are reported as unmapped, and there's no
+ * Smith-Waterman work for off-target hits.  (An alignment can still extend beyond a target, so long as one of its
+ * seeds overlaps it.)
+ * Intervals are given by refId (an index into the index's getReferenceContigNames), and 0-based, half-open start
+ * and end coordinates on that contig.  Overlapping and abutting intervals are merged.
+ * This class is immutable, and thread-safe.
+ */
+public final class BwaMemIntervalSet {
+    private static final int HEADER_BYTES = 8;  // nIntervals, and padding
+    private static final int INTERVAL_BYTES = 12; // refId, start, end
+
+    private final BwaMemIndex index;
+    private final ByteBuffer compiled; // a jnibwa_targets_t
+    private final int nIntervals;
+
+    /**
+     * @param index The index whose reference the intervals refer to.
+     * @param refIds The contig of each interval.
+     * @param starts The 0-based start of each interval.
+     * @param ends The 0-based, exclusive end of each interval (which can't be past the end of its contig).
+     */
+    public BwaMemIntervalSet( final BwaMemIndex index, final int[] refIds, final int[] starts, final int[] ends ) {
+        if ( refIds.length != starts.length || refIds.length != ends.length ) {
+            throw new IllegalArgumentException("refIds, starts, and ends must have the same length");
+        }
+        final int nContigs = index.getReferenceContigNames().size();
+        final long[] sortKeys = new long[refIds.length]; // refId and start, packed so that they sort together
+        final int[] sortedEnds = new int[refIds.length];
+        for ( int idx = 0; idx != refIds.length; ++idx ) {
+            if ( refIds[idx] < 0 || refIds[idx] >= nContigs ) {
+                throw new IllegalArgumentException("interval " + idx + " has no such contig: " + refIds[idx]);
+            }
+            if ( starts[idx] < 0 || ends[idx] < starts[idx] || ends[idx] > index.getReferenceContigLength(refIds[idx]) ) {
+                throw new IllegalArgumentException("interval " + idx + " has bad bounds: " + starts[idx] + "-" + ends[idx]);
+            }
+            sortKeys[idx] = (long)refIds[idx] << 32 | starts[idx];
+        }
+        final Integer[] order = new Integer[refIds.length];
+        for ( int idx = 0; idx != order.length; ++idx ) order[idx] = idx;
+        Arrays.sort(order, ( idx1, idx2 ) -> Long.compare(sortKeys[idx1], sortKeys[idx2]));
+
+        // merge them
+        final int[] merged = new int[3*refIds.length];
+        int nMerged = 0;
+        for ( final int idx : order ) {
+            if ( starts[idx] == ends[idx] ) continue;
+            final int last = 3*(nMerged - 1);
+            if ( nMerged > 0 && merged[last] == refIds[idx] && merged[last + 2] >= starts[idx] ) {
+                merged[last + 2] = Math.max(merged[last + 2], ends[idx]);
+            } else {
+                merged[3*nMerged] = refIds[idx];
+                merged[3*nMerged + 1] = starts[idx];
+                merged[3*nMerged + 2] = ends[idx];
+                nMerged += 1;
+            }
+        }
+
+        this.index = index;
+        this.nIntervals = nMerged;
+        compiled = ByteBuffer.allocateDirect(HEADER_BYTES + nMerged*INTERVAL_BYTES).order(ByteOrder.nativeOrder());
+        compiled.putInt(nMerged).putInt(0);
+        for ( int idx = 0; idx != 3*nMerged; ++idx ) {
+            compiled.putInt(merged[idx]);
+        }
+        compiled.clear();
+    }
+
+    /** The number of intervals, after merging. */
+    public int getNIntervals() { return nIntervals; }
+
+    /** Whether the interval [start,end) on contig refId overlaps a target. */
+    public boolean overlaps( final int refId, final int start, final int end ) {
+        // find the last interval that starts before end:  it's the only one that might reach back past start
+        int lo = 0;
+        int hi = nIntervals;
+        while ( lo < hi ) {
+            final int mid = (lo + hi) >>> 1;
+            final int midRefId = compiled.getInt(HEADER_BYTES + mid*INTERVAL_BYTES);
+            if ( midRefId < refId || (midRefId == refId && compiled.getInt(HEADER_BYTES + mid*INTERVAL_BYTES + 4) < end) ) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if ( lo == 0 ) return false;
+        final int pos = HEADER_BYTES + (lo - 1)*INTERVAL_BYTES;
+        return compiled.getInt(pos) == refId && compiled.getInt(pos + 8) > start;
+    }
+
+    BwaMemIndex getIndex() { return index; }
+
+    ByteBuffer getBuffer() { return compiled; }
+}
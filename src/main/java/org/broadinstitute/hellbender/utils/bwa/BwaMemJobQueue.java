@@ -0,0 +1,206 @@
+package org.broadinstitute.hellbender.utils.bwa;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs alignment jobs (from BwaMemAligner.submit) on native worker threads, so that the submitting thread isn't stuck
+ * in a JNI call while bwa does its work.  A single daemon thread waits for jobs to finish, and completes their futures.
+ * The number of jobs that can be queued or running at once is limited:  submit waits (in Java, with a Semaphore, so
+ * it's fine to call it from a virtual thread) until there's room.
+ * There's one queue, shared by all aligners (on any index).  It's started the first time anyone submits a job, with
+ * the number of workers and the job limit last given to configure (by default, DEFAULT_N_WORKERS and
+ * DEFAULT_MAX_JOBS), and it runs until shutdown is called.  A job submitted after a shutdown starts a new queue.
+ * Usage pattern:
+ *   BwaMemJobQueue.configure(nWorkers, maxJobs);
+ *   ... submit batches to your aligners ...
+ *   BwaMemJobQueue.shutdown();
+ * This class is thread-safe.
+ */
+public final class BwaMemJobQueue {
+    public static final int DEFAULT_N_WORKERS = 2;
+    public static final int DEFAULT_MAX_JOBS = 4; // queued or running
+
+    private static int nWorkersConfig = DEFAULT_N_WORKERS; // guarded by BwaMemJobQueue.class
+    private static int maxJobsConfig = DEFAULT_MAX_JOBS;
+    private static volatile BwaMemJobQueue instance;
+
+    private final long queueAddress;
+    private final int maxJobs;
+    private final Semaphore jobSlots;
+    private final Map<Long, PendingJob> pendingJobs; // by job address
+    private final Thread completer;
+    private boolean stopped; // guarded by pendingJobs
+
+    private static final class PendingJob {
+        final BwaMemIndex index;
+        // hang on to the input and output buffers (and the targets and the cancel flag) until the job is done
+        final ByteBuffer seqs;
+        final ByteBuffer targets;
+        final ByteBuffer cancel;
+        final ByteBuffer outBuf;
+        final CompletableFuture<ByteBuffer> future;
+
+        PendingJob( final BwaMemIndex index, final ByteBuffer seqs, final ByteBuffer targets, final ByteBuffer cancel,
+                    final ByteBuffer outBuf ) {
+            this.index = index;
+            this.seqs = seqs;
+            this.targets = targets;
+            this.cancel = cancel;
+            this.outBuf = outBuf;
+            this.future = new CompletableFuture<>();
+        }
+    }
+
+    private BwaMemJobQueue( final int nWorkers, final int maxJobs ) {
+        queueAddress = BwaMemIndex.createJobQueue(nWorkers);
+        if ( queueAddress == 0L ) {
+            throw new IllegalStateException("Unable to start native alignment threads.");
+        }
+        this.maxJobs = maxJobs;
+        jobSlots = new Semaphore(maxJobs);
+        pendingJobs = new HashMap<>();
+        completer = new Thread(this::completeJobs, "bwa-mem job completion");
+        completer.setDaemon(true);
+        completer.start();
+    }
+
+    /**
+     * Set the size of the queue that will be started by the next submit.
+     * @param nWorkers The number of native threads that run jobs.  (Each job can also use the native thread pool, if
+     *                 it's running, according to its aligner's NThreads option.)
+     * @param maxJobs The number of jobs that can be queued or running at once.
+     * @throws IllegalStateException if the queue is running:  shut it down first.
+     */
+    public static synchronized void configure( final int nWorkers, final int maxJobs ) {
+        if ( nWorkers < 1 || maxJobs < 1 ) {
+            throw new IllegalArgumentException("the job queue needs at least 1 worker, and room for at least 1 job");
+        }
+        if ( instance != null ) {
+            throw new IllegalStateException("The job queue is already running.");
+        }
+        nWorkersConfig = nWorkers;
+        maxJobsConfig = maxJobs;
+    }
+
+    public static boolean isRunning() { return instance != null; }
+
+    /**
+     * Stop the queue.  This waits for the jobs that have been submitted to finish (and their futures to be
+     * completed), and for the native threads to exit.  It's harmless to call this when the queue isn't running.
+     */
+    public static void shutdown() {
+        final BwaMemJobQueue queue;
+        synchronized (BwaMemJobQueue.class) {
+            queue = instance;
+            instance = null;
+        }
+        if ( queue != null ) {
+            queue.stop();
+        }
+    }
+
+    static BwaMemJobQueue getInstance() {
+        BwaMemJobQueue queue = instance;
+        if ( queue == null ) {
+            synchronized (BwaMemJobQueue.class) {
+                queue = instance;
+                if ( queue == null ) {
+                    BwaMemIndex.loadNativeLibrary();
+                    instance = queue = new BwaMemJobQueue(nWorkersConfig, maxJobsConfig);
+                }
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Queue an alignment job.  The arguments are as for BwaMemIndex.doAlignment, and so is the eventual result.
+     * The options are copied when the job is submitted, but seqs and outBuf mustn't be touched until the future
+     * completes.  The index can't be closed, and the context can't be destroyed, until then, either.
+     * The future is completed on the queue's completion thread, so don't do anything slow in a dependent stage
+     * unless you use one of the CompletableFuture's *Async methods.
+     * @throws IllegalStateException if the queue has been shut down.
+     */
+    CompletableFuture<ByteBuffer> submit( final BwaMemIndex index, final ByteBuffer seqs, final ByteBuffer opts,
+                                          final ByteBuffer xopts, final ByteBuffer targets, final long contextAddress,
+                                          final ByteBuffer cancel, final BwaMemPairEndStats[] peStats,
+                                          final ByteBuffer outBuf ) {
+        try {
+            jobSlots.acquire();
+        }
+        catch ( final InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            final CompletableFuture<ByteBuffer> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ie);
+            return failed;
+        }
+        final PendingJob pendingJob = new PendingJob(index, seqs, targets, cancel, outBuf);
+        boolean submitted = false;
+        final long indexAddress = index.refIndex(); // tell the index that we're doing some aligning so that it can't be closed
+        try {
+            synchronized (pendingJobs) { // so that the completion thread can't see the job before we've recorded it
+                if ( stopped ) {
+                    throw new IllegalStateException("The job queue has been shut down.");
+                }
+                final long jobAddress = BwaMemIndex.submitJob(queueAddress, seqs, indexAddress, opts, xopts, targets,
+                                                              contextAddress, cancel, peStats, outBuf);
+                if ( jobAddress == 0L ) {
+                    throw new IllegalStateException("Unable to queue an alignment job.");
+                }
+                pendingJobs.put(jobAddress, pendingJob);
+                submitted = true;
+            }
+        }
+        finally {
+            if ( !submitted ) {
+                index.deRefIndex();
+                jobSlots.release();
+            }
+        }
+        return pendingJob.future;
+    }
+
+    private void stop() {
+        synchronized (pendingJobs) {
+            stopped = true; // no more submissions
+        }
+        jobSlots.acquireUninterruptibly(maxJobs); // i.e., every job has been completed
+        BwaMemIndex.stopJobQueue(queueAddress);
+        boolean interrupted = false;
+        while ( completer.isAlive() ) {
+            try {
+                completer.join();
+            }
+            catch ( final InterruptedException ie ) {
+                interrupted = true;
+            }
+        }
+        if ( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void completeJobs() {
+        long jobAddress;
+        while ( (jobAddress = BwaMemIndex.awaitJob(queueAddress)) != 0L ) {
+            final PendingJob pendingJob;
+            synchronized (pendingJobs) {
+                pendingJob = pendingJobs.remove(jobAddress);
+            }
+            final ByteBuffer alignments = BwaMemIndex.finishJob(jobAddress, pendingJob.outBuf);
+            pendingJob.index.deRefIndex();
+            jobSlots.release();
+            if ( alignments == null ) {
+                pendingJob.future.completeExceptionally(new IllegalStateException(
+                        "Unable to get alignments from bwa-mem index: We don't know why."));
+            } else {
+                pendingJob.future.complete(alignments);
+            }
+        }
+        BwaMemIndex.destroyJobQueue(queueAddress); // we're the only one that could still be using it
+    }
+}
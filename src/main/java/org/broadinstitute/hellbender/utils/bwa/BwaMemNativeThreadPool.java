@@ -0,0 +1,53 @@
+package org.broadinstitute.hellbender.utils.bwa;
+
+/**
+ * A persistent pool of native threads that's shared by all aligners (on any index).
+ * When the aligner's NThreads option is greater than 1, bwa normally creates and joins a fresh set of threads for
+ * each stage of each batch.  When the pool is running, alignment uses pool threads instead.  Each batch still uses
+ * at most NThreads threads:  the calling thread plus as many pool threads as are free, up to NThreads-1 of them.
+ * So size the pool for the total number of threads you want aligning at once, across all your aligners.
+ * Usage pattern:
+ *   BwaMemNativeThreadPool.start(nThreads);
+ *   ... align as usual, with setNThreadsOption(n) ...
+ *   BwaMemNativeThreadPool.shutdown();
+ * All methods are thread-safe.
+ */
+public final class BwaMemNativeThreadPool {
+    private BwaMemNativeThreadPool() {}
+
+    /**
+     * Start the pool.
+     * @param nThreads The number of threads in the pool.
+     * @throws IllegalStateException if the pool is already running, or if the threads can't be started.
+     */
+    public static synchronized void start( final int nThreads ) {
+        if ( nThreads < 1 ) {
+            throw new IllegalArgumentException("the pool needs at least 1 thread");
+        }
+        BwaMemIndex.loadNativeLibrary();
+        if ( BwaMemIndex.getThreadPoolSize() != 0 ) {
+            throw new IllegalStateException("The native thread pool is already running.");
+        }
+        if ( BwaMemIndex.startThreadPool(nThreads) == 0 ) {
+            throw new IllegalStateException("Unable to start the native thread pool.");
+        }
+    }
+
+    /** Number of threads in the pool, or 0 if it isn't running. */
+    public static synchronized int getNThreads() {
+        BwaMemIndex.loadNativeLibrary();
+        return BwaMemIndex.getThreadPoolSize();
+    }
+
+    public static boolean isRunning() { return getNThreads() != 0; }
+
+    /**
+     * Stop the pool.  Alignments that are in progress complete normally (the threads that asked for help finish
+     * the work themselves), and alignments started afterwards go back to creating their own threads.
+     * This waits for the pool's threads to exit.  It's harmless to call this when the pool isn't running.
+     */
+    public static synchronized void shutdown() {
+        BwaMemIndex.loadNativeLibrary();
+        BwaMemIndex.stopThreadPool();
+    }
+}
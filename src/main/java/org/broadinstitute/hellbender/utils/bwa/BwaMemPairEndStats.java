@@ -1,5 +1,8 @@
 package org.broadinstitute.hellbender.utils.bwa;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * Equivalent to Bwa's mem_pestat_t struct.
  * At the time this was written such a type declaration looked like this:
@@ -32,6 +35,19 @@ public final class BwaMemPairEndStats {
      */
     public static final double DEFAULT_STD_TO_AVERAGE_RATIO = .1;
 
+    /**
+     * Indices of the orientations in arrays of stats (bwa's order).
+     * FR is the usual "proper" orientation:  forward read upstream, pointing toward its reverse-complemented mate.
+     */
+    public static final int FF = 0;
+    public static final int FR = 1;
+    public static final int RF = 2;
+    public static final int RR = 3;
+    public static final int N_ORIENTATIONS = 4;
+
+    /** Size in bytes of the native encoding of a mem_pestat_t. */
+    static final int ENCODED_SIZE = 32;
+
     /**
      * Constant to indicate that pair-end insert size inference failed or that it should not be inferred depending on
      * the context.
@@ -166,6 +182,34 @@ public final class BwaMemPairEndStats {
         this.high = Integer.MIN_VALUE;
     }
 
+    /**
+     * Decode the native encoding of an array of N_ORIENTATIONS mem_pestat_t's that starts at buffer offset pos:
+     * for each, a double average, a double std. deviation, an int low, an int high, an int failed flag, and an int pad.
+     */
+    static BwaMemPairEndStats[] decode( final ByteBuffer buf, final int pos ) {
+        final BwaMemPairEndStats[] stats = new BwaMemPairEndStats[N_ORIENTATIONS];
+        for ( int idx = 0; idx != N_ORIENTATIONS; ++idx ) {
+            final int recPos = pos + idx*ENCODED_SIZE;
+            final double average = buf.getDouble(recPos);
+            final double std = buf.getDouble(recPos + 8);
+            final int low = buf.getInt(recPos + 16);
+            final int high = buf.getInt(recPos + 20);
+            final boolean failed = buf.getInt(recPos + 24) != 0;
+            final boolean valid = !Double.isNaN(average) && !Double.isInfinite(average) && average >= 1 &&
+                    !Double.isNaN(std) && !Double.isInfinite(std) && std >= 0 && low <= average && high >= average;
+            stats[idx] = failed || !valid ? FAILED : new BwaMemPairEndStats(average, std, low, high);
+        }
+        return stats;
+    }
+
+    /** An array of stats for each orientation in which all but FR have failed. */
+    static BwaMemPairEndStats[] forFROnly( final BwaMemPairEndStats frStats ) {
+        final BwaMemPairEndStats[] stats = new BwaMemPairEndStats[N_ORIENTATIONS];
+        Arrays.fill(stats, FAILED);
+        stats[FR] = frStats;
+        return stats;
+    }
+
     @Override
     public String toString() {
         if (failed) {
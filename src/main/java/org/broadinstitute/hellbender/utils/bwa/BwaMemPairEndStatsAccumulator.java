@@ -0,0 +1,162 @@
+package org.broadinstitute.hellbender.utils.bwa;
+
+/**
+ * Accumulates a histogram of insert sizes across batches of paired alignments, so that you can get stable
+ * pair-end stats without having to guess them up front, and without relying on bwa's per-batch inference (which
+ * is noisy, or fails outright, when batches are small).
+ * Give one to a BwaMemAligner with setPairEndStatsAccumulator:  until the stats are frozen, the aligner lets bwa
+ * infer stats for each batch (or uses the stats you've set), and adds each batch's pairs to the histogram.
+ * When enough properly oriented (FR) pairs have been seen, the stats are frozen, and used for all later batches.
+ * The estimate follows bwa's recipe (mem_pestat in bwamem_pair.c):  only pairs in which both reads have a
+ * reasonably unique primary alignment to the same contig are counted, outliers beyond 2 inter-quartile ranges are
+ * ignored in computing the mean and std. deviation, and the proper-pair bounds are the wider of 3 inter-quartile
+ * ranges and 4 std. deviations.
+ * This class is thread-safe:  you can share one among the aligners in several threads.
+ */
+public final class BwaMemPairEndStatsAccumulator {
+    public static final int DEFAULT_WARM_UP_PAIRS = 10000;
+    public static final int DEFAULT_MAX_INSERT_SIZE = 10000; // bwa's default for the max_ins option
+
+    // these are as in bwa
+    private static final double MIN_RATIO = .8;
+    private static final int MIN_DIR_CNT = 10;
+    private static final double MIN_DIR_RATIO = .05;
+    private static final double OUTLIER_BOUND = 2.;
+    private static final double MAPPING_BOUND = 3.;
+    private static final double MAX_STDDEV = 4.;
+
+    private final int warmUpPairs;
+    private final int maxInsertSize;
+    private final long[] insertSizeCounts; // FR pairs, by insert size (0 to maxInsertSize)
+    private final long[] orientationCounts; // by bwa's orientation index:  FF, FR, RF, RR
+    private BwaMemPairEndStats frozenStats;
+
+    public BwaMemPairEndStatsAccumulator() { this(DEFAULT_WARM_UP_PAIRS, DEFAULT_MAX_INSERT_SIZE); }
+
+    /**
+     * @param warmUpPairs The number of FR pairs to accumulate before freezing the stats.
+     * @param maxInsertSize Pairs with larger inserts are ignored.  For the stats to agree with bwa's, this should be
+     *                      the aligner's MaxIns option (bwa's max_ins).
+     */
+    public BwaMemPairEndStatsAccumulator( final int warmUpPairs, final int maxInsertSize ) {
+        if ( warmUpPairs < MIN_DIR_CNT ) {
+            throw new IllegalArgumentException("the number of warm-up pairs must be at least " + MIN_DIR_CNT);
+        }
+        if ( maxInsertSize < 1 ) {
+            throw new IllegalArgumentException("the maximum insert size must be positive");
+        }
+        this.warmUpPairs = warmUpPairs;
+        this.maxInsertSize = maxInsertSize;
+        this.insertSizeCounts = new long[maxInsertSize + 1];
+        this.orientationCounts = new long[BwaMemPairEndStats.N_ORIENTATIONS];
+    }
+
+    /**
+     * Add a pair to the histogram.  The alignments should be the primary alignments of the two reads.
+     * (Pairs that aren't suitable for estimating the insert size are ignored.)
+     */
+    public synchronized void addPair( final BwaMemAlignment alignment1, final BwaMemAlignment alignment2 ) {
+        if ( frozenStats != null ) return;
+        if ( !isUnique(alignment1) || !isUnique(alignment2) ) return;
+        if ( alignment1.getRefId() != alignment2.getRefId() ) return;
+        final boolean reverse1 = (alignment1.getSamFlag() & 0x10) != 0;
+        final boolean reverse2 = (alignment2.getSamFlag() & 0x10) != 0;
+        // as in bwa's mem_infer_dir:  project the 2nd read onto the 1st read's strand, and measure the distance
+        final int pos1 = reverse1 ? alignment1.getRefEnd() - 1 : alignment1.getRefStart();
+        final int pos2 = reverse2 ? alignment2.getRefEnd() - 1 : alignment2.getRefStart();
+        final boolean pos2After = reverse1 ? pos2 < pos1 : pos2 > pos1;
+        final int orientation = (reverse1 == reverse2 ? 0 : 1) ^ (pos2After ? 0 : 3);
+        final int insertSize = Math.abs(pos2 - pos1);
+        // exactly mem_pestat's test, "if (is && is <= opt->max_ins)":  a pair that fails it isn't counted at all,
+        // not even toward its orientation
+        if ( insertSize == 0 || insertSize > maxInsertSize ) return;
+        orientationCounts[orientation] += 1;
+        if ( orientation == BwaMemPairEndStats.FR ) {
+            insertSizeCounts[insertSize] += 1;
+            if ( orientationCounts[BwaMemPairEndStats.FR] >= warmUpPairs ) {
+                final BwaMemPairEndStats stats = getStats();
+                if ( !stats.failed ) frozenStats = stats;
+            }
+        }
+    }
+
+    /** The stats for FR pairs, estimated from what we've seen so far.  (FAILED if there's not enough data.) */
+    public synchronized BwaMemPairEndStats getStats() {
+        final long nPairs = orientationCounts[BwaMemPairEndStats.FR];
+        if ( nPairs < MIN_DIR_CNT ) return BwaMemPairEndStats.FAILED;
+        long maxCount = 0;
+        for ( final long count : orientationCounts ) {
+            maxCount = Math.max(maxCount, count);
+        }
+        if ( nPairs < MIN_DIR_RATIO * maxCount ) return BwaMemPairEndStats.FAILED;
+
+        final int p25 = getInsertSizeAtRank((long)(.25 * nPairs + .499));
+        final int p75 = getInsertSizeAtRank((long)(.75 * nPairs + .499));
+        final int outlierLow = Math.max(1, (int)(p25 - OUTLIER_BOUND * (p75 - p25) + .499));
+        final int outlierHigh = Math.min(maxInsertSize, (int)(p75 + OUTLIER_BOUND * (p75 - p25) + .499));
+        long n = 0;
+        double sum = 0.;
+        for ( int size = outlierLow; size <= outlierHigh; ++size ) {
+            n += insertSizeCounts[size];
+            sum += (double)size * insertSizeCounts[size];
+        }
+        if ( n == 0 ) return BwaMemPairEndStats.FAILED;
+        final double average = sum / n;
+        double sumSq = 0.;
+        for ( int size = outlierLow; size <= outlierHigh; ++size ) {
+            sumSq += (size - average) * (size - average) * insertSizeCounts[size];
+        }
+        final double std = Math.sqrt(sumSq / n);
+        int low = (int)(p25 - MAPPING_BOUND * (p75 - p25) + .499);
+        int high = (int)(p75 + MAPPING_BOUND * (p75 - p25) + .499);
+        if ( low > average - MAX_STDDEV * std ) low = (int)(average - MAX_STDDEV * std + .499);
+        if ( high < average + MAX_STDDEV * std ) high = (int)(average + MAX_STDDEV * std + .499);
+        if ( low < 1 ) low = 1;
+        if ( average < 1 ) return BwaMemPairEndStats.FAILED;
+        return new BwaMemPairEndStats(average, std, Math.min(low, (int)average), Math.max(high, (int)Math.ceil(average)));
+    }
+
+    /** The frozen stats, or null if we're still warming up. */
+    public synchronized BwaMemPairEndStats getFrozenStats() { return frozenStats; }
+
+    public synchronized boolean isFrozen() { return frozenStats != null; }
+
+    /** Number of FR pairs counted so far. */
+    public synchronized long getNPairs() { return orientationCounts[BwaMemPairEndStats.FR]; }
+
+    /** Add each pair in the cursor's results.  The cursor is left where you'd find a new one:  before the first sequence. */
+    void addPairs( final BwaMemAlignmentCursor cursor ) {
+        final int nSequences = cursor.getNSequences() & ~1;
+        for ( int idx = 0; idx != nSequences && !isFrozen(); idx += 2 ) {
+            final BwaMemAlignment alignment1 = getPrimaryAlignment(cursor, idx);
+            final BwaMemAlignment alignment2 = getPrimaryAlignment(cursor, idx + 1);
+            if ( alignment1 != null && alignment2 != null ) {
+                addPair(alignment1, alignment2);
+            }
+        }
+        cursor.rewind();
+    }
+
+    private static BwaMemAlignment getPrimaryAlignment( final BwaMemAlignmentCursor cursor, final int sequenceIdx ) {
+        cursor.seekSequence(sequenceIdx);
+        while ( cursor.nextAlignment() ) {
+            if ( (cursor.getSamFlag() & 0x900) == 0 ) {
+                return cursor.isMapped() ? cursor.toAlignment() : null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isUnique( final BwaMemAlignment alignment ) {
+        return alignment.getRefId() >= 0 && alignment.getSuboptimalScore() <= MIN_RATIO * alignment.getAlignerScore();
+    }
+
+    private int getInsertSizeAtRank( final long rank ) {
+        long cumulativeCount = 0;
+        for ( int size = 0; size != insertSizeCounts.length; ++size ) {
+            cumulativeCount += insertSizeCounts[size];
+            if ( cumulativeCount > rank ) return size;
+        }
+        return insertSizeCounts.length - 1;
+    }
+}
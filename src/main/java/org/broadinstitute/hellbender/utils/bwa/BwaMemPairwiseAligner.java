@@ -0,0 +1,151 @@
+package org.broadinstitute.hellbender.utils.bwa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aligns arbitrary pairs of sequences to each other with bwa's ksw aligners, in batches, on several threads.
+ * No index is required:  each query is aligned to its own target.  This is handy for, e.g., aligning reads to
+ * haplotypes or contigs to each other, with the same scoring as a BwaMemAligner.
+ * There are three modes:
+ *   LOCAL aligns the best-scoring part of the query to the best-scoring part of the target (Smith-Waterman).
+ *   GLOBAL aligns all of the query to all of the target (Needleman-Wunsch, within a band).
+ *   EXTEND aligns a prefix of the query to a prefix of the target, as bwa does when it extends a seed to the right
+ *     from an anchor that scored getExtensionInitialScore().  The query is clipped if that beats aligning
+ *     it end-to-end by more than the Clip3Penalty option.
+ * The scoring options (match score, mismatch and gap penalties, bandwidth, z-drop, clipping penalty, and
+ * number of threads) are snapshotted from a BwaMemAligner when you create this object, or are bwa's defaults.
+ * The batches built from lists of sequences take their buffers from the aligner's BwaMemBufferArena, and give them
+ * back when they're done, so aligning one batch after another doesn't allocate any fresh direct memory.
+ * Don't forget to close it, or you'll leak a little memory.
+ * This class is not thread-safe.
+ */
+public final class BwaMemPairwiseAligner implements AutoCloseable {
+    public enum Mode {
+        LOCAL(0), GLOBAL(1), EXTEND(2); // must match the JNIBWA_PAIR_* values in jnibwa.h
+
+        private final int code;
+        Mode( final int code ) { this.code = code; }
+    }
+
+    private static final int PAIR_ALN_INTS = 7; // score, query start/end, target start/end, NM, nCigarOps
+
+    private final BwaMemBufferArena arena;
+    private ByteBuffer opts;
+    private int extensionInitialScore;
+
+    /** An aligner with bwa's default scoring. */
+    public BwaMemPairwiseAligner() {
+        BwaMemIndex.loadNativeLibrary();
+        arena = new BwaMemBufferArena();
+        opts = BwaMemIndex.createDefaultOptions();
+        opts.order(ByteOrder.nativeOrder()).position(0).limit(opts.capacity());
+        extensionInitialScore = opts.getInt(0) * opts.getInt(64); // match score * min seed length
+    }
+
+    /** An aligner with the scoring options that the BwaMemAligner has right now (later changes aren't seen). */
+    public BwaMemPairwiseAligner( final BwaMemAligner aligner ) {
+        this();
+        aligner.copyOptionsTo(opts);
+        extensionInitialScore = opts.getInt(0) * opts.getInt(64);
+    }
+
+    public boolean isOpen() { return opts != null; }
+
+    @Override
+    public void close() {
+        if ( opts != null ) {
+            BwaMemIndex.destroyByteBuffer(opts);
+            opts = null;
+            arena.close();
+        }
+    }
+
+    public int getNThreadsOption() { return getOpts().getInt(92); }
+    public void setNThreadsOption( final int n_threads ) { getOpts().putInt(92, n_threads); }
+
+    /**
+     * The score of the (notional) anchor from which EXTEND mode extends.  It's included in the score of the
+     * alignment, and limits how far a poor match can be carried.  The default is the score of a minimum-length seed.
+     */
+    public int getExtensionInitialScore() { return extensionInitialScore; }
+    public void setExtensionInitialScore( final int initialScore ) {
+        if ( initialScore <= 0 ) {
+            throw new IllegalArgumentException("The extension initial score must be positive.");
+        }
+        extensionInitialScore = initialScore;
+    }
+
+    /** Where the batches of pairs get their buffers.  You can build your own batches on it, too. */
+    public BwaMemBufferArena getBufferArena() { return arena; }
+
+    /**
+     * Align each query to the corresponding target.
+     * @param mode LOCAL, GLOBAL, or EXTEND
+     * @param queries The base calls (ASCII 'A', 'C', 'G', or 'T') for each query.
+     * @param targets The base calls for each target.  There must be just as many targets as queries.
+     * @return An alignment for each pair.
+     */
+    public List<BwaMemPairwiseAlignment> align( final Mode mode, final List<byte[]> queries,
+                                                final List<byte[]> targets ) {
+        getOpts();
+        final int nPairs = queries.size();
+        if ( targets.size() != nPairs ) {
+            throw new IllegalArgumentException("There must be a target for each query.");
+        }
+        try ( final BwaMemSequenceBatch batch = new BwaMemSequenceBatch(arena) ) {
+            for ( int idx = 0; idx != nPairs; ++idx ) {
+                batch.add(queries.get(idx)).add(targets.get(idx));
+            }
+            return align(mode, batch);
+        }
+    }
+
+    /**
+     * Align pairs of sequences that you've already encoded:  the batch must alternate between a query and its
+     * target.  The batch's bases are recoded in place, but you can clear and reuse the batch afterwards.
+     * @return An alignment for each pair.
+     */
+    public List<BwaMemPairwiseAlignment> align( final Mode mode, final BwaMemSequenceBatch pairs ) {
+        final ByteBuffer tmpOpts = getOpts();
+        if ( (pairs.size() & 1) != 0 ) {
+            throw new IllegalArgumentException("The batch must contain pairs of sequences, query then target.");
+        }
+        final ByteBuffer alignsBuf =
+                BwaMemIndex.doPairwiseAlignment(pairs.getEncodedBatch(), tmpOpts, mode.code, extensionInitialScore);
+        try {
+            return decodeAlignments(alignsBuf);
+        }
+        finally {
+            BwaMemIndex.destroyByteBuffer(alignsBuf);
+        }
+    }
+
+    // the results of BwaMemIndex.alignPairs
+    private static List<BwaMemPairwiseAlignment> decodeAlignments( final ByteBuffer alignsBuf ) {
+        alignsBuf.order(ByteOrder.nativeOrder()).position(0).limit(alignsBuf.capacity());
+        final int nPairs = alignsBuf.getInt(0);
+        final int offsetsPos = 4*alignsBuf.getInt(4);
+        final List<BwaMemPairwiseAlignment> alignments = new ArrayList<>(nPairs);
+        for ( int idx = 0; idx != nPairs; ++idx ) {
+            final int pos = 4*alignsBuf.getInt(offsetsPos + 4*idx);
+            final int[] cigarOps = new int[alignsBuf.getInt(pos + 24)];
+            for ( int op = 0; op != cigarOps.length; ++op ) {
+                cigarOps[op] = alignsBuf.getInt(pos + 4*(PAIR_ALN_INTS + op));
+            }
+            alignments.add(new BwaMemPairwiseAlignment(alignsBuf.getInt(pos), alignsBuf.getInt(pos + 4),
+                    alignsBuf.getInt(pos + 8), alignsBuf.getInt(pos + 12), alignsBuf.getInt(pos + 16),
+                    alignsBuf.getInt(pos + 20), cigarOps));
+        }
+        return alignments;
+    }
+
+    private ByteBuffer getOpts() {
+        if ( opts == null ) {
+            throw new IllegalStateException("The pairwise aligner has been closed.");
+        }
+        return opts;
+    }
+}
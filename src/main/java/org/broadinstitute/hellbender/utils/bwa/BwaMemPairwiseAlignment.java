@@ -0,0 +1,57 @@
+package org.broadinstitute.hellbender.utils.bwa;
+
+/**
+ * The alignment of a query to a target by a BwaMemPairwiseAligner.
+ * Coordinates are 0-based, and ends are exclusive.  If nothing aligned, the score is 0, the coordinates are -1,
+ * and there's no cigar.
+ */
+public final class BwaMemPairwiseAlignment {
+    private final int score;
+    private final int queryStart;
+    private final int queryEnd;
+    private final int targetStart;
+    private final int targetEnd;
+    private final int nMismatches;
+    private final int[] cigarOps; // packed BAM-style, as len<<4|op
+    private String cigar; // computed lazily
+
+    /**
+     * @param cigarOps the cigar, packed BAM-style as len<<4|op.  The array is not copied, so don't modify it.
+     */
+    public BwaMemPairwiseAlignment( final int score, final int queryStart, final int queryEnd,
+                                    final int targetStart, final int targetEnd, final int nMismatches,
+                                    final int[] cigarOps ) {
+        this.score = score;
+        this.queryStart = queryStart;
+        this.queryEnd = queryEnd;
+        this.targetStart = targetStart;
+        this.targetEnd = targetEnd;
+        this.nMismatches = nMismatches;
+        this.cigarOps = cigarOps == null ? new int[0] : cigarOps;
+    }
+
+    public boolean isAligned() { return cigarOps.length != 0; }
+    public int getScore() { return score; }
+    public int getQueryStart() { return queryStart; }
+    public int getQueryEnd() { return queryEnd; }
+    public int getTargetStart() { return targetStart; }
+    public int getTargetEnd() { return targetEnd; }
+    /** The edit distance (NM) between the aligned parts of the query and target. */
+    public int getNMismatches() { return nMismatches; }
+
+    /** The cigar, in which the unaligned ends of the query are soft-clipped. */
+    public String getCigar() {
+        String result = cigar;
+        if ( result == null ) {
+            cigar = result = BwaMemAlignment.cigarToString(cigarOps);
+        }
+        return result;
+    }
+    public int getNCigarOps() { return cigarOps.length; }
+    /** The idx'th cigar operation, packed BAM-style as len<<4|op. */
+    public int getCigarOp( final int idx ) { return cigarOps[idx]; }
+    public int getCigarOpLength( final int idx ) { return cigarOps[idx] >>> 4; }
+    public char getCigarOpChar( final int idx ) { return BwaMemAlignment.cigarOpChar(cigarOps[idx]); }
+    /** A copy of the packed cigar. */
+    public int[] getCigarOps() { return cigarOps.clone(); }
+}
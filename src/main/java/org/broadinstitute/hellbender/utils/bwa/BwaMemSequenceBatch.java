@@ -0,0 +1,140 @@
+package org.broadinstitute.hellbender.utils.bwa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A growable, off-heap batch of sequences laid out the way the native aligner wants to read them.
+ * Each sequence is encoded exactly once, as it's added, so a batch can be filled in a single pass over the input.
+ * The layout is:
+ *   a 32-bit int giving the number of sequences
+ *   for each sequence,
+ *     a 32-bit int giving the length of the sequence
+ *     that many bytes of base calls
+ *     a trailing null
+ * The native code takes the sequence lengths from the batch, so it never has to scan for the trailing null.
+ * If you build the batch on a BwaMemBufferArena, its buffer comes from the arena, and goes back to it when you close
+ * the batch.
+ * This class is not thread-safe.
+ */
+public final class BwaMemSequenceBatch implements AutoCloseable {
+    private static final int INITIAL_CAPACITY = 64*1024;
+    private static final int HEADER_SIZE = 4; // sequence count
+    private static final int PER_SEQUENCE_OVERHEAD = 5; // 4-byte length + 1 for the trailing null
+
+    private final BwaMemBufferArena arena; // null if we're allocating our own buffers
+    private ByteBuffer buffer;
+    private int nSequences;
+    private long nBases;
+
+    public BwaMemSequenceBatch() { this(null, INITIAL_CAPACITY); }
+
+    /**
+     * @param initialCapacity Initial size of the off-heap buffer in bytes.  The buffer grows as necessary.
+     */
+    public BwaMemSequenceBatch( final int initialCapacity ) { this(null, initialCapacity); }
+
+    /**
+     * @param arena Where to get (and return) the off-heap buffer.
+     */
+    public BwaMemSequenceBatch( final BwaMemBufferArena arena ) { this(arena, INITIAL_CAPACITY); }
+
+    public BwaMemSequenceBatch( final BwaMemBufferArena arena, final int initialCapacity ) {
+        if ( initialCapacity < HEADER_SIZE ) {
+            throw new IllegalArgumentException("initial capacity must be at least " + HEADER_SIZE);
+        }
+        this.arena = arena;
+        buffer = arena != null ? arena.acquire(initialCapacity) :
+                ByteBuffer.allocateDirect(initialCapacity).order(ByteOrder.nativeOrder());
+        clear();
+    }
+
+    /** Add a sequence of base calls (ASCII 'A', 'C', 'G', or 'T') to the batch. */
+    public BwaMemSequenceBatch add( final byte[] seq ) {
+        return add(seq, 0, seq.length);
+    }
+
+    /** Add length bases starting at offset in seq to the batch. */
+    public BwaMemSequenceBatch add( final byte[] seq, final int offset, final int length ) {
+        if ( offset < 0 || length < 0 || offset > seq.length - length ) {
+            throw new IndexOutOfBoundsException("offset " + offset + " and length " + length +
+                    " don't fit in a sequence of length " + seq.length);
+        }
+        ensureRemaining((long)length + PER_SEQUENCE_OVERHEAD);
+        buffer.putInt(length).put(seq, offset, length).put((byte)0);
+        nSequences += 1;
+        nBases += length;
+        return this;
+    }
+
+    /** Number of sequences in the batch. */
+    public int size() { return nSequences; }
+
+    /** Total number of bases in the batch. */
+    public long getNBases() { return nBases; }
+
+    /** Empty the batch, retaining its buffer for reuse. */
+    public void clear() {
+        getBuffer().clear();
+        buffer.putInt(0);
+        nSequences = 0;
+        nBases = 0;
+    }
+
+    public boolean isOpen() { return buffer != null; }
+
+    /** Give the buffer back to the arena (if there is one).  The batch can't be used afterwards. */
+    @Override
+    public void close() {
+        if ( buffer != null ) {
+            if ( arena != null ) {
+                arena.release(buffer);
+            }
+            buffer = null;
+        }
+    }
+
+    /** The length of each sequence in the batch (found by walking the encoded batch). */
+    int[] getSequenceLengths() {
+        final ByteBuffer buf = getBuffer();
+        final int[] lengths = new int[nSequences];
+        int pos = HEADER_SIZE;
+        for ( int idx = 0; idx != nSequences; ++idx ) {
+            lengths[idx] = buf.getInt(pos);
+            pos += lengths[idx] + PER_SEQUENCE_OVERHEAD;
+        }
+        return lengths;
+    }
+
+    /** A view of the encoded batch, with its sequence count filled in. */
+    ByteBuffer getEncodedBatch() {
+        getBuffer().putInt(0, nSequences);
+        final ByteBuffer view = buffer.duplicate().order(ByteOrder.nativeOrder());
+        view.flip();
+        return view;
+    }
+
+    private ByteBuffer getBuffer() {
+        if ( buffer == null ) {
+            throw new IllegalStateException("The sequence batch has been closed.");
+        }
+        return buffer;
+    }
+
+    private void ensureRemaining( final long nBytes ) {
+        if ( nBytes <= getBuffer().remaining() ) return;
+        final long needed = buffer.position() + nBytes;
+        if ( needed > Integer.MAX_VALUE ) {
+            throw new IllegalStateException("Too many bases for one batch: split it up.");
+        }
+        if ( arena != null ) {
+            buffer = arena.grow(buffer, (int)needed);
+            return;
+        }
+        final int newCapacity = (int)Math.min(Integer.MAX_VALUE, Math.max(needed, 2L*buffer.capacity()));
+        final ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity).order(ByteOrder.nativeOrder());
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+    }
+}
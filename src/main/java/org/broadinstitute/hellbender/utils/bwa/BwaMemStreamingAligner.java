@@ -0,0 +1,215 @@
+package org.broadinstitute.hellbender.utils.bwa;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Aligns an unbounded stream of reads, a batch at a time, and hands back each read with its alignments.
+ * Reads are pulled from the input only as fast as you consume the results:  at most a few batches are being
+ * aligned at any one time, and while they're in progress, the next batch is being gathered and the previous one
+ * is being decoded.
+ * Batches are cut by base count, just as bwa does it:  each holds about chunkSize*nThreads bases (using the
+ * aligner's ChunkSize and NThreads options).  When the aligner is set to align pairs, batches are always cut
+ * between pairs, so the input must interleave each read with its mate.
+ * Results are emitted in input order, unless you ask for unordered results, in which case each batch's results
+ * are emitted (still in order within the batch) as soon as that batch is done.
+ * The options in effect for each batch are those of the aligner when the batch is submitted, so don't change them
+ * while you're streaming.
+ * Usage pattern:
+ *   try ( final BwaMemStreamingAligner<Read> streamer =
+ *                 new BwaMemStreamingAligner<>(aligner, reads, Read::getBases, true) ) {
+ *       while ( streamer.hasNext() ) {
+ *           final BwaMemStreamingAligner.Result<Read> result = streamer.next();
+ *           ...
+ *       }
+ *   }
+ * Close it (or the Stream you got from the stream method) before closing the aligner, so that any batches still
+ * in flight can finish.
+ * This class is not thread-safe.
+ */
+public final class BwaMemStreamingAligner<T> implements Iterator<BwaMemStreamingAligner.Result<T>>, AutoCloseable {
+    private static final int MAX_BATCHES_IN_FLIGHT = 3;
+
+    private final BwaMemAligner aligner;
+    private final Iterator<T> reads;
+    private final Function<T,byte[]> func;
+    private final boolean ordered;
+    private final Deque<PendingBatch<T>> pendingBatches;
+    private Iterator<Result<T>> currentResults;
+    private boolean closed;
+
+    /** A read, and its alignments. */
+    public static final class Result<T> {
+        private final T read;
+        private final List<BwaMemAlignment> alignments;
+
+        Result( final T read, final List<BwaMemAlignment> alignments ) {
+            this.read = read;
+            this.alignments = alignments;
+        }
+
+        public T getRead() { return read; }
+
+        /** There's always at least 1, though it may be unmapped. */
+        public List<BwaMemAlignment> getAlignments() { return alignments; }
+    }
+
+    private static final class PendingBatch<T> {
+        final List<T> reads;
+        final CompletableFuture<List<List<BwaMemAlignment>>> future;
+
+        PendingBatch( final List<T> reads, final CompletableFuture<List<List<BwaMemAlignment>>> future ) {
+            this.reads = reads;
+            this.future = future;
+        }
+
+        List<Result<T>> getResults() {
+            final List<List<BwaMemAlignment>> alignments;
+            try {
+                alignments = future.join();
+            }
+            catch ( final CompletionException ce ) {
+                if ( ce.getCause() instanceof RuntimeException ) throw (RuntimeException)ce.getCause();
+                throw ce;
+            }
+            final int nReads = reads.size();
+            final List<Result<T>> results = new ArrayList<>(nReads);
+            for ( int idx = 0; idx != nReads; ++idx ) {
+                results.add(new Result<>(reads.get(idx), alignments.get(idx)));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * @param aligner The aligner to use.  Set its options before you start.
+     * @param reads The reads to align.
+     * @param func A lambda that picks the sequence out of your read-like thing.
+     * @param ordered Whether the results must be emitted in input order.
+     */
+    public BwaMemStreamingAligner( final BwaMemAligner aligner, final Iterator<T> reads,
+                                   final Function<T,byte[]> func, final boolean ordered ) {
+        if ( !aligner.isOpen() ) {
+            throw new IllegalStateException("Can't stream reads to a closed aligner.");
+        }
+        this.aligner = aligner;
+        this.reads = reads;
+        this.func = func;
+        this.ordered = ordered;
+        this.pendingBatches = new ArrayDeque<>(MAX_BATCHES_IN_FLIGHT);
+        this.currentResults = Collections.emptyIterator();
+    }
+
+    /**
+     * Align a stream of reads, and get a stream of results.
+     * Reads are consumed lazily, as the results are consumed.  Close the result stream when you're done with it.
+     */
+    public static <T> Stream<Result<T>> stream( final BwaMemAligner aligner, final Stream<T> reads,
+                                                final Function<T,byte[]> func, final boolean ordered ) {
+        final BwaMemStreamingAligner<T> streamer = new BwaMemStreamingAligner<>(aligner, reads.iterator(), func, ordered);
+        final int characteristics = Spliterator.NONNULL | (ordered ? Spliterator.ORDERED : 0);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(streamer, characteristics), false)
+                .onClose(streamer::close)
+                .onClose(reads::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ( !currentResults.hasNext() ) {
+            if ( closed ) return false;
+            fillPipeline();
+            if ( pendingBatches.isEmpty() ) return false;
+            currentResults = takeBatch().getResults().iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public Result<T> next() {
+        if ( !hasNext() ) throw new NoSuchElementException("No more alignment results.");
+        return currentResults.next();
+    }
+
+    /** Stops reading the input, and waits for batches in flight to finish.  Their results are discarded. */
+    @Override
+    public void close() {
+        if ( !closed ) {
+            closed = true;
+            currentResults = Collections.emptyIterator();
+            for ( final PendingBatch<T> pendingBatch : pendingBatches ) {
+                try {
+                    pendingBatch.future.join();
+                }
+                catch ( final CompletionException ce ) {
+                    // we're discarding the results, and the errors along with them
+                }
+            }
+            pendingBatches.clear();
+        }
+    }
+
+    private PendingBatch<T> takeBatch() {
+        if ( !ordered ) {
+            // wait for any batch to finish, then take the earliest finished one
+            final CompletableFuture<?>[] futures = new CompletableFuture<?>[pendingBatches.size()];
+            int idx = 0;
+            for ( final PendingBatch<T> pendingBatch : pendingBatches ) {
+                futures[idx++] = pendingBatch.future;
+            }
+            try {
+                CompletableFuture.anyOf(futures).join();
+            }
+            catch ( final CompletionException ce ) {
+                // we'll report it when we get the results for the batch that failed
+            }
+            for ( final Iterator<PendingBatch<T>> itr = pendingBatches.iterator(); itr.hasNext(); ) {
+                final PendingBatch<T> pendingBatch = itr.next();
+                if ( pendingBatch.future.isDone() ) {
+                    itr.remove();
+                    return pendingBatch;
+                }
+            }
+        }
+        return pendingBatches.removeFirst();
+    }
+
+    private void fillPipeline() {
+        while ( pendingBatches.size() < MAX_BATCHES_IN_FLIGHT && reads.hasNext() ) {
+            pendingBatches.addLast(submitBatch());
+        }
+    }
+
+    private PendingBatch<T> submitBatch() {
+        final long maxBases = Math.max(1L, (long)aligner.getChunkSizeOption() * Math.max(1, aligner.getNThreadsOption()));
+        final boolean pairs = (aligner.getFlagOption() & BwaMemAligner.MEM_F_PE) != 0;
+        final List<T> batchReads = new ArrayList<>();
+        final BwaMemSequenceBatch batch = new BwaMemSequenceBatch(aligner.getBufferArena());
+        try {
+            while ( reads.hasNext() && (batch.getNBases() < maxBases || (pairs && (batch.size() & 1) != 0)) ) {
+                final T read = reads.next();
+                batch.add(func.apply(read));
+                batchReads.add(read);
+            }
+            if ( pairs && (batch.size() & 1) != 0 ) {
+                throw new IllegalArgumentException("Aligning pairs, but there's an odd number of reads.");
+            }
+        }
+        catch ( final RuntimeException e ) {
+            batch.close();
+            throw e;
+        }
+        return new PendingBatch<>(batchReads, aligner.submitAndDecode(batch));
+    }
+}
@@ -7,33 +7,46 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @Test
 public final class BwaMemIndexTest {
     private static BwaMemIndex index;
+    private static String ref; // the bases of ref.fa's only contig
 
     private static final String[] INDEX_EXTENSIONS = {".amb", ".ann", ".bwt", ".pac", ".sa" };
 
     @BeforeClass
-    void openIndex() {
+    void openIndex() throws IOException {
         final String indexImageFile = "src/test/resources/ref.fa.img";
         new File(indexImageFile).deleteOnExit();
         BwaMemIndex.createIndexImageFromIndexFiles("src/test/resources/ref.fa", indexImageFile );
         index = new BwaMemIndex(indexImageFile);
+        ref = Files.readAllLines(new File("src/test/resources/ref.fa").toPath()).stream()
+                .skip(1).collect(Collectors.joining());
     }
 
     @AfterClass
-    void closeIndex() { index.close(); index = null; }
+    void closeIndex() { index.close(); index = null; ref = null; }
 
     @Test
     void testOptsSize() {
@@ -81,6 +94,869 @@ public final class BwaMemIndexTest {
         testAlignment(alignmentList.get(0), 70, 140, 0, 68, "32M2D36M", 2, 0); // 2-base deletion
     }
 
+    @Test
+    void testBatch() {
+        final byte[] paddedSeq =
+                "NNNNNGGCTTTTAATGCTTTTCAGTGGTTGCTGCTCAAGATGGAGTCTACTCAGCAGATGGTAAGCTCTATTATTNNNNN".getBytes();
+        final BwaMemSequenceBatch batch = new BwaMemSequenceBatch(16); // force it to grow
+        batch.add(paddedSeq, 5, 70);
+        Assert.assertEquals(batch.size(), 1);
+        Assert.assertEquals(batch.getNBases(), 70);
+        final BwaMemAligner aligner = new BwaMemAligner(index);
+        List<List<BwaMemAlignment>> alignments = aligner.alignSeqs(batch);
+        Assert.assertEquals(alignments.size(), 1);
+        Assert.assertEquals(alignments.get(0).size(), 1);
+        testAlignment(alignments.get(0).get(0), 0, 70, 0, 70, "70M", 0, 0);
+
+        batch.clear();
+        batch.add("AATAATAGAGCTTACCATCTGCTGAGTAGACTCCATCTTGAGCAGCAACCACTGAAAAGCATTAAAAGCC".getBytes()); // rc
+        alignments = aligner.alignSeqs(batch);
+        Assert.assertEquals(alignments.size(), 1);
+        Assert.assertEquals(alignments.get(0).size(), 1);
+        testAlignment(alignments.get(0).get(0), 0, 70, 0, 70, "70M", 0, 0x10);
+    }
+
+    @Test
+    void testCursor() {
+        final List<String> seqs = new ArrayList<>();
+        seqs.add("AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCCTTCAACATTAGAATTAATGGGTATTCAATATGATT"); // 2-base deletion
+        seqs.add("AATAATAGAGCTTACCATCTGCTGAGTAGACTCCATCTTGAGCAGCAACCACTGAAAAGCATTAAAAGCC"); // rc
+        final BwaMemAligner aligner = new BwaMemAligner(index);
+        final BwaMemAlignmentCursor cursor = aligner.alignSeqsToCursor(seqs, String::getBytes);
+        try {
+            Assert.assertEquals(cursor.getNSequences(), 2);
+            Assert.assertTrue(cursor.nextSequence());
+            Assert.assertEquals(cursor.getSequenceIndex(), 0);
+            Assert.assertEquals(cursor.getNAlignments(), 1);
+            Assert.assertTrue(cursor.nextAlignment());
+            Assert.assertEquals(cursor.getRefStart(), 70);
+            Assert.assertEquals(cursor.getNCigarOps(), 3);
+            Assert.assertEquals(cursor.getCigarOpLength(1), 2);
+            Assert.assertEquals(cursor.getCigarOpChar(1), 'D');
+            testAlignment(cursor.toAlignment(), 70, 140, 0, 68, "32M2D36M", 2, 0);
+            Assert.assertFalse(cursor.nextAlignment());
+            Assert.assertTrue(cursor.nextSequence()); // leave the rc alignment unvisited
+            Assert.assertFalse(cursor.nextSequence());
+        } finally {
+            cursor.close();
+        }
+        Assert.assertFalse(cursor.isOpen());
+    }
+
+    @Test
+    void testPackedCigar() {
+        final BwaMemAlignment fromString =
+                new BwaMemAlignment(0, 0, 70, 140, 0, 68, 60, 2, 0, 0, "32M2D36M", null, null, -1, -1, 0);
+        Assert.assertEquals(fromString.getCigarOps(), new int[] { 32<<4, 2<<4|2, 36<<4 });
+        final BwaMemAlignment fromOps =
+                new BwaMemAlignment(0, 0, 70, 140, 0, 68, 60, 2, 0, 0, new int[] { 5<<4|4, 65<<4 }, null, null, -1, -1, 0);
+        Assert.assertEquals(fromOps.getNCigarOps(), 2);
+        Assert.assertEquals(fromOps.getCigarOpLength(0), 5);
+        Assert.assertEquals(fromOps.getCigarOpChar(0), 'S');
+        Assert.assertEquals(fromOps.getCigar(), "5S65M");
+        Assert.assertSame(fromOps.getCigar(), fromOps.getCigar()); // cached
+    }
+
+    @Test
+    void testBufferArena() {
+        try ( final BwaMemBufferArena arena = new BwaMemBufferArena() ) {
+            final ByteBuffer buf1 = arena.acquire(100);
+            Assert.assertTrue(buf1.capacity() >= 100);
+            arena.release(buf1);
+            Assert.assertSame(arena.acquire(50), buf1); // recycled
+            final ByteBuffer buf2 = arena.grow(buf1.putInt(17), buf1.capacity() + 1);
+            Assert.assertTrue(buf2.capacity() > buf1.capacity());
+            Assert.assertEquals(buf2.position(), 4);
+            Assert.assertEquals(buf2.getInt(0), 17);
+            Assert.assertEquals(arena.getHighWaterMark(), buf1.capacity() + buf2.capacity());
+            arena.release(buf2);
+            arena.trim();
+            Assert.assertEquals(arena.getAllocatedBytes(), 0);
+        }
+    }
+
+    @Test
+    void testCallerOwnedOutput() {
+        final List<String> seqs = new ArrayList<>();
+        seqs.add("GGCTTTTAATGCTTTTCAGTGGTTGCTGCTCAAGATGGAGTCTACTCAGCAGATGGTAAGCTCTATTATT"); // ref.fa line 1
+        final BwaMemAligner aligner = new BwaMemAligner(index);
+        final BwaMemBufferArena arena = aligner.getBufferArena();
+        for ( int iteration = 0; iteration != 3; ++iteration ) {
+            try ( final BwaMemAlignmentCursor cursor = aligner.alignSeqsToCursor(seqs, String::getBytes) ) {
+                Assert.assertTrue(cursor.nextSequence());
+                Assert.assertTrue(cursor.nextAlignment());
+                Assert.assertEquals(cursor.getCigar(), "70M");
+            }
+        }
+        final long allocatedBytes = arena.getAllocatedBytes();
+        try ( final BwaMemAlignmentCursor cursor = aligner.alignSeqsToCursor(seqs, String::getBytes) ) {
+            Assert.assertEquals(cursor.getNSequences(), 1);
+        }
+        Assert.assertEquals(arena.getAllocatedBytes(), allocatedBytes); // results went into a recycled buffer
+        aligner.close();
+    }
+
+    @Test
+    void testSubmit() throws Exception {
+        final List<String> seqs = new ArrayList<>();
+        seqs.add("AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCCTTCAACATTAGAATTAATGGGTATTCAATATGATT"); // 2-base deletion
+        seqs.add("AATAATAGAGCTTACCATCTGCTGAGTAGACTCCATCTTGAGCAGCAACCACTGAAAAGCATTAAAAGCC"); // rc
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            final List<List<BwaMemAlignment>> expected = aligner.alignSeqs(seqs, String::getBytes);
+            final List<CompletableFuture<List<List<BwaMemAlignment>>>> futures = new ArrayList<>();
+            for ( int batchNo = 0; batchNo != 10; ++batchNo ) {
+                futures.add(aligner.submit(seqs, String::getBytes));
+            }
+            for ( final CompletableFuture<List<List<BwaMemAlignment>>> future : futures ) {
+                final List<List<BwaMemAlignment>> alignments = future.get();
+                Assert.assertEquals(alignments.size(), expected.size());
+                for ( int idx = 0; idx != expected.size(); ++idx ) {
+                    Assert.assertEquals(alignments.get(idx).get(0).getCigar(), expected.get(idx).get(0).getCigar());
+                    Assert.assertEquals(alignments.get(idx).get(0).getRefStart(), expected.get(idx).get(0).getRefStart());
+                }
+            }
+            aligner.alignPairs();
+            try {
+                aligner.submit(seqs.subList(0, 1), String::getBytes);
+                Assert.fail("submitted an odd number of reads as pairs");
+            }
+            catch ( final IllegalArgumentException iae ) {
+                // expected:  before anything was queued
+            }
+        }
+    }
+
+    @Test
+    void testJobQueueConfiguration() throws Exception {
+        final List<String> seqs = Collections.singletonList(
+                "AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCCTTCAACATTAGAATTAATGGGTATTCAATATGATT"); // 2-base deletion
+        BwaMemJobQueue.shutdown();
+        Assert.assertFalse(BwaMemJobQueue.isRunning());
+        BwaMemJobQueue.configure(3, 6);
+        try {
+            final List<CompletableFuture<List<List<BwaMemAlignment>>>> futures = new ArrayList<>();
+            try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+                for ( int batchNo = 0; batchNo != 10; ++batchNo ) {
+                    futures.add(aligner.submit(seqs, String::getBytes));
+                }
+                Assert.assertTrue(BwaMemJobQueue.isRunning());
+                try {
+                    BwaMemJobQueue.configure(1, 1);
+                    Assert.fail("reconfigured a running queue");
+                }
+                catch ( final IllegalStateException ise ) {
+                    // expected
+                }
+            } // closed with jobs in flight:  the last of them frees the aligner's scratch space
+            for ( final CompletableFuture<List<List<BwaMemAlignment>>> future : futures ) {
+                Assert.assertEquals(future.get().get(0).get(0).getCigar(), "32M2D36M");
+            }
+        }
+        finally {
+            BwaMemJobQueue.shutdown();
+            BwaMemJobQueue.configure(BwaMemJobQueue.DEFAULT_N_WORKERS, BwaMemJobQueue.DEFAULT_MAX_JOBS);
+        }
+        Assert.assertFalse(BwaMemJobQueue.isRunning());
+        BwaMemJobQueue.shutdown(); // harmless
+    }
+
+    @Test
+    void testStreamingAligner() {
+        final List<String> seqs = new ArrayList<>();
+        for ( int idx = 0; idx != 10; ++idx ) {
+            seqs.add((idx & 1) == 0 ?
+                    "AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCCTTCAACATTAGAATTAATGGGTATTCAATATGATT" : // 2-base deletion
+                    "GGCTTTTAATGCTTTTCAGTGGTTGCTGCTCAAGATGGAGTCTACTCAGCAGATGGTAAGCTCTATTATT"); // ref.fa line 1
+        }
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            aligner.setChunkSizeOption(100); // 2 reads per batch
+            final List<String> cigars;
+            try ( final Stream<BwaMemStreamingAligner.Result<String>> results =
+                          BwaMemStreamingAligner.stream(aligner, seqs.stream(), String::getBytes, true) ) {
+                cigars = results.map(result -> result.getRead() + result.getAlignments().get(0).getCigar())
+                        .collect(Collectors.toList());
+            }
+            Assert.assertEquals(cigars.size(), seqs.size());
+            for ( int idx = 0; idx != seqs.size(); ++idx ) {
+                Assert.assertEquals(cigars.get(idx), seqs.get(idx) + ((idx & 1) == 0 ? "32M2D36M" : "70M"));
+            }
+            try ( final BwaMemStreamingAligner<String> streamer =
+                          new BwaMemStreamingAligner<>(aligner, seqs.iterator(), String::getBytes, false) ) {
+                int nResults = 0;
+                while ( streamer.hasNext() ) {
+                    final BwaMemStreamingAligner.Result<String> result = streamer.next();
+                    Assert.assertEquals(result.getAlignments().size(), 1);
+                    nResults += 1;
+                }
+                Assert.assertEquals(nResults, seqs.size());
+            }
+        }
+    }
+
+    @Test
+    void testPairEndStatsAccumulator() {
+        final BwaMemPairEndStatsAccumulator accumulator = new BwaMemPairEndStatsAccumulator(20, 1000);
+        Assert.assertTrue(accumulator.getStats().failed);
+        for ( int idx = 0; idx != 20; ++idx ) {
+            Assert.assertFalse(accumulator.isFrozen());
+            final int start = 1000*idx;
+            final int insertSize = 290 + (idx % 5)*5; // 290, 295, ..., 310
+            final BwaMemAlignment forward =
+                    new BwaMemAlignment(0x1, 0, start, start + 100, 0, 100, 60, 0, 100, 0, "100M", null, null, 0, 0, 0);
+            final BwaMemAlignment reverse =
+                    new BwaMemAlignment(0x11, 0, start + insertSize - 100, start + insertSize, 0, 100, 60, 0, 100, 0,
+                            "100M", null, null, 0, 0, 0);
+            final BwaMemAlignment repetitive =
+                    new BwaMemAlignment(0x1, 0, start, start + 100, 0, 100, 0, 0, 100, 100, "100M", null, null, 0, 0, 0);
+            accumulator.addPair(forward, reverse);
+            accumulator.addPair(repetitive, reverse); // ignored
+        }
+        Assert.assertTrue(accumulator.isFrozen());
+        Assert.assertEquals(accumulator.getNPairs(), 20);
+        final BwaMemPairEndStats stats = accumulator.getFrozenStats();
+        Assert.assertEquals(stats.average, 299., .001); // distance to the last base of the reverse read
+        Assert.assertEquals(stats.std, Math.sqrt(50.), .001);
+        Assert.assertEquals(stats.low, 264); // 3 inter-quartile ranges beyond the quartiles
+        Assert.assertEquals(stats.high, 334);
+
+        // the insert-size bounds are bwa's:  0 < insertSize <= maxInsertSize
+        final BwaMemPairEndStatsAccumulator bounded = new BwaMemPairEndStatsAccumulator(10, 500);
+        for ( final int insertSize : new int[] { 1, 500, 501 } ) {
+            bounded.addPair(new BwaMemAlignment(0x1, 0, 1000, 1100, 0, 100, 60, 0, 100, 0, "100M", null, null, 0, 0, 0),
+                            new BwaMemAlignment(0x11, 0, 901 + insertSize, 1001 + insertSize, 0, 100, 60, 0, 100, 0,
+                                                "100M", null, null, 0, 0, 0));
+        }
+        Assert.assertEquals(bounded.getNPairs(), 2);
+        bounded.addPair(new BwaMemAlignment(0x1, 0, 100, 200, 0, 100, 60, 0, 100, 0, "100M", null, null, 0, 0, 0),
+                        new BwaMemAlignment(0x11, 0, 1, 101, 0, 100, 60, 0, 100, 0, "100M", null, null, 0, 0, 0));
+        Assert.assertEquals(bounded.getNPairs(), 2); // an insert size of 0 isn't counted
+    }
+
+    @Test
+    void testPairEndStatsAccumulatorMatchesBwa() {
+        final List<String> seqs = makePairs();
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            aligner.alignPairs();
+            final BwaMemPairEndStats expected = aligner.estimatePairEndStats(seqs, String::getBytes)[BwaMemPairEndStats.FR];
+            Assert.assertFalse(expected.failed);
+            final BwaMemPairEndStatsAccumulator accumulator =
+                    new BwaMemPairEndStatsAccumulator(1000, aligner.getMaxInsOption());
+            aligner.setPairEndStatsAccumulator(accumulator);
+            aligner.alignSeqs(seqs, String::getBytes);
+            Assert.assertFalse(accumulator.isFrozen());
+            Assert.assertEquals(accumulator.getNPairs(), seqs.size()/2);
+            final BwaMemPairEndStats stats = accumulator.getStats();
+            Assert.assertFalse(stats.failed);
+            Assert.assertEquals(stats.average, expected.average, .001);
+            Assert.assertEquals(stats.std, expected.std, .001);
+            Assert.assertEquals(stats.low, expected.low);
+            Assert.assertEquals(stats.high, expected.high);
+        }
+    }
+
+    @Test
+    void testPairEndStatsEstimation() {
+        final List<String> seqs = makePairs();
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            aligner.alignPairs();
+            final BwaMemPairEndStats[] estimated = aligner.estimatePairEndStats(seqs, String::getBytes);
+            Assert.assertEquals(estimated.length, BwaMemPairEndStats.N_ORIENTATIONS);
+            Assert.assertFalse(estimated[BwaMemPairEndStats.FR].failed);
+            Assert.assertEquals(estimated[BwaMemPairEndStats.FR].average, 299., 1.);
+            Assert.assertTrue(estimated[BwaMemPairEndStats.RF].failed);
+            Assert.assertNull(aligner.getLastPairEndStats());
+            try ( final BwaMemAlignmentCursor cursor = aligner.alignSeqsToCursor(seqs, String::getBytes) ) {
+                Assert.assertEquals(cursor.getPairEndStats(), estimated); // inferred from the same pairs
+            }
+            Assert.assertEquals(aligner.getLastPairEndStats(), estimated);
+            aligner.setPairEndStats(estimated);
+            try ( final BwaMemAlignmentCursor cursor = aligner.alignSeqsToCursor(seqs.subList(0, 2), String::getBytes) ) {
+                Assert.assertEquals(cursor.getPairEndStats(), estimated); // pinned
+            }
+            try {
+                aligner.alignSeqsToCursor(seqs.subList(0, 3), String::getBytes);
+                Assert.fail("aligned an odd number of reads as pairs");
+            }
+            catch ( final IllegalArgumentException iae ) {
+                // expected
+            }
+        }
+    }
+
+    private static String reverseComplement( final String seq ) {
+        final StringBuilder sb = new StringBuilder(seq.length());
+        for ( int idx = seq.length() - 1; idx >= 0; --idx ) {
+            sb.append("TGCA".charAt("ACGT".indexOf(seq.charAt(idx))));
+        }
+        return sb.toString();
+    }
+
+    // 20 FR pairs of 50-base reads, with inserts of 280 to 320 bases
+    private static List<String> makePairs() {
+        final List<String> seqs = new ArrayList<>();
+        for ( int idx = 0; idx != 20; ++idx ) {
+            final int start = 30*idx;
+            final int insertSize = 280 + (idx % 5)*10;
+            seqs.add(ref.substring(start, start + 50));
+            seqs.add(reverseComplement(ref.substring(start + insertSize - 50, start + insertSize)));
+        }
+        return seqs;
+    }
+
+    @Test
+    void testForkJoinAlignment() {
+        final List<String> seqs = makePairs();
+        final ForkJoinPool pool = new ForkJoinPool(3);
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            aligner.alignPairs();
+            final List<List<BwaMemAlignment>> expected = aligner.alignSeqs(seqs, String::getBytes);
+            final BwaMemPairEndStats[] expectedStats = aligner.getLastPairEndStats();
+            final List<List<BwaMemAlignment>> alignments = aligner.alignSeqs(seqs, String::getBytes, pool);
+            Assert.assertEquals(aligner.getLastPairEndStats(), expectedStats); // inferred from the whole batch
+            Assert.assertEquals(alignments.size(), expected.size());
+            for ( int idx = 0; idx != expected.size(); ++idx ) {
+                final BwaMemAlignment alignment = alignments.get(idx).get(0);
+                Assert.assertEquals(alignment.getSamFlag(), expected.get(idx).get(0).getSamFlag());
+                Assert.assertEquals(alignment.getRefStart(), expected.get(idx).get(0).getRefStart());
+                Assert.assertEquals(alignment.getCigar(), expected.get(idx).get(0).getCigar());
+                Assert.assertEquals(alignment.getMateRefStart(), expected.get(idx).get(0).getMateRefStart());
+            }
+            aligner.setFlagOption(aligner.getFlagOption() & ~BwaMemAligner.MEM_F_PE);
+            final List<List<BwaMemAlignment>> unpaired = aligner.alignSeqs(seqs.subList(0, 3), String::getBytes, pool);
+            Assert.assertEquals(unpaired.size(), 3);
+            Assert.assertEquals(unpaired.get(0).get(0).getCigar(), "50M");
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testCostOrder() {
+        final List<String> seqs = new ArrayList<>();
+        for ( int idx = 0; idx != 30; ++idx ) {
+            seqs.add(idx % 3 == 0 ?
+                    "AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCCTTCAACATTAGAATTAATGGGTATTCAATATGATT" : // 2-base deletion
+                    "GGCTTTTAATGCTTTTCAGTGGTTGCTGCTCAAGATGGAGTCTACTCAGCAGATGGTAAGCTCTATTATT".substring(idx % 20)); // ref.fa line 1
+        }
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            aligner.setNThreadsOption(3);
+            final List<List<BwaMemAlignment>> expected = aligner.alignSeqs(seqs, String::getBytes);
+            aligner.setExtraFlagOption(BwaMemAligner.XF_COST_ORDER);
+            Assert.assertEquals(aligner.getExtraFlagOption(), BwaMemAligner.XF_COST_ORDER);
+            final List<List<BwaMemAlignment>> alignments = aligner.alignSeqs(seqs, String::getBytes);
+            Assert.assertEquals(alignments.size(), expected.size());
+            for ( int idx = 0; idx != expected.size(); ++idx ) {
+                Assert.assertEquals(alignments.get(idx).get(0).getRefStart(), expected.get(idx).get(0).getRefStart());
+                Assert.assertEquals(alignments.get(idx).get(0).getCigar(), expected.get(idx).get(0).getCigar());
+            }
+        }
+    }
+
+    @Test
+    void testScratchSpace() {
+        final List<String> seqs = new ArrayList<>();
+        for ( int idx = 0; idx != 20; ++idx ) {
+            seqs.add("AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCCTTCAACATTAGAATTAATGGGTATTCAATATGATT"); // 2-base deletion
+        }
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            aligner.setNThreadsOption(2);
+            Assert.assertEquals(aligner.getScratchSpaceSize(), 0L);
+            for ( int batchSize = 20; batchSize > 0; batchSize -= 7 ) { // reuse for smaller batches, too
+                for ( final List<BwaMemAlignment> alignments : aligner.alignSeqs(seqs.subList(0, batchSize), String::getBytes) ) {
+                    Assert.assertEquals(alignments.get(0).getCigar(), "32M2D36M");
+                }
+                Assert.assertTrue(aligner.getScratchSpaceSize() > 0L);
+            }
+            aligner.trimScratchSpace();
+            Assert.assertEquals(aligner.getScratchSpaceSize(), 0L);
+            aligner.setScratchSpaceLimit(0L);
+            Assert.assertEquals(aligner.alignSeqs(seqs, String::getBytes).get(0).get(0).getCigar(), "32M2D36M");
+            Assert.assertEquals(aligner.getScratchSpaceSize(), 0L);
+        }
+    }
+
+    @Test
+    void testAlignOne() {
+        final String seq = "AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCCTTCAACATTAGAATTAATGGGTATTCAATATGATT"; // 2-base deletion
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            final BwaMemAlignment expected = aligner.alignSeqs(Collections.singletonList(seq.getBytes())).get(0).get(0);
+            final List<BwaMemAlignment> alignments = aligner.alignOne(seq.getBytes());
+            Assert.assertEquals(alignments.size(), 1);
+            Assert.assertEquals(alignments.get(0).getCigar(), "32M2D36M");
+            Assert.assertEquals(alignments.get(0).getRefStart(), expected.getRefStart());
+            Assert.assertEquals(alignments.get(0).getMDTag(), expected.getMDTag());
+            Assert.assertEquals(alignments.get(0).getSamFlag(), expected.getSamFlag());
+            final byte[] allNs = new byte[70];
+            Arrays.fill(allNs, (byte)'N');
+            Assert.assertEquals(aligner.alignOne(allNs).get(0).getRefId(), -1);
+        }
+    }
+
+    // a rough benchmark:  the point of alignOne is to be quicker than a batch of 1
+    @Test(groups = "benchmark", enabled = false)
+    void benchmarkAlignOne() {
+        final String seq = "AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCCTTCAACATTAGAATTAATGGGTATTCAATATGATT"; // 2-base deletion
+        final int nReps = 2000;
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            long startTime = System.nanoTime();
+            for ( int rep = 0; rep != nReps; ++rep ) {
+                aligner.alignSeqs(Collections.singletonList(seq.getBytes()));
+            }
+            final long batchNanos = System.nanoTime() - startTime;
+            startTime = System.nanoTime();
+            for ( int rep = 0; rep != nReps; ++rep ) {
+                aligner.alignOne(seq.getBytes());
+            }
+            final long singleNanos = System.nanoTime() - startTime;
+            Reporter.log("alignSeqs(singletonList): " + batchNanos/nReps + " ns/read, alignOne: " +
+                    singleNanos/nReps + " ns/read", true);
+        }
+    }
+
+    @Test
+    void testExactMatch() {
+        final List<String> seqs = new ArrayList<>();
+        for ( int start = 0; start + 70 <= ref.length(); start += 50 ) {
+            seqs.add(ref.substring(start, start + 70));
+            seqs.add(reverseComplement(ref.substring(start + 10, start + 60)));
+        }
+        seqs.add("AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCCTTCAACATTAGAATTAATGGGTATTCAATATGATT"); // 2-base deletion:  not exact
+        seqs.add("AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCNACTTCAACATTAGAATTAATGGGTATTCAATATGATT"); // an N:  not exact
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            final List<List<BwaMemAlignment>> expected = aligner.alignSeqs(seqs, String::getBytes);
+            aligner.setExtraFlagOption(BwaMemAligner.XF_EXACT_MATCH);
+            final List<List<BwaMemAlignment>> alignments = aligner.alignSeqs(seqs, String::getBytes);
+            Assert.assertEquals(alignments.size(), expected.size());
+            for ( int idx = 0; idx != expected.size(); ++idx ) {
+                Assert.assertEquals(alignments.get(idx).size(), expected.get(idx).size());
+                final BwaMemAlignment alignment = alignments.get(idx).get(0);
+                final BwaMemAlignment expectedAlignment = expected.get(idx).get(0);
+                Assert.assertEquals(alignment.getSamFlag(), expectedAlignment.getSamFlag());
+                Assert.assertEquals(alignment.getRefId(), expectedAlignment.getRefId());
+                Assert.assertEquals(alignment.getRefStart(), expectedAlignment.getRefStart());
+                Assert.assertEquals(alignment.getCigar(), expectedAlignment.getCigar());
+                Assert.assertEquals(alignment.getNMismatches(), expectedAlignment.getNMismatches());
+                Assert.assertEquals(alignment.getMDTag(), expectedAlignment.getMDTag());
+                Assert.assertEquals(alignment.getAlignerScore(), expectedAlignment.getAlignerScore());
+                Assert.assertEquals(alignment.getMapQual(), expectedAlignment.getMapQual()); // there are no repeats in ref.fa
+            }
+            Assert.assertEquals(alignments.get(0).get(0).getCigar(), "70M");
+            Assert.assertEquals(alignments.get(1).get(0).getSamFlag() & 0x10, 0x10);
+            Assert.assertEquals(aligner.alignOne(seqs.get(2).getBytes()).get(0).getRefStart(),
+                                expected.get(2).get(0).getRefStart());
+        }
+    }
+
+    @Test
+    void testPrefilter() {
+        final Random rdn = new Random(17);
+        final List<String> seqs = new ArrayList<>();
+        int nJunk = 0;
+        for ( int start = 0; start + 70 <= ref.length(); start += 100 ) {
+            seqs.add(ref.substring(start, start + 70));
+            final StringBuilder junk = new StringBuilder();
+            for ( int idx = 0; idx != 70; ++idx ) junk.append("ACGT".charAt(rdn.nextInt(4)));
+            seqs.add(junk.toString());
+            nJunk += 1;
+        }
+        seqs.add("AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCCTTCAACATTAGAATTAATGGGTATTCAATATGATT"); // 2-base deletion
+        seqs.add("AATACTTCTT"); // shorter than a seed
+        nJunk += 1;
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            final List<List<BwaMemAlignment>> expected = aligner.alignSeqs(seqs, String::getBytes);
+            Assert.assertEquals(aligner.getNPrefilteredSequences(), 0L);
+            aligner.setExtraFlagOption(BwaMemAligner.XF_PREFILTER);
+            final List<List<BwaMemAlignment>> alignments;
+            try ( final BwaMemAlignmentCursor cursor = aligner.alignSeqsToCursor(seqs, String::getBytes) ) {
+                Assert.assertEquals(cursor.getNPrefilteredSequences(), nJunk);
+                Assert.assertEquals(cursor.getNExactMatchSequences(), 0);
+                alignments = new ArrayList<>();
+                while ( cursor.nextSequence() ) {
+                    final List<BwaMemAlignment> seqAlignments = new ArrayList<>();
+                    while ( cursor.nextAlignment() ) seqAlignments.add(cursor.toAlignment());
+                    alignments.add(seqAlignments);
+                }
+            }
+            Assert.assertEquals(aligner.getNPrefilteredSequences(), (long)nJunk);
+            Assert.assertEquals(alignments.size(), expected.size());
+            for ( int idx = 0; idx != expected.size(); ++idx ) {
+                final BwaMemAlignment alignment = alignments.get(idx).get(0);
+                final BwaMemAlignment expectedAlignment = expected.get(idx).get(0);
+                Assert.assertEquals(alignment.getSamFlag(), expectedAlignment.getSamFlag());
+                Assert.assertEquals(alignment.getRefStart(), expectedAlignment.getRefStart());
+                Assert.assertEquals(alignment.getCigar(), expectedAlignment.getCigar());
+            }
+            Assert.assertEquals(alignments.get(1).get(0).getRefId(), -1);
+            Assert.assertEquals(aligner.alignOne(seqs.get(1).getBytes()).get(0).getRefId(), -1);
+            Assert.assertEquals(aligner.getNPrefilteredSequences(), nJunk + 1L);
+
+            // exact matches take the fast path before they get to the pre-filter
+            aligner.setExtraFlagOption(BwaMemAligner.XF_PREFILTER | BwaMemAligner.XF_EXACT_MATCH);
+            aligner.alignSeqs(seqs, String::getBytes);
+            Assert.assertEquals(aligner.getNExactMatchSequences(), (long)(seqs.size() - nJunk - 1));
+            Assert.assertEquals(aligner.getNPrefilteredSequences(), 2L*nJunk + 1L);
+        }
+    }
+
+    @Test
+    void testWorkBudgetAndCancellation() throws Exception {
+        final List<String> seqs = new ArrayList<>();
+        for ( int start = 0; start + 70 <= ref.length(); start += 100 ) {
+            seqs.add(ref.substring(start, start + 70));
+        }
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            final List<List<BwaMemAlignment>> expected = aligner.alignSeqs(seqs, String::getBytes);
+
+            // each read has 3 probes, each of which occurs once:  over a budget of 1, but not of 3
+            aligner.setMaxProbeOccurrencesOption(3);
+            Assert.assertEquals(aligner.alignSeqs(seqs, String::getBytes).get(0).get(0).getCigar(), "70M");
+            Assert.assertEquals(aligner.getNOverBudgetSequences(), 0L);
+            aligner.setMaxProbeOccurrencesOption(1);
+            final List<List<BwaMemAlignment>> cheap = aligner.alignSeqs(seqs, String::getBytes);
+            for ( int idx = 0; idx != expected.size(); ++idx ) {
+                Assert.assertEquals(cheap.get(idx).get(0).getRefStart(), expected.get(idx).get(0).getRefStart());
+                Assert.assertEquals(cheap.get(idx).get(0).getCigar(), expected.get(idx).get(0).getCigar());
+            }
+            Assert.assertEquals(aligner.getNOverBudgetSequences(), (long)seqs.size());
+            aligner.setExtraFlagOption(BwaMemAligner.XF_OVER_BUDGET_UNMAPPED);
+            for ( final List<BwaMemAlignment> alignments : aligner.alignSeqs(seqs, String::getBytes) ) {
+                Assert.assertEquals(alignments.get(0).getRefId(), -1);
+            }
+            Assert.assertEquals(aligner.getNOverBudgetSequences(), 2L*seqs.size());
+            aligner.setMaxProbeOccurrencesOption(0);
+            aligner.setExtraFlagOption(0);
+
+            final BwaMemCancellationToken token = new BwaMemCancellationToken();
+            aligner.setCancellationToken(token);
+            Assert.assertEquals(aligner.alignSeqs(seqs, String::getBytes).size(), seqs.size());
+            token.cancel();
+            Assert.assertTrue(token.isCancelled());
+            try {
+                aligner.alignSeqs(seqs, String::getBytes);
+                Assert.fail("cancelled batch returned alignments");
+            }
+            catch ( final CancellationException ce ) {
+                // expected
+            }
+            try {
+                aligner.submit(seqs, String::getBytes).join();
+                Assert.fail("cancelled batch returned alignments");
+            }
+            catch ( final CompletionException ce ) {
+                Assert.assertTrue(ce.getCause() instanceof CancellationException);
+            }
+            final ForkJoinPool pool = new ForkJoinPool(2);
+            try ( final BwaMemSequenceBatch batch = new BwaMemSequenceBatch(aligner.getBufferArena()) ) {
+                for ( final String seq : seqs ) batch.add(seq.getBytes());
+                aligner.alignSeqs(batch, pool);
+                Assert.fail("cancelled batch returned alignments");
+            }
+            catch ( final CancellationException ce ) {
+                // expected
+            }
+            finally {
+                pool.shutdown();
+            }
+            aligner.setCancellationToken(null);
+            final List<List<BwaMemAlignment>> alignments = aligner.alignSeqs(seqs, String::getBytes);
+            Assert.assertEquals(alignments.get(0).get(0).getCigar(), "70M");
+        }
+    }
+
+    @Test
+    void testTargetIntervals() {
+        final BwaMemIntervalSet targets = new BwaMemIntervalSet(index,
+                new int[] { 0, 0, 0 }, new int[] { 350, 300, 600 }, new int[] { 600, 400, 650 });
+        Assert.assertEquals(targets.getNIntervals(), 1); // they all merge
+        Assert.assertTrue(targets.overlaps(0, 640, 700));
+        Assert.assertFalse(targets.overlaps(0, 650, 700));
+        Assert.assertFalse(targets.overlaps(0, 230, 300));
+        try {
+            new BwaMemIntervalSet(index, new int[] { 1 }, new int[] { 0 }, new int[] { 10 });
+            Assert.fail("accepted an interval on a contig that doesn't exist");
+        }
+        catch ( final IllegalArgumentException iae ) {
+            // expected
+        }
+        try {
+            new BwaMemIntervalSet(index, new int[] { 0 }, new int[] { 0 }, new int[] { index.getReferenceContigLength(0) + 1 });
+            Assert.fail("accepted an interval that runs off the end of the contig");
+        }
+        catch ( final IllegalArgumentException iae ) {
+            // expected
+        }
+
+        final List<String> seqs = new ArrayList<>();
+        int nOffTarget = 0;
+        for ( int start = 0; start + 70 <= ref.length(); start += 100 ) {
+            seqs.add(start % 200 == 0 ? ref.substring(start, start + 70) : reverseComplement(ref.substring(start, start + 70)));
+            if ( !targets.overlaps(0, start, start + 70) ) nOffTarget += 1;
+        }
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            final List<List<BwaMemAlignment>> expected = aligner.alignSeqs(seqs, String::getBytes);
+            aligner.setTargetIntervals(targets);
+            for ( final int flags : new int[] { 0, BwaMemAligner.XF_EXACT_MATCH } ) {
+                aligner.setExtraFlagOption(flags);
+                final List<List<BwaMemAlignment>> alignments = aligner.alignSeqs(seqs, String::getBytes);
+                for ( int idx = 0; idx != seqs.size(); ++idx ) {
+                    final BwaMemAlignment alignment = alignments.get(idx).get(0);
+                    final BwaMemAlignment expectedAlignment = expected.get(idx).get(0);
+                    if ( targets.overlaps(0, expectedAlignment.getRefStart(), expectedAlignment.getRefEnd()) ) {
+                        Assert.assertEquals(alignment.getSamFlag(), expectedAlignment.getSamFlag());
+                        Assert.assertEquals(alignment.getRefStart(), expectedAlignment.getRefStart());
+                        Assert.assertEquals(alignment.getCigar(), expectedAlignment.getCigar());
+                    } else {
+                        Assert.assertEquals(alignment.getRefId(), -1);
+                    }
+                }
+            }
+            Assert.assertEquals(aligner.getNOffTargetSequences(), 2L*nOffTarget);
+            Assert.assertEquals(aligner.alignOne(seqs.get(0).getBytes()).get(0).getRefId(), -1);
+            aligner.setTargetIntervals(null);
+            Assert.assertEquals(aligner.alignOne(seqs.get(0).getBytes()).get(0).getCigar(), "70M");
+        }
+    }
+
+    @Test
+    void testFindChains() {
+        final List<byte[]> seqs = new ArrayList<>();
+        seqs.add(ref.substring(100, 170).getBytes());
+        seqs.add(reverseComplement(ref.substring(500, 570)).getBytes());
+        seqs.add("ACGTACGTAC".getBytes()); // too short to seed
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            final List<BwaMemChains> allChains = aligner.findChains(seqs);
+            Assert.assertEquals(allChains.size(), 3);
+            final int[] starts = { 100, 500 };
+            for ( int idx = 0; idx != 2; ++idx ) {
+                final BwaMemChains chains = allChains.get(idx);
+                Assert.assertEquals(chains.getNChains(), 1);
+                Assert.assertEquals(chains.getRefIds()[0], 0);
+                Assert.assertEquals(chains.getRefStarts()[0], starts[idx]);
+                Assert.assertEquals(chains.getRefEnds()[0], starts[idx] + 70);
+                Assert.assertEquals(chains.getReverseStrands()[0], idx == 1);
+                Assert.assertEquals(chains.getWeights()[0], 70);
+                Assert.assertEquals(chains.getFirstSeeds()[1], chains.getNSeeds());
+                for ( int seed = 0; seed != chains.getNSeeds(); ++seed ) {
+                    final int seedStart = chains.getSeedRefStarts()[seed];
+                    Assert.assertTrue(seedStart >= starts[idx]);
+                    Assert.assertTrue(seedStart + chains.getSeedLengths()[seed] <= starts[idx] + 70);
+                    Assert.assertTrue(chains.getSeedQueryStarts()[seed] + chains.getSeedLengths()[seed] <= 70);
+                }
+            }
+            Assert.assertEquals(allChains.get(2).getNChains(), 0);
+            Assert.assertEquals(allChains.get(2).getNSeeds(), 0);
+
+            // chains that don't touch a target aren't reported
+            aligner.setTargetIntervals(new BwaMemIntervalSet(index, new int[] { 0 }, new int[] { 450 }, new int[] { 520 }));
+            final List<BwaMemChains> targetedChains = aligner.findChains(seqs);
+            Assert.assertEquals(targetedChains.get(0).getNChains(), 0);
+            Assert.assertEquals(targetedChains.get(1).getNChains(), 1);
+        }
+    }
+
+    @Test
+    void testIndexQueries() {
+        try ( final BwaMemSequenceBatch batch = new BwaMemSequenceBatch() ) {
+            batch.add(ref.substring(100, 130).getBytes());
+            batch.add(reverseComplement(ref.substring(300, 330)).getBytes());
+            batch.add("NNNNNNNNNN".getBytes());
+            final long[] intervals = index.findSAIntervals(batch);
+            Assert.assertEquals(intervals.length, 3*BwaMemIndex.SA_INTERVAL_FIELDS);
+            Assert.assertEquals(index.countOccurrences(batch), new long[] { 1L, 1L, 0L });
+
+            final int[] positions = index.resolveSAPositions(new long[] { intervals[0], intervals[2], -1L },
+                                                             new int[] { 30, 30, 30 });
+            Assert.assertEquals(positions, new int[] { 0, 100, 0,  0, 300, 1,  -1, 0, 0 });
+        }
+        try ( final BwaMemSequenceBatch batch = new BwaMemSequenceBatch() ) {
+            batch.add(ref.substring(500, 570).getBytes());
+            batch.add("ACGTACGTAC".getBytes());
+            final long[][] smems = index.findSMEMs(batch, 19);
+            Assert.assertEquals(smems.length, 2);
+            Assert.assertEquals(smems[0].length, BwaMemIndex.SMEM_FIELDS);
+            Assert.assertEquals(smems[0][0], 0L);
+            Assert.assertEquals(smems[0][1], 70L);
+            Assert.assertEquals(smems[0][3], 1L);
+            Assert.assertEquals(index.resolveSAPositions(new long[] { smems[0][2] }, new int[] { 70 }), new int[] { 0, 500, 0 });
+            Assert.assertEquals(smems[1].length, 0);
+        }
+    }
+
+    @Test
+    void testAlignToIntervals() {
+        final List<byte[]> seqs = new ArrayList<>();
+        seqs.add("AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCCTTCAACATTAGAATTAATGGGTATTCAATATGATT".getBytes()); // 2-base deletion
+        seqs.add(("NNNNNNNNNN" + ref.substring(200, 260)).getBytes()); // clipped
+        seqs.add(ref.substring(600, 670).getBytes()); // aligned to the wrong place
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            final List<BwaMemAlignment> alignments =
+                    aligner.alignToIntervals(seqs, new int[] { 0, 0, 0 }, new int[] { 0, 150, 0 }, new int[] { 300, 350, 300 });
+            Assert.assertEquals(alignments.size(), 3);
+            testAlignment(alignments.get(0), 70, 140, 0, 68, "32M2D36M", 2, 0);
+            testAlignment(alignments.get(1), 200, 260, 10, 70, "10S60M", 0, 0);
+            Assert.assertEquals(alignments.get(1).getAlignerScore(), 60);
+            Assert.assertEquals(alignments.get(2).getRefId(), -1);
+            try {
+                aligner.alignToIntervals(seqs.subList(0, 1), new int[] { 0 }, new int[] { 0 }, new int[] { 1 << 30 });
+                Assert.fail("accepted an interval that runs off the end of the contig");
+            }
+            catch ( final IllegalArgumentException iae ) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    void testRealignClips() {
+        final List<byte[]> reads = new ArrayList<>();
+        reads.add((ref.substring(100, 160) + ref.substring(800, 860)).getBytes()); // a deletion
+        reads.add((ref.substring(100, 160) + reverseComplement(ref.substring(800, 860))).getBytes()); // an inversion
+        final int[] clipStarts = { 60, 60 };
+        final int[] clipEnds = { 120, 120 };
+        final int[] anchorRefIds = { 0, 0 };
+        final int[] anchorPositions = { 160, 160 };
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            final List<BwaMemAlignment> alignments =
+                    aligner.realignClips(reads, clipStarts, clipEnds, anchorRefIds, anchorPositions, 0);
+            Assert.assertEquals(alignments.size(), 2);
+            testAlignment(alignments.get(0), 800, 860, 60, 120, "60S60M", 0, 0);
+            testAlignment(alignments.get(1), 800, 860, 0, 60, "60M60S", 0, 0x10); // in reference orientation
+            Assert.assertEquals(alignments.get(0).getAlignerScore(), 60);
+
+            final List<BwaMemAlignment> nearby =
+                    aligner.realignClips(reads, clipStarts, clipEnds, anchorRefIds, anchorPositions, 1000);
+            testAlignment(nearby.get(0), 800, 860, 60, 120, "60S60M", 0, 0);
+            final List<BwaMemAlignment> tooFar =
+                    aligner.realignClips(reads, clipStarts, clipEnds, anchorRefIds, anchorPositions, 100);
+            Assert.assertEquals(tooFar.get(0).getRefId(), -1);
+            Assert.assertEquals(tooFar.get(1).getRefId(), -1);
+            try {
+                aligner.realignClips(reads, clipStarts, new int[] { 120, 121 }, anchorRefIds, anchorPositions, 0);
+                Assert.fail("accepted a segment that runs off the end of its read");
+            }
+            catch ( final IllegalArgumentException iae ) {
+                // expected
+            }
+            try ( final BwaMemSequenceBatch batch = new BwaMemSequenceBatch() ) {
+                batch.add(reads.get(0)).add(reads.get(1));
+                aligner.realignClips(batch, clipStarts, new int[] { 120, 121 }, anchorRefIds, anchorPositions, 0);
+                Assert.fail("accepted a segment that runs off the end of its read in a batch");
+            }
+            catch ( final IllegalArgumentException iae ) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    void testPairwiseAligner() {
+        final List<byte[]> queries = new ArrayList<>();
+        final List<byte[]> targets = new ArrayList<>();
+        queries.add("AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCCTTCAACATTAGAATTAATGGGTATTCAATATGATT".getBytes()); // 2-base deletion
+        targets.add(ref.substring(70, 140).getBytes());
+        queries.add(("NNNNNNNNNN" + ref.substring(200, 260)).getBytes()); // clipped
+        targets.add(ref.substring(150, 350).getBytes());
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index);
+              final BwaMemPairwiseAligner pairwiseAligner = new BwaMemPairwiseAligner(aligner) ) {
+            Assert.assertEquals(pairwiseAligner.getExtensionInitialScore(),
+                                aligner.getMatchScoreOption()*aligner.getMinSeedLengthOption());
+            final List<BwaMemPairwiseAlignment> global = pairwiseAligner.align(BwaMemPairwiseAligner.Mode.GLOBAL,
+                                                                                queries.subList(0, 1), targets.subList(0, 1));
+            Assert.assertEquals(global.size(), 1);
+            Assert.assertEquals(global.get(0).getCigar(), "32M2D36M");
+            Assert.assertEquals(global.get(0).getNMismatches(), 2);
+            Assert.assertEquals(global.get(0).getTargetEnd(), 70);
+
+            final List<BwaMemPairwiseAlignment> local =
+                    pairwiseAligner.align(BwaMemPairwiseAligner.Mode.LOCAL, queries, targets);
+            Assert.assertEquals(local.size(), 2);
+            Assert.assertEquals(local.get(0).getCigar(), "32M2D36M");
+            Assert.assertEquals(local.get(1).getCigar(), "10S60M");
+            Assert.assertEquals(local.get(1).getScore(), 60);
+            Assert.assertEquals(local.get(1).getQueryStart(), 10);
+            Assert.assertEquals(local.get(1).getTargetStart(), 50);
+            Assert.assertEquals(local.get(1).getTargetEnd(), 110);
+            final long allocatedBytes = pairwiseAligner.getBufferArena().getAllocatedBytes();
+            Assert.assertTrue(allocatedBytes > 0L);
+            pairwiseAligner.align(BwaMemPairwiseAligner.Mode.LOCAL, queries, targets);
+            Assert.assertEquals(pairwiseAligner.getBufferArena().getAllocatedBytes(), allocatedBytes); // recycled
+
+            pairwiseAligner.setExtensionInitialScore(20);
+            final List<BwaMemPairwiseAlignment> extended = pairwiseAligner.align(BwaMemPairwiseAligner.Mode.EXTEND,
+                    Collections.singletonList(ref.substring(200, 260).getBytes()),
+                    Collections.singletonList(ref.substring(200, 300).getBytes()));
+            Assert.assertEquals(extended.get(0).getCigar(), "60M");
+            Assert.assertEquals(extended.get(0).getScore(), 80);
+            Assert.assertEquals(extended.get(0).getTargetEnd(), 60);
+
+            try {
+                pairwiseAligner.align(BwaMemPairwiseAligner.Mode.LOCAL, queries, targets.subList(0, 1));
+                Assert.fail("accepted a query without a target");
+            }
+            catch ( final IllegalArgumentException iae ) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    void testMappability() throws IOException {
+        final int refLen = index.getReferenceContigLength(0);
+        Assert.assertEquals(refLen, ref.length());
+        final int k = 24;
+        final byte[] counts = index.computeMappability(k, 0, 0, refLen + 100, 3); // the end is clipped
+        Assert.assertEquals(counts.length, refLen);
+        try ( final BwaMemSequenceBatch batch = new BwaMemSequenceBatch() ) {
+            for ( int pos = 0; pos + k <= refLen; ++pos ) {
+                batch.add(ref.substring(pos, pos + k).getBytes());
+            }
+            final long[] expected = index.countOccurrences(batch);
+            for ( int pos = 0; pos != refLen; ++pos ) {
+                final int count = counts[pos] & 0xff;
+                Assert.assertEquals(count, pos < expected.length ? Math.min(expected[pos], BwaMemIndex.MAX_MAPPABILITY_COUNT) : 0L);
+            }
+        }
+        Assert.assertEquals(index.computeMappability(k, 0, 100, 200, 1), Arrays.copyOfRange(counts, 100, 200));
+
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        index.writeMappabilityTrack(k, 2, os);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(os.toByteArray()));
+        Assert.assertEquals(in.readInt(), 0x424d4150);
+        Assert.assertEquals(in.readInt(), 1);
+        Assert.assertEquals(in.readInt(), k);
+        Assert.assertEquals(in.readInt(), 1);
+        Assert.assertEquals(in.readUTF(), index.getReferenceContigNames().get(0));
+        Assert.assertEquals(in.readInt(), refLen);
+        final byte[] track = new byte[refLen];
+        in.readFully(track);
+        Assert.assertEquals(track, counts);
+        Assert.assertEquals(in.read(), -1);
+    }
+
+    @Test
+    void testNativeThreadPool() {
+        final List<String> seqs = new ArrayList<>();
+        for ( int idx = 0; idx != 50; ++idx ) {
+            seqs.add("AATACTTCTTTTGAAGCTGCAGTTGTTGCTGCCTTCAACATTAGAATTAATGGGTATTCAATATGATT"); // 2-base deletion
+        }
+        BwaMemNativeThreadPool.start(3);
+        try ( final BwaMemAligner aligner = new BwaMemAligner(index) ) {
+            Assert.assertEquals(BwaMemNativeThreadPool.getNThreads(), 3);
+            aligner.setNThreadsOption(4);
+            for ( int batchNo = 0; batchNo != 5; ++batchNo ) {
+                for ( final List<BwaMemAlignment> alignments : aligner.alignSeqs(seqs, String::getBytes) ) {
+                    Assert.assertEquals(alignments.get(0).getCigar(), "32M2D36M");
+                }
+            }
+        }
+        finally {
+            BwaMemNativeThreadPool.shutdown();
+        }
+        Assert.assertFalse(BwaMemNativeThreadPool.isRunning());
+        BwaMemNativeThreadPool.shutdown(); // harmless
+    }
+
     @Test(dataProvider = "testPairData")
     void testPair(final int defaultSetOrClearPEStats) {
         final List<String> seqs = new ArrayList<>();